@@ -1,3 +1,4 @@
+import static org.dhcp4java.DHCPConstants.*
 
 /**
  * Created by IntelliJ IDEA.
@@ -11,4 +12,4 @@ logger.info("DISCOVER packet received");
 
 // See if this packet requests an address that we can try to serve it
 def requestedAddress = request.getOptionAsInetAddr(DHO_DHCP_REQUESTED_ADDRESS);
-logger.info(requestedAddress);
\ No newline at end of file
+logger.info("Requested address: " + requestedAddress);
\ No newline at end of file
@@ -27,7 +27,10 @@ public class Main {
         logger.info("Starting DHCP server");
 
         try {
-            DHCPCoreServer server = DHCPCoreServer.initServer(new StandardServlet(), null);
+            StandardServlet servlet = new StandardServlet();
+            DHCPCoreServer server = DHCPCoreServer.initServer(servlet, null);
+            // The subnets must be set up by now, the leases are restored into their pools
+            servlet.openLeases();
             new Thread(server).start();
         } catch (DHCPServerInitException e) {
             logger.log(Level.SEVERE, "Server init", e);
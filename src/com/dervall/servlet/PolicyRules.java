@@ -0,0 +1,423 @@
+package com.dervall.servlet;
+
+import com.dervall.subnet.ClientIndex;
+import com.dervall.subnet.SubnetSelector;
+import org.dhcp4java.DHCPOption;
+import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.InetCidr;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.dhcp4java.DHCPConstants.*;
+
+/**
+ * Decides whether a request is served without running onservice.groovy. A rule file
+ * holds one rule per line, the first rule matching a request gives the verdict:
+ *
+ *   # comment
+ *   deny   mac=00:11:22
+ *   allow  vendor="MSFT 5.0" giaddr=10.1.0.0/16
+ *   script circuit=eth0/1/7
+ *   default allow
+ *
+ * The verdict is allow, deny or script (run onservice.groovy). A rule matches when all
+ * its conditions do: mac (the OUI, first 3 bytes of an Ethernet chaddr), vendor (option
+ * 60), user (option 77), circuit and remote (relay agent circuit and remote id, option
+ * 82) compare whole values, giaddr the relay address against a prefix. Values holding
+ * spaces are quoted. The default verdict, script unless set, applies when no rule does.
+ *
+ * Rules are compiled into one bit set per value of each condition, holding the rules
+ * that value satisfies, rules without that condition included: hash tables for the
+ * exact values, a binary trie for giaddr. A request costs a lookup per condition and
+ * the AND of the sets found, whose lowest bit is the first rule matching.
+ *
+ * Immutable, thread-safe.
+ */
+public class PolicyRules {
+    public enum Verdict { ALLOW, DENY, SCRIPT }
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private final Verdict[] verdicts;
+    private final Verdict defaultVerdict;
+
+    private final Condition<Integer> ouis;
+    private final Condition<String> vendors;
+    private final Condition<String> users;
+    private final Condition<String> circuits;
+    private final Condition<String> remotes;
+    private final PrefixCondition giaddrs;
+
+    /**
+     * Reads a rule file.
+     * @throws IllegalArgumentException on a syntax error, with its line number
+     */
+    public static PolicyRules load(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), LATIN1);
+        try {
+            return parse(reader);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException on a syntax error, with its line number
+     */
+    public static PolicyRules parse(Reader reader) throws IOException {
+        BufferedReader lines = new BufferedReader(reader);
+        Builder builder = new Builder();
+        String line;
+        int number = 0;
+        while ((line = lines.readLine()) != null) {
+            ++number;
+            try {
+                builder.add(tokens(line));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + number + ": " + e.getMessage(), e);
+            }
+        }
+        return builder.build();
+    }
+
+    private PolicyRules(Builder builder) {
+        int count = builder.verdicts.size();
+        verdicts = builder.verdicts.toArray(new Verdict[count]);
+        defaultVerdict = builder.defaultVerdict;
+        ouis = new Condition<Integer>(builder.ouis, count);
+        vendors = new Condition<String>(builder.vendors, count);
+        users = new Condition<String>(builder.users, count);
+        circuits = new Condition<String>(builder.circuits, count);
+        remotes = new Condition<String>(builder.remotes, count);
+        giaddrs = new PrefixCondition(builder.giaddrs, count);
+    }
+
+    /**
+     * @return number of rules, the default verdict apart
+     */
+    public int size() {
+        return verdicts.length;
+    }
+
+    public Verdict getDefaultVerdict() {
+        return defaultVerdict;
+    }
+
+    /**
+     * @return the verdict of the first rule matching the request, the default verdict
+     * if none does
+     */
+    public Verdict evaluate(DHCPPacket request) {
+        long mac = ClientIndex.macKey(request);
+        long[] byOui = ouis.match(mac < 0 ? null : (int) (mac >>> 24));
+        long[] byVendor = vendors.match(optionString(request.getOptionRaw(DHO_VENDOR_CLASS_IDENTIFIER)));
+        long[] byUser = users.match(optionString(request.getOptionRaw(DHO_USER_CLASS)));
+        long[] byCircuit = circuits.any;
+        long[] byRemote = remotes.any;
+        if (!circuits.values.isEmpty() || !remotes.values.isEmpty()) {
+            byte[] agent = request.getOptionRaw(DHO_DHCP_AGENT_OPTIONS);
+            if (agent != null) {
+                Map<Byte, String> ids = DHCPOption.agentOptionsToMap(agent);
+                byCircuit = circuits.match(ids.get(SubnetSelector.AGENT_CIRCUIT_ID));
+                byRemote = remotes.match(ids.get(SubnetSelector.AGENT_REMOTE_ID));
+            }
+        }
+        long[] byGiaddr = giaddrs.match(request.getGiaddrRaw());
+
+        for (int i = 0; i < byOui.length; i++) {
+            long matching = byOui[i] & byVendor[i] & byUser[i] & byCircuit[i] & byRemote[i] & byGiaddr[i];
+            if (matching != 0) {
+                return verdicts[(i << 6) + Long.numberOfTrailingZeros(matching)];
+            }
+        }
+        return defaultVerdict;
+    }
+
+    /**
+     * @return the option as text, trailing NULs left out, null if absent
+     */
+    private static String optionString(byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        int length = value.length;
+        while (length > 0 && value[length - 1] == 0) {
+            --length;
+        }
+        return new String(value, 0, length, LATIN1);
+    }
+
+    /**
+     * Splits a line on spaces, keeping quoted values whole.
+     */
+    private static List<String> tokens(String line) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        boolean pending = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                pending = true;
+            } else if (quoted || !Character.isWhitespace(c)) {
+                if (c == '#' && !quoted && !pending) {
+                    break;
+                }
+                token.append(c);
+                pending = true;
+            } else if (pending) {
+                tokens.add(token.toString());
+                token.setLength(0);
+                pending = false;
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote");
+        }
+        if (pending) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    private static Verdict verdict(String text) {
+        try {
+            return Verdict.valueOf(text.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown verdict " + text);
+        }
+    }
+
+    private static int oui(String text) {
+        String hex = text.replace(":", "").replace("-", "");
+        if (hex.length() != 6) {
+            throw new IllegalArgumentException("Invalid OUI " + text);
+        }
+        try {
+            return Integer.parseInt(hex, 16);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid OUI " + text);
+        }
+    }
+
+    private static InetCidr cidr(String text) {
+        int slash = text.indexOf('/');
+        try {
+            InetAddress address = InetAddress.getByName(slash < 0 ? text : text.substring(0, slash));
+            return new InetCidr(address, slash < 0 ? 32 : Integer.parseInt(text.substring(slash + 1)));
+        } catch (UnknownHostException e) {
+            throw new IllegalArgumentException("Invalid prefix " + text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid prefix " + text);
+        }
+    }
+
+    /**
+     * Rules as read, rule numbers per value of each condition.
+     */
+    private static class Builder {
+        final List<Verdict> verdicts = new ArrayList<Verdict>();
+        Verdict defaultVerdict = Verdict.SCRIPT;
+
+        final Map<Integer, List<Integer>> ouis = new HashMap<Integer, List<Integer>>();
+        final Map<String, List<Integer>> vendors = new HashMap<String, List<Integer>>();
+        final Map<String, List<Integer>> users = new HashMap<String, List<Integer>>();
+        final Map<String, List<Integer>> circuits = new HashMap<String, List<Integer>>();
+        final Map<String, List<Integer>> remotes = new HashMap<String, List<Integer>>();
+        final Map<InetCidr, List<Integer>> giaddrs = new HashMap<InetCidr, List<Integer>>();
+
+        void add(List<String> tokens) {
+            if (tokens.isEmpty()) {
+                return;
+            }
+            if (tokens.get(0).equals("default")) {
+                if (tokens.size() != 2) {
+                    throw new IllegalArgumentException("Expected default <verdict>");
+                }
+                defaultVerdict = verdict(tokens.get(1));
+                return;
+            }
+            Verdict verdict = verdict(tokens.get(0));
+            int rule = verdicts.size();
+            List<String> seen = new ArrayList<String>();
+            for (String condition : tokens.subList(1, tokens.size())) {
+                int equals = condition.indexOf('=');
+                if (equals <= 0) {
+                    throw new IllegalArgumentException("Expected <condition>=<value>, found " + condition);
+                }
+                String name = condition.substring(0, equals);
+                String value = condition.substring(equals + 1);
+                if (seen.contains(name)) {
+                    throw new IllegalArgumentException("Condition " + name + " given twice");
+                }
+                seen.add(name);
+                if (name.equals("mac")) {
+                    put(ouis, oui(value), rule);
+                } else if (name.equals("vendor")) {
+                    put(vendors, value, rule);
+                } else if (name.equals("user")) {
+                    put(users, value, rule);
+                } else if (name.equals("circuit")) {
+                    put(circuits, value, rule);
+                } else if (name.equals("remote")) {
+                    put(remotes, value, rule);
+                } else if (name.equals("giaddr")) {
+                    put(giaddrs, cidr(value), rule);
+                } else {
+                    throw new IllegalArgumentException("Unknown condition " + name);
+                }
+            }
+            verdicts.add(verdict);
+        }
+
+        private static <K> void put(Map<K, List<Integer>> rules, K key, int rule) {
+            List<Integer> list = rules.get(key);
+            if (list == null) {
+                list = new ArrayList<Integer>();
+                rules.put(key, list);
+            }
+            list.add(rule);
+        }
+
+        PolicyRules build() {
+            return new PolicyRules(this);
+        }
+    }
+
+    private static long[] bits(int count) {
+        return new long[Math.max(1, (count + 63) >>> 6)];
+    }
+
+    private static void set(long[] bits, int rule) {
+        bits[rule >>> 6] |= 1L << rule;
+    }
+
+    /**
+     * Exact values of a condition: the rules each value satisfies, and in any, the rules
+     * satisfied by every value, those without the condition.
+     */
+    private static class Condition<K> {
+        final Map<K, long[]> values = new HashMap<K, long[]>();
+        final long[] any;
+
+        Condition(Map<K, List<Integer>> rules, int count) {
+            any = bits(count);
+            for (int rule = 0; rule < count; rule++) {
+                set(any, rule);
+            }
+            for (List<Integer> list : rules.values()) {
+                for (int rule : list) {
+                    any[rule >>> 6] &= ~(1L << rule);
+                }
+            }
+            for (Map.Entry<K, List<Integer>> entry : rules.entrySet()) {
+                long[] bits = any.clone();
+                for (int rule : entry.getValue()) {
+                    set(bits, rule);
+                }
+                values.put(entry.getKey(), bits);
+            }
+        }
+
+        long[] match(K value) {
+            if (value == null) {
+                return any;
+            }
+            long[] bits = values.get(value);
+            return bits == null ? any : bits;
+        }
+    }
+
+    /**
+     * Prefixes of a condition, in a binary trie. Each node holds the rules satisfied by
+     * the addresses below it: its own prefix, those of its ancestors and any.
+     */
+    private static class PrefixCondition {
+        final Node root;
+        final long[] any;
+
+        PrefixCondition(Map<InetCidr, List<Integer>> rules, int count) {
+            Condition<InetCidr> exact = new Condition<InetCidr>(rules, count);
+            any = exact.any;
+            root = new Node(any);
+            for (Map.Entry<InetCidr, long[]> entry : exact.values.entrySet()) {
+                InetCidr cidr = entry.getKey();
+                int address = (int) cidr.getAddrLong();
+                Node node = root;
+                for (int i = 0; i < cidr.getMask(); i++) {
+                    int bit = (address >>> (31 - i)) & 1;
+                    if (node.children[bit] == null) {
+                        node.children[bit] = new Node(null);
+                    }
+                    node = node.children[bit];
+                }
+                node.rules = entry.getValue();
+            }
+            root.inherit(any);
+        }
+
+        /**
+         * @return the rules satisfied by an address, any for 0.0.0.0 (not relayed)
+         */
+        long[] match(byte[] raw) {
+            int address = ((raw[0] & 0xFF) << 24) | ((raw[1] & 0xFF) << 16)
+                    | ((raw[2] & 0xFF) << 8) | (raw[3] & 0xFF);
+            if (address == 0) {
+                return any;
+            }
+            Node node = root;
+            long[] rules = root.rules;
+            for (int i = 31; i >= 0; i--) {
+                node = node.children[(address >>> i) & 1];
+                if (node == null) {
+                    break;
+                }
+                rules = node.rules;
+            }
+            return rules;
+        }
+
+        private static class Node {
+            final Node[] children = new Node[2];
+            long[] rules;
+
+            Node(long[] rules) {
+                this.rules = rules;
+            }
+
+            /**
+             * Adds the rules of the ancestors to this node and those below.
+             */
+            void inherit(long[] above) {
+                if (rules == null) {
+                    rules = above;
+                } else if (rules != above) {
+                    long[] merged = Arrays.copyOf(rules, rules.length);
+                    for (int i = 0; i < merged.length; i++) {
+                        merged[i] |= above[i];
+                    }
+                    rules = merged;
+                }
+                for (Node child : children) {
+                    if (child != null) {
+                        child.inherit(rules);
+                    }
+                }
+            }
+        }
+    }
+}
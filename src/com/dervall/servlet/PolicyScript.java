@@ -0,0 +1,110 @@
+package com.dervall.servlet;
+
+import com.dervall.subnet.LeaseTable;
+import com.dervall.subnet.Subnet;
+import com.dervall.subnet.SubnetSelector;
+import groovy.lang.Script;
+import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.DHCPResponseFactory;
+
+import java.net.InetAddress;
+import java.util.logging.Logger;
+
+/**
+ * Base class of the scripts run by StandardServlet. What the Binding holds is also
+ * available here as typed properties, so that scripts compiled with @CompileStatic
+ * (scriptCompileStatic=true) call straight into them instead of going through dynamic
+ * lookups. servlet and logger are read from the Binding once per instance, request and
+ * smokeTest are set by ScriptCache before each run.
+ */
+public abstract class PolicyScript extends Script {
+    private DHCPPacket request;
+    private boolean smokeTest;
+    private StandardServlet servlet;
+    private Logger logger;
+    private Subnet subnet;
+
+    public DHCPPacket getRequest() {
+        return request;
+    }
+
+    void setRequest(DHCPPacket request) {
+        this.request = request;
+        this.subnet = null;
+    }
+
+    /**
+     * @return true while the script runs against a smoke request before being published
+     */
+    public boolean isSmokeTest() {
+        return smokeTest;
+    }
+
+    void setSmokeTest(boolean smokeTest) {
+        this.smokeTest = smokeTest;
+    }
+
+    public StandardServlet getServlet() {
+        if (servlet == null) {
+            servlet = (StandardServlet) getBinding().getVariable("servlet");
+        }
+        return servlet;
+    }
+
+    public Logger getLogger() {
+        if (logger == null) {
+            logger = (Logger) getBinding().getVariable("logger");
+        }
+        return logger;
+    }
+
+    public SubnetSelector getSubnets() {
+        return getServlet().getSubnetSelector();
+    }
+
+    public LeaseTable getLeases() {
+        return getServlet().getLeases();
+    }
+
+    /**
+     * @return the subnet of the request, null if none matches
+     */
+    public Subnet getSubnet() {
+        if (subnet == null && request != null) {
+            subnet = getSubnets().select(request);
+        }
+        return subnet;
+    }
+
+    /**
+     * @return an OFFER of an address, with the lease time, server identifier and
+     * options of the subnet of the request
+     */
+    public DHCPPacket offer(InetAddress address) {
+        Subnet subnet = requireSubnet();
+        return DHCPResponseFactory.makeDHCPOffer(request, address, subnet.getLeaseTime(),
+                subnet.getServerIdentifier(), null, subnet.getOptions());
+    }
+
+    /**
+     * @return an ACK of an address, with the lease time, server identifier and options
+     * of the subnet of the request
+     */
+    public DHCPPacket ack(InetAddress address) {
+        Subnet subnet = requireSubnet();
+        return DHCPResponseFactory.makeDHCPAck(request, address, subnet.getLeaseTime(),
+                subnet.getServerIdentifier(), null, subnet.getOptions());
+    }
+
+    public DHCPPacket nak(String message) {
+        return DHCPResponseFactory.makeDHCPNak(request, requireSubnet().getServerIdentifier(), message);
+    }
+
+    private Subnet requireSubnet() {
+        Subnet subnet = getSubnet();
+        if (subnet == null) {
+            throw new IllegalStateException("No subnet for request " + request);
+        }
+        return subnet;
+    }
+}
@@ -0,0 +1,558 @@
+package com.dervall.servlet;
+
+import groovy.lang.Binding;
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+import groovy.transform.ThreadInterrupt;
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.codehaus.groovy.runtime.InvokerHelper;
+import org.dhcp4java.DHCPPacket;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.dhcp4java.DHCPConstants.*;
+
+/**
+ * Groovy scripts compiled once, run through a pool of instances: a run takes an idle
+ * instance, or creates one if there is none, and gives it back when done. There are
+ * as many instances of a script as runs of it ever went on at once, whatever the
+ * number of threads.
+ *
+ * Each instance keeps its Binding, created by createBinding(), and only the request
+ * variable changes from one run to the next. Scripts must therefore not rely on
+ * variables they assign without def being gone at the next request.
+ *
+ * Nothing is checked when a script runs. A watcher thread looks at the script directory
+ * and, when any groovy file in it changed, compiles every script again into a new set,
+ * with the directory on the class path so that scripts can share classes. Each script
+ * of the new set then runs once against a smoke request (smokeRequest(), with the
+ * variable smokeTest set to true so that scripts can skip their side effects). Only a
+ * set which compiled and ran entirely is published, at once; otherwise the previous set
+ * keeps serving. The next runs take instances of the new set, those of the old one
+ * are dropped as their runs end.
+ *
+ * Scripts extending PolicyScript (see CompilerConfiguration.setScriptBaseClass) get
+ * request and smokeTest in their typed properties as well as in the Binding.
+ *
+ * Scripts are compiled with @ThreadInterrupt, which checks the interrupt flag at the
+ * start of every loop, method and closure. With a budget set (setLimits()), a watchdog
+ * thread interrupts the scripts running longer than it; blocking calls which honour
+ * interrupts stop as well. A script which times out or throws so many times in a row
+ * is bypassed for a cool-down, after which it gets one run to prove itself while the
+ * other requests are still bypassed. Runs that fail or are bypassed return the fallback
+ * given to run(). Publishing a new set gives every script a clean record.
+ *
+ * Thread-safe.
+ */
+public abstract class ScriptCache {
+    private static final Logger logger = Logger.getLogger(ScriptCache.class.getName().toLowerCase());
+
+    // Rule files are watched for subclasses loading them in reload()
+    private static final FileFilter WATCHED_FILES = new FileFilter() {
+        public boolean accept(File file) {
+            return file.isFile() && (file.getName().endsWith(".groovy") || file.getName().endsWith(".rules"));
+        }
+    };
+
+    private final File directory;
+    private final String[] names;
+    private CompilerConfiguration configuration;
+
+    private volatile ScriptSet current;
+    // State of the directory the last time it was compiled, only used by the watcher
+    private String compiledState;
+
+    private volatile Thread watcher;
+
+    // Deadlines of the runs, watched by the watchdog. A run takes an idle slot and gives
+    // it back, so there are as many slots as runs ever went on at once.
+    private final Queue<Slot> slots = new ConcurrentLinkedQueue<Slot>();
+    private final Queue<Slot> idleSlots = new ConcurrentLinkedQueue<Slot>();
+    private volatile Thread watchdog;
+
+    private final Map<String, Breaker> breakers;
+    private volatile long budgetMillis;
+    private volatile int maxFailures = Integer.MAX_VALUE;
+    private volatile long coolDownMillis;
+
+    /**
+     * Compiles the scripts. This first set is published even if some scripts are
+     * missing or do not compile, as there is nothing else to serve; they are logged.
+     * @param directory directory of the scripts
+     * @param names file names of the scripts
+     */
+    public ScriptCache(File directory, String... names) {
+        this(directory, new CompilerConfiguration(), names);
+    }
+
+    /**
+     * @param configuration how to compile the scripts
+     */
+    public ScriptCache(File directory, CompilerConfiguration configuration, String... names) {
+        this.directory = directory;
+        this.names = names.clone();
+        this.configuration = configuration;
+        Map<String, Breaker> breakers = new HashMap<String, Breaker>();
+        for (String name : names) {
+            breakers.put(name, new Breaker());
+        }
+        this.breakers = Collections.unmodifiableMap(breakers);
+        compiledState = directoryState();
+        Map<String, Class<?>> classes = compile(false);
+        current = new ScriptSet(classes, 1);
+    }
+
+    /**
+     * @return a new Binding for a script instance
+     */
+    protected abstract Binding createBinding();
+
+    /**
+     * @return the request a script is tried with before its set is published
+     */
+    protected DHCPPacket smokeRequest(String name) {
+        DHCPPacket request = new DHCPPacket();
+        request.setOp(BOOTREQUEST);
+        request.setHtype(HTYPE_ETHER);
+        request.setHlen((byte) 6);
+        request.setChaddrHex("020000000000");
+        request.setDHCPMessageType(DHCPDISCOVER);
+        return request;
+    }
+
+    /**
+     * @return version of the published set, 1 for the first one
+     */
+    public int getVersion() {
+        return current.version;
+    }
+
+    /**
+     * @param budgetMillis longest time a script may run, 0 for no limit
+     * @param maxFailures number of failures in a row after which a script is bypassed
+     * @param coolDownMillis time a failing script is bypassed
+     */
+    public synchronized void setLimits(long budgetMillis, int maxFailures, long coolDownMillis) {
+        this.budgetMillis = budgetMillis;
+        this.maxFailures = maxFailures;
+        this.coolDownMillis = coolDownMillis;
+        if (budgetMillis > 0 && watchdog == null) {
+            watchdog = new Thread(new Runnable() {
+                public void run() {
+                    watch();
+                }
+            }, "ScriptWatchdog");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+    }
+
+    /**
+     * Compiles the scripts with another configuration, see reload().
+     * @return false if the previous set was kept, the configuration is still used from
+     * now on
+     */
+    public synchronized boolean setConfiguration(CompilerConfiguration configuration) {
+        this.configuration = configuration;
+        return reload();
+    }
+
+    /**
+     * Compiles every script and publishes the new set if all of them compile and pass
+     * their smoke request.
+     * @return false if the previous set was kept
+     */
+    public synchronized boolean reload() {
+        compiledState = directoryState();
+        Map<String, Class<?>> classes = compile(true);
+        if (classes == null || !smokeTest(classes)) {
+            logger.severe("Keeping version " + current.version + " of the scripts");
+            return false;
+        }
+        current = new ScriptSet(classes, current.version + 1);
+        for (Breaker breaker : breakers.values()) {
+            breaker.reset();
+        }
+        logger.info("Published version " + current.version + " of the scripts");
+        return true;
+    }
+
+    /**
+     * @param strict whether to give up at the first script missing or failing
+     * @return the compiled scripts, null if strict and one of them failed
+     */
+    private Map<String, Class<?>> compile(boolean strict) {
+        // A loader per set, so that old versions can be collected
+        CompilerConfiguration interruptible = new CompilerConfiguration(configuration);
+        interruptible.addCompilationCustomizers(new ASTTransformationCustomizer(ThreadInterrupt.class));
+        GroovyClassLoader loader = new GroovyClassLoader(getClass().getClassLoader(), interruptible);
+        loader.addClasspath(directory.getPath());
+        Map<String, Class<?>> classes = new HashMap<String, Class<?>>();
+        for (String name : names) {
+            File file = new File(directory, name);
+            try {
+                if (!file.isFile()) {
+                    logger.severe("Missing script " + file);
+                } else {
+                    classes.put(name, loader.parseClass(file));
+                    logger.info("Compiled script " + file);
+                    continue;
+                }
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Can not read script " + file, e);
+            } catch (CompilationFailedException e) {
+                logger.log(Level.SEVERE, "Script " + file + " does not compile", e);
+            }
+            if (strict) {
+                return null;
+            }
+        }
+        return Collections.unmodifiableMap(classes);
+    }
+
+    private boolean smokeTest(Map<String, Class<?>> classes) {
+        for (Map.Entry<String, Class<?>> entry : classes.entrySet()) {
+            try {
+                Script script = InvokerHelper.createScript(entry.getValue(), createBinding());
+                setSmokeTest(script, true);
+                setRequest(script, smokeRequest(entry.getKey()));
+                execute(script);
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Script " + entry.getKey() + " fails its smoke request", e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs a script with the given request.
+     * @return what the script returned, null if it can not run, see run(String, DHCPPacket, Object)
+     */
+    public Object run(String name, DHCPPacket request) {
+        return run(name, request, null);
+    }
+
+    /**
+     * Runs a script with the given request, within the budget.
+     * @param fallback returned if there is no such script, or if it is bypassed, times
+     * out or throws
+     * @return what the script returned, or the fallback
+     */
+    public Object run(String name, DHCPPacket request, Object fallback) {
+        Breaker breaker = breakers.get(name);
+        if (breaker != null && !breaker.allow()) {
+            return fallback;
+        }
+        ScriptSet set = current;
+        Script script = null;
+        boolean succeeded = false;
+        boolean missing = false;
+        try {
+            script = take(set, name);
+            if (script == null) {
+                missing = true;
+                logger.severe("No script " + name + " in " + directory);
+                return fallback;
+            }
+            setRequest(script, request);
+            Object result = execute(script);
+            succeeded = true;
+            return result;
+        } catch (Throwable e) {
+            // assertions and stack overflows are script failures, the JVM running out of memory is not
+            if (e instanceof VirtualMachineError && !(e instanceof StackOverflowError)) {
+                throw (VirtualMachineError) e;
+            }
+            logger.log(Level.SEVERE, "Script " + name + " failed", e);
+            return fallback;
+        } finally {
+            // settled whatever happened, or a trial run would bypass the script for good
+            if (breaker != null) {
+                if (succeeded) {
+                    breaker.success();
+                } else if (missing) {
+                    breaker.release();
+                } else if (breaker.failure(maxFailures, coolDownMillis)) {
+                    logger.severe("Bypassing script " + name + " for " + coolDownMillis + " ms after "
+                            + maxFailures + " failures in a row");
+                }
+            }
+            if (script != null) {
+                setRequest(script, null);
+                set.idle.get(name).add(script);
+            }
+        }
+    }
+
+    /**
+     * Runs a script, interrupted by the watchdog past the budget.
+     * @throws ScriptTimeoutException the script ran out of time
+     */
+    private Object execute(Script script) {
+        long budget = budgetMillis;
+        if (budget <= 0) {
+            return script.run();
+        }
+        Slot current = idleSlots.poll();
+        if (current == null) {
+            current = new Slot();
+            slots.add(current);
+        }
+        synchronized (current) {
+            current.thread = Thread.currentThread();
+            current.deadline = System.currentTimeMillis() + budget;
+        }
+        try {
+            return script.run();
+        } finally {
+            boolean timedOut;
+            synchronized (current) {
+                timedOut = current.timedOut;
+                if (timedOut) {
+                    // The watchdog interrupts under this lock, so the flag is set by now,
+                    // whether the script noticed or not: do not leak it.
+                    Thread.interrupted();
+                }
+                current.thread = null;
+                current.deadline = 0;
+                current.timedOut = false;
+            }
+            idleSlots.add(current);
+            if (timedOut) {
+                // replaces what the script threw, InterruptedException most likely
+                //noinspection ThrowFromFinallyBlock
+                throw new ScriptTimeoutException(budget);
+            }
+        }
+    }
+
+    /**
+     * Interrupts the threads whose script is past its deadline.
+     */
+    private void watch() {
+        while (true) {
+            long budget = budgetMillis;
+            try {
+                Thread.sleep(Math.max(1, Math.min(budget > 0 ? budget / 4 : 1000, 1000)));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            for (Slot current : slots) {
+                synchronized (current) {
+                    if (current.thread != null && current.deadline <= now && !current.timedOut) {
+                        current.timedOut = true;
+                        current.thread.interrupt();
+                    }
+                }
+            }
+        }
+    }
+
+    private static void setRequest(Script script, DHCPPacket request) {
+        script.getBinding().setVariable("request", request);
+        if (script instanceof PolicyScript) {
+            ((PolicyScript) script).setRequest(request);
+        }
+    }
+
+    private static void setSmokeTest(Script script, boolean smokeTest) {
+        script.getBinding().setVariable("smokeTest", smokeTest);
+        if (script instanceof PolicyScript) {
+            ((PolicyScript) script).setSmokeTest(smokeTest);
+        }
+    }
+
+    /**
+     * @return an idle instance of the published set, now owned by the caller, null if
+     * there is no such script
+     */
+    Script getScript(String name) {
+        return take(current, name);
+    }
+
+    /**
+     * @return an idle instance of the set, to be given back to set.idle, null if there
+     * is no such script
+     */
+    private Script take(ScriptSet set, String name) {
+        Queue<Script> idle = set.idle.get(name);
+        if (idle == null) {
+            return null;
+        }
+        Script script = idle.poll();
+        if (script == null) {
+            script = InvokerHelper.createScript(set.classes.get(name), createBinding());
+            setSmokeTest(script, false);
+        }
+        return script;
+    }
+
+    /**
+     * Starts a daemon thread reloading the scripts when the directory changes.
+     * @param intervalMillis time between two checks
+     */
+    public synchronized void startWatcher(final long intervalMillis) {
+        if (watcher != null) {
+            return;
+        }
+        watcher = new Thread(new Runnable() {
+            public void run() {
+                while (watcher == Thread.currentThread()) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    checkModified();
+                }
+            }
+        }, "ScriptWatcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    public synchronized void stopWatcher() {
+        Thread thread = watcher;
+        watcher = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Reloads the scripts if a groovy or rules file of the directory was added, removed or
+     * changed since they were last compiled.
+     * @return true if a new set was published
+     */
+    synchronized boolean checkModified() {
+        if (directoryState().equals(compiledState)) {
+            return false;
+        }
+        return reload();
+    }
+
+    /**
+     * @return name, time and size of each file watched in the directory
+     */
+    private String directoryState() {
+        File[] files = directory.listFiles(WATCHED_FILES);
+        if (files == null) {
+            return "";
+        }
+        Arrays.sort(files);
+        StringBuilder state = new StringBuilder();
+        for (File file : files) {
+            state.append(file.getName()).append('/').append(file.lastModified())
+                    .append('/').append(file.length()).append('\n');
+        }
+        return state.toString();
+    }
+
+    /**
+     * A script ran out of its budget.
+     */
+    public static class ScriptTimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ScriptTimeoutException(long budgetMillis) {
+            super("Script ran for more than " + budgetMillis + " ms");
+        }
+    }
+
+    /**
+     * Thread and deadline of a run, guarded by the slot: no thread when idle.
+     */
+    private static class Slot {
+        Thread thread;
+        long deadline;
+        // set by the watchdog when it interrupts the thread
+        boolean timedOut;
+    }
+
+    /**
+     * Failures in a row of a script, until when it is bypassed, and whether its trial
+     * run after the cool-down is under way.
+     */
+    private static class Breaker {
+        private volatile int failures;
+        private volatile long openUntil;
+        private boolean trial;
+
+        boolean allow() {
+            if (openUntil == 0) {
+                return true;
+            }
+            synchronized (this) {
+                if (openUntil == 0) {
+                    return true;
+                }
+                if (trial || System.currentTimeMillis() < openUntil) {
+                    return false;
+                }
+                // the first request after the cool-down runs it, the others wait for its outcome
+                trial = true;
+                return true;
+            }
+        }
+
+        void success() {
+            if (failures != 0) {
+                reset();
+            }
+        }
+
+        /**
+         * @return true if the script is now bypassed
+         */
+        synchronized boolean failure(int maxFailures, long coolDownMillis) {
+            trial = false;
+            if (++failures < maxFailures) {
+                return false;
+            }
+            openUntil = System.currentTimeMillis() + coolDownMillis;
+            return true;
+        }
+
+        synchronized void release() {
+            trial = false;
+        }
+
+        synchronized void reset() {
+            failures = 0;
+            openUntil = 0;
+            trial = false;
+        }
+    }
+
+    /**
+     * Scripts published together.
+     */
+    private static class ScriptSet {
+        final Map<String, Class<?>> classes;
+        final int version;
+        // idle instances of each script
+        final Map<String, Queue<Script>> idle = new HashMap<String, Queue<Script>>();
+
+        ScriptSet(Map<String, Class<?>> classes, int version) {
+            this.classes = classes;
+            this.version = version;
+            for (String name : classes.keySet()) {
+                idle.put(name, new ConcurrentLinkedQueue<Script>());
+            }
+        }
+    }
+}
@@ -1,19 +1,27 @@
 package com.dervall.servlet;
 
+import com.dervall.subnet.LeaseJournal;
+import com.dervall.subnet.LeaseTable;
+import com.dervall.subnet.Pool;
 import com.dervall.subnet.Subnet;
+import com.dervall.subnet.SubnetSelector;
 import groovy.lang.Binding;
-import groovy.util.GroovyScriptEngine;
-import groovy.util.ResourceException;
-import groovy.util.ScriptException;
+import groovy.transform.CompileStatic;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
 import org.dhcp4java.DHCPPacket;
 import org.dhcp4java.DHCPServlet;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import static org.dhcp4java.DHCPConstants.*;
+
 /**
  * User: Per
  * Date: 2011-02-19
@@ -22,17 +30,158 @@ import java.util.logging.Logger;
 public class StandardServlet extends DHCPServlet {
     private static final Logger logger = Logger.getLogger(StandardServlet.class.getName().toLowerCase());
 
-    private GroovyScriptEngine scriptEngine;
-    private List<Subnet> subnets;
+    // Directory of the lease journal, leases are only kept in memory if not set
+    public static final String LEASE_DIRECTORY = "leaseDirectory";
+    // Number of lease changes committed to disk at once
+    public static final String LEASE_COMMIT_BATCH = "leaseCommitBatch";
+    // Longest time in ms a lease change waits for its commit, an ACK waits as long
+    public static final String LEASE_COMMIT_LATENCY = "leaseCommitLatency";
+    // Time in ms between two snapshots of the lease table
+    public static final String LEASE_SNAPSHOT_INTERVAL = "leaseSnapshotInterval";
+    // Whether leases of addresses outside every pool are dropped on startup, the server
+    // refuses to start otherwise
+    public static final String LEASE_DROP_ORPHANS = "leaseDropOrphans";
+    // Time in ms between two checks of the script files
+    public static final String SCRIPT_WATCH_INTERVAL = "scriptWatchInterval";
+    // Compile the scripts with @CompileStatic, they are then type checked against PolicyScript
+    public static final String SCRIPT_COMPILE_STATIC = "scriptCompileStatic";
+
+    // Longest time in ms a script may run, 0 (the default) for no limit
+    public static final String SCRIPT_BUDGET = "scriptBudget";
+    // Number of failures or timeouts in a row after which a script is bypassed
+    public static final String SCRIPT_MAX_FAILURES = "scriptMaxFailures";
+    // Time in ms a failing script is bypassed
+    public static final String SCRIPT_COOL_DOWN = "scriptCoolDown";
+    // Whether requests are served when onservice.groovy fails or is bypassed
+    public static final String ONSERVICE_FALLBACK = "onserviceFallback";
+
+    private static final File SCRIPT_DIRECTORY = new File("./script");
+    // Rules deciding on requests before onservice.groovy, see PolicyRules
+    private static final File RULES_FILE = new File(SCRIPT_DIRECTORY, "onservice.rules");
+
+    private final ScriptCache scripts;
+    private volatile Boolean onserviceFallback = Boolean.TRUE;
+    private volatile PolicyRules rules;
+    private final SubnetSelector subnets = new SubnetSelector();
+    private final LeaseTable leases = new LeaseTable();
+    private LeaseJournal journal;
+    private long snapshotInterval;
+    private boolean leasesOpen;
 
     public StandardServlet() throws IOException {
-        scriptEngine = new GroovyScriptEngine(new String[] {"./script"});
-        subnets = new ArrayList<Subnet>();
+        if (!SCRIPT_DIRECTORY.isDirectory()) {
+            throw new IOException("No script directory " + SCRIPT_DIRECTORY.getAbsolutePath());
+        }
+        loadRules();
+        scripts = new ScriptCache(SCRIPT_DIRECTORY, scriptConfiguration(false),
+                "onservice.groovy", "discover.groovy", "request.groovy") {
+            @Override
+            protected Binding createBinding() {
+                return getStandardBindings();
+            }
+
+            @Override
+            public synchronized boolean reload() {
+                loadRules();
+                return super.reload();
+            }
+
+            @Override
+            protected DHCPPacket smokeRequest(String name) {
+                DHCPPacket request = super.smokeRequest(name);
+                if (name.equals("request.groovy")) {
+                    request.setDHCPMessageType(DHCPREQUEST);
+                }
+                return request;
+            }
+        };
+    }
+
+    @Override
+    public void init(Properties props) {
+        if (Boolean.parseBoolean(props.getProperty(SCRIPT_COMPILE_STATIC))
+                && !scripts.setConfiguration(scriptConfiguration(true))) {
+            logger.severe("Scripts do not compile statically, keeping their dynamic version");
+        }
+        scripts.setLimits(Long.parseLong(props.getProperty(SCRIPT_BUDGET, "0")),
+                Integer.parseInt(props.getProperty(SCRIPT_MAX_FAILURES, "5")),
+                Long.parseLong(props.getProperty(SCRIPT_COOL_DOWN, "30000")));
+        onserviceFallback = Boolean.valueOf(props.getProperty(ONSERVICE_FALLBACK, "true"));
+        scripts.startWatcher(Long.parseLong(props.getProperty(SCRIPT_WATCH_INTERVAL, "2000")));
+
+        String directory = props.getProperty(LEASE_DIRECTORY);
+        if (directory == null) {
+            logger.warning("No " + LEASE_DIRECTORY + " set, leases will not survive a restart");
+            leases.start();
+            return;
+        }
+        int batch = Integer.parseInt(props.getProperty(LEASE_COMMIT_BATCH, "256"));
+        long latency = Long.parseLong(props.getProperty(LEASE_COMMIT_LATENCY, "10"));
+        snapshotInterval = Long.parseLong(props.getProperty(LEASE_SNAPSHOT_INTERVAL, "600000"));
+        // opened by openLeases(), once the subnets and their pools are known
+        journal = new LeaseJournal(new File(directory), batch, latency);
+        journal.setDropOrphans(Boolean.parseBoolean(props.getProperty(LEASE_DROP_ORPHANS)));
+    }
+
+    /**
+     * Restores the leases of the journal into the pools of the subnets, then starts
+     * journaling and expiring them. To be called after init(), once the subnets are
+     * set up and before the server starts; does nothing if leases are only kept in
+     * memory.
+     * @return number of leases restored
+     * @throws IOException the journal can not be read, or holds leases outside every
+     * pool and leaseDropOrphans is not set
+     */
+    public synchronized int openLeases() throws IOException {
+        if (journal == null || leasesOpen) {
+            return 0;
+        }
+        List<Pool> pools = new ArrayList<Pool>();
+        for (Subnet subnet : subnets.getSubnets()) {
+            pools.addAll(subnet.getPools());
+        }
+        // The pools and the client index come straight from the mapped snapshot, the
+        // leases themselves are read by the expiry thread or when first looked up
+        long start = System.currentTimeMillis();
+        int restored = journal.open(leases, pools, start);
+        leasesOpen = true;
+        logger.info("Restored " + restored + " leases from " + journal.getDirectory() + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+        leases.start();
+        journal.startSnapshots(snapshotInterval);
+        return restored;
+    }
+
+    /**
+     * Reads the rule file, keeping the current rules if it is invalid.
+     */
+    private void loadRules() {
+        if (!RULES_FILE.isFile()) {
+            rules = null;
+            return;
+        }
+        try {
+            rules = PolicyRules.load(RULES_FILE);
+            logger.info("Loaded " + rules.size() + " rules from " + RULES_FILE);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Can not read " + RULES_FILE + ", keeping the current rules", e);
+        } catch (IllegalArgumentException e) {
+            logger.severe("Invalid " + RULES_FILE + ", keeping the current rules: " + e.getMessage());
+        }
     }
 
     @Override
     public DHCPPacket service(DHCPPacket request) {
-        Boolean processRequest = executeRequestScript(request, "onservice.groovy");
+        // The rules decide on most requests, the script on what they leave to it
+        PolicyRules current = rules;
+        PolicyRules.Verdict verdict = (current == null || request == null)
+                ? PolicyRules.Verdict.SCRIPT : current.evaluate(request);
+        Boolean processRequest;
+        if (verdict == PolicyRules.Verdict.SCRIPT) {
+            processRequest = executeRequestScript(request, "onservice.groovy", onserviceFallback);
+        } else {
+            processRequest = verdict == PolicyRules.Verdict.ALLOW;
+        }
 
         if (processRequest != null && processRequest.equals(Boolean.TRUE)) {
             logger.finer("Servicing request!");
@@ -45,33 +194,46 @@ public class StandardServlet extends DHCPServlet {
 
     @Override
     protected DHCPPacket doDiscover(DHCPPacket request) {
-        return executeRequestScript(request, "discover.groovy");
+        return executeRequestScript(request, "discover.groovy", null);
     }
 
     @Override
     protected DHCPPacket doRequest(DHCPPacket request) {
-        return executeRequestScript(request, "request.groovy");
+        // Renewals of known clients are answered straight away
+        Subnet subnet = subnets.select(request);
+        if (subnet != null) {
+            DHCPPacket response = subnet.ackAddress(request, leases, System.currentTimeMillis());
+            if (response != null) {
+                return response;
+            }
+        }
+        return executeRequestScript(request, "request.groovy", null);
     }
 
-    private <T> T executeRequestScript(DHCPPacket request, String scriptName) {
-        Binding binding = getStandardBindings();
-        binding.setVariable("request", request);
-
+    private <T> T executeRequestScript(DHCPPacket request, String scriptName, T fallback) {
         T result = null;
 
         try {
             //noinspection unchecked
-            result = (T)scriptEngine.run(scriptName, binding);
-        } catch (ResourceException e) {
-            logger.log(Level.SEVERE, "Exception running service()", e);
-        } catch (ScriptException e) {
-            logger.log(Level.SEVERE, "ScriptException running service()", e);
+            result = (T)scripts.run(scriptName, request, fallback);
         } catch (ClassCastException e) {
             logger.log(Level.SEVERE, "Script " + scriptName + " returned the wrong class", e);
         }
         return result;
     }
 
+    /**
+     * @param compileStatic whether to compile the scripts with @CompileStatic
+     */
+    static CompilerConfiguration scriptConfiguration(boolean compileStatic) {
+        CompilerConfiguration configuration = new CompilerConfiguration();
+        configuration.setScriptBaseClass(PolicyScript.class.getName());
+        if (compileStatic) {
+            configuration.addCompilationCustomizers(new ASTTransformationCustomizer(CompileStatic.class));
+        }
+        return configuration;
+    }
+
     private Binding getStandardBindings() {
         Binding binding = new Binding();
         binding.setVariable("logger", logger);
@@ -80,6 +242,25 @@ public class StandardServlet extends DHCPServlet {
     }
 
     public List<Subnet> getSubnets() {
+        return subnets.getSubnets();
+    }
+
+    public SubnetSelector getSubnetSelector() {
         return subnets;
     }
+
+    public ScriptCache getScripts() {
+        return scripts;
+    }
+
+    /**
+     * @return the rules of onservice.rules, null if there is no such file
+     */
+    public PolicyRules getRules() {
+        return rules;
+    }
+
+    public LeaseTable getLeases() {
+        return leases;
+    }
 }
@@ -0,0 +1,48 @@
+package com.dervall.subnet;
+
+/**
+ * Keeps track of which addresses of a contiguous IPv4 range are in use.
+ * Addresses are IPv4 addresses as unsigned 32 bit values held in a long, see
+ * Util.inetAddress2Long().
+ */
+public interface AddressAllocator {
+    /**
+     * Takes a free address.
+     * @return the address, or -1 if the range is exhausted
+     */
+    long allocate();
+
+    /**
+     * Takes a free address, starting from a preferred one: the preferred address if it
+     * is free, otherwise the next free address after it, wrapping around at the end.
+     * @param preferred address to start from, the start of the range if outside
+     * @return the address, or -1 if the range is exhausted
+     */
+    long allocate(long preferred);
+
+    /**
+     * Marks a given address as used.
+     * @param ip address to reserve
+     * @return true if the address was free and is now reserved, false if it was
+     * already in use or is outside of the range
+     */
+    boolean reserve(long ip);
+
+    /**
+     * Gives an address back.
+     * @param ip address to release
+     * @return true if the address was in use and is now free
+     */
+    boolean release(long ip);
+
+    /**
+     * @param ip address to check
+     * @return true if the address is inside the range and not in use
+     */
+    boolean isFree(long ip);
+
+    /**
+     * @return number of free addresses left
+     */
+    long getFreeCount();
+}
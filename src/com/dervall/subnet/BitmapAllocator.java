@@ -0,0 +1,283 @@
+package com.dervall.subnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Allocator keeping one bit per address (1 = in use), with summary levels on top:
+ * a bit of level k+1 is set when the matching 64 bit word of level k is full. Finding
+ * a free address walks down one word per level, which is 3 words for a /16 and 4 for
+ * a /8, whatever the fragmentation. A /16 costs 8 kB.
+ *
+ * Thread-safe and lock-free: bits are flipped with compare-and-set on their word.
+ * Summary bits are only hints, they may lag behind for a moment when a word is filled
+ * and emptied concurrently, so a search that ends on a full word falls back to a scan.
+ * The free counter is claimed before a bit is taken, so a thread that got a claim is
+ * guaranteed to find a free bit.
+ */
+public class BitmapAllocator implements AddressAllocator {
+    private final long base;
+    private final int size;
+    /** levels[0] has one bit per address, the last level is a single word */
+    private final AtomicLongArray[] levels;
+    private final AtomicLong free;
+
+    public BitmapAllocator(long base, long end) {
+        long count = end - base + 1;
+        if (count <= 0 || count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid address range " + base + "-" + end);
+        }
+        this.base = base;
+        this.size = (int) count;
+        this.free = new AtomicLong(count);
+
+        List<AtomicLongArray> list = new ArrayList<AtomicLongArray>();
+        int bits = size;
+        do {
+            int words = (bits + 63) >>> 6;
+            AtomicLongArray level = new AtomicLongArray(words);
+            // bits past the end of a level never hold anything: mark them as used
+            if ((bits & 63) != 0) {
+                level.set(words - 1, -1L << bits);
+            }
+            list.add(level);
+            bits = words;
+        } while (bits > 1);
+        levels = list.toArray(new AtomicLongArray[list.size()]);
+    }
+
+    public long allocate() {
+        if (!claim()) {
+            return -1;
+        }
+        int start = 0;
+        for (;;) {
+            int index = findFree();
+            if (index < 0) {
+                // stale summary, a free bit exists since we hold a claim
+                index = scan(start);
+                start = (index < 0) ? 0 : index;
+            }
+            if (index >= 0 && set(index)) {
+                return base + index;
+            }
+        }
+    }
+
+    public long allocate(long preferred) {
+        if (!claim()) {
+            return -1;
+        }
+        int start = Math.max(indexOf(preferred), 0);
+        for (;;) {
+            int index = findFrom(start);
+            if (index < 0) {
+                index = findFrom(0);       // wrap around
+            }
+            if (index < 0) {
+                index = scan(start);       // stale summary
+            }
+            if (index >= 0 && set(index)) {
+                return base + index;
+            }
+            start = Math.max(index, 0);
+        }
+    }
+
+    public boolean reserve(long ip) {
+        int index = indexOf(ip);
+        if (index < 0 || isSet(index) || !claim()) {
+            return false;
+        }
+        if (!set(index)) {
+            free.incrementAndGet();     // taken meanwhile, give the claim back
+            return false;
+        }
+        return true;
+    }
+
+    public boolean release(long ip) {
+        int index = indexOf(ip);
+        if (index < 0 || !clear(index)) {
+            return false;
+        }
+        free.incrementAndGet();
+        return true;
+    }
+
+    public boolean isFree(long ip) {
+        int index = indexOf(ip);
+        return index >= 0 && !isSet(index);
+    }
+
+    public long getFreeCount() {
+        return free.get();
+    }
+
+    /**
+     * Takes one unit of the free counter.
+     * @return false if there is no free address left
+     */
+    private boolean claim() {
+        for (;;) {
+            long current = free.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (free.compareAndSet(current, current - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private int indexOf(long ip) {
+        long index = ip - base;
+        return (index >= 0 && index < size) ? (int) index : -1;
+    }
+
+    private boolean isSet(int index) {
+        return (levels[0].get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * Walks down from the top level, following the first word which is not full.
+     * @return a bit which was free a moment ago, or -1 if the summaries say all is full
+     */
+    private int findFree() {
+        int index = 0;
+        for (int k = levels.length - 1; k >= 0; k--) {
+            long word = levels[k].get(index);
+            if (word == -1L) {
+                return -1;
+            }
+            index = (index << 6) + Long.numberOfTrailingZeros(~word);
+        }
+        return index;
+    }
+
+    /**
+     * Finds the first free bit at or after a given one: climbs the levels while the
+     * rest of the current word is full, then walks down the first word which is not.
+     * @return a bit which was free a moment ago, or -1 if there is none up to the end
+     */
+    private int findFrom(int from) {
+        int k = 0;
+        int index = from;
+        long zeros;
+        for (;;) {
+            int word = index >>> 6;
+            if (word >= levels[k].length()) {
+                return -1;
+            }
+            zeros = ~levels[k].get(word) & (-1L << index);
+            if (zeros != 0) {
+                index = (word << 6) + Long.numberOfTrailingZeros(zeros);
+                break;
+            }
+            if (k == levels.length - 1) {
+                return -1;
+            }
+            index = word + 1;
+            ++k;
+        }
+        for (; k > 0; k--) {
+            zeros = ~levels[k - 1].get(index);
+            if (zeros == 0) {
+                return -1;
+            }
+            index = (index << 6) + Long.numberOfTrailingZeros(zeros);
+        }
+        return index;
+    }
+
+    /**
+     * Looks for a free bit in level 0 word by word, ignoring summaries.
+     */
+    private int scan(int from) {
+        AtomicLongArray bits = levels[0];
+        int words = bits.length();
+        int first = from >>> 6;
+        for (int i = 0; i < words; i++) {
+            int w = (first + i) % words;
+            long word = bits.get(w);
+            if (word != -1L) {
+                return (w << 6) + Long.numberOfTrailingZeros(~word);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Sets a bit of level 0.
+     * @return false if the bit was already set
+     */
+    private boolean set(int index) {
+        AtomicLongArray bits = levels[0];
+        int word = index >>> 6;
+        long mask = 1L << index;
+        long old;
+        do {
+            old = bits.get(word);
+            if ((old & mask) != 0) {
+                return false;
+            }
+        } while (!bits.compareAndSet(word, old, old | mask));
+        if ((old | mask) == -1L) {
+            refresh(0, word);       // word became full
+        }
+        return true;
+    }
+
+    /**
+     * Clears a bit of level 0.
+     * @return false if the bit was already clear
+     */
+    private boolean clear(int index) {
+        AtomicLongArray bits = levels[0];
+        int word = index >>> 6;
+        long mask = 1L << index;
+        long old;
+        do {
+            old = bits.get(word);
+            if ((old & mask) == 0) {
+                return false;
+            }
+        } while (!bits.compareAndSet(word, old, old & ~mask));
+        if (old == -1L) {
+            refresh(0, word);       // word is no longer full
+        }
+        return true;
+    }
+
+    /**
+     * Makes the summary bit of a word match whether the word is full, then carries on
+     * upwards while the fullness of the summary word changes. The word is read again
+     * after the summary is written, so that a concurrent change is never lost: whoever
+     * changes the word last also writes the summary last.
+     */
+    private void refresh(int level, int word) {
+        while (level + 1 < levels.length) {
+            AtomicLongArray parent = levels[level + 1];
+            boolean full = levels[level].get(word) == -1L;
+            int parentWord = word >>> 6;
+            long mask = 1L << word;
+            long old;
+            long updated;
+            do {
+                old = parent.get(parentWord);
+                updated = full ? (old | mask) : (old & ~mask);
+            } while (old != updated && !parent.compareAndSet(parentWord, old, updated));
+
+            if ((levels[level].get(word) == -1L) != full) {
+                continue;           // word changed meanwhile, do it again
+            }
+            if ((old == -1L) == (updated == -1L)) {
+                return;             // summary word fullness unchanged
+            }
+            ++level;
+            word = parentWord;
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.dervall.subnet;
+
+import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.HardwareAddress;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.dhcp4java.DHCPConstants.HTYPE_ETHER;
+
+/**
+ * Map from client hardware address to IPv4 address, as an int.
+ *
+ * Ethernet addresses are packed in a long and kept in a LongIntMap, which costs
+ * 12 bytes per slot and no objects. Other hardware types go to a plain HashMap.
+ *
+ * 0.0.0.0 is never leased, so NONE (0) stands for "no address".
+ *
+ * Not thread-safe, the owner must synchronize.
+ */
+public class ClientIndex {
+    public static final int NONE = 0;
+
+    private final LongIntMap macs;
+    private final Map<HardwareAddress, Integer> others = new HashMap<HardwareAddress, Integer>();
+
+    public ClientIndex() {
+        this(0);
+    }
+
+    /**
+     * @param expected number of clients to hold without resizing
+     */
+    public ClientIndex(int expected) {
+        macs = new LongIntMap(expected);
+    }
+
+    /**
+     * @return the 48 bits of an Ethernet address, -1 for other hardware types
+     */
+    public static long macKey(byte htype, byte hlen, byte[] chaddr) {
+        if (htype != HTYPE_ETHER || hlen != 6 || chaddr.length < 6) {
+            return -1;
+        }
+        long mac = 0;
+        for (int i = 0; i < 6; i++) {
+            mac = (mac << 8) | (chaddr[i] & 0xFF);
+        }
+        return mac;
+    }
+
+    public static long macKey(HardwareAddress client) {
+        byte[] address = client.getHardwareAddress();
+        return macKey(client.getHardwareType(), (byte) address.length, address);
+    }
+
+    public static long macKey(DHCPPacket packet) {
+        return macKey(packet.getHtype(), packet.getHlen(), packet.getChaddr());
+    }
+
+    public int get(HardwareAddress client) {
+        long mac = macKey(client);
+        return mac < 0 ? unbox(others.get(client)) : get(mac);
+    }
+
+    /**
+     * Looks up the client of a request, without building a HardwareAddress for Ethernet.
+     */
+    public int get(DHCPPacket packet) {
+        long mac = macKey(packet);
+        return mac < 0 ? unbox(others.get(packet.getHardwareAddress())) : get(mac);
+    }
+
+    /**
+     * @param mac Ethernet address from macKey()
+     * @return the address of the client, NONE if unknown
+     */
+    public int get(long mac) {
+        return macs.get(mac);
+    }
+
+    /**
+     * @return the previous address of the client, NONE if it had none
+     */
+    public int put(HardwareAddress client, int ip) {
+        long mac = macKey(client);
+        return mac < 0 ? unbox(others.put(client, ip)) : put(mac, ip);
+    }
+
+    public int put(long mac, int ip) {
+        if (ip == NONE) {
+            throw new IllegalArgumentException("0.0.0.0 can not be indexed");
+        }
+        return macs.put(mac, ip);
+    }
+
+    /**
+     * @return the address the client had, NONE if it was unknown
+     */
+    public int remove(HardwareAddress client) {
+        long mac = macKey(client);
+        return mac < 0 ? unbox(others.remove(client)) : remove(mac);
+    }
+
+    public int remove(long mac) {
+        return macs.remove(mac);
+    }
+
+    public int size() {
+        return macs.size() + others.size();
+    }
+
+    private static int unbox(Integer ip) {
+        return ip == null ? NONE : ip;
+    }
+}
@@ -0,0 +1,148 @@
+package com.dervall.subnet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ListIterator;
+
+/**
+ * The original allocator of Pool: a list of free fragments. Addresses are taken from
+ * the head of the first fragment, and released addresses are added back as single
+ * address fragments. Fine for small pools, but every operation scans the list.
+ * Thread-safe, through a lock on the allocator.
+ */
+public class FragmentAllocator implements AddressAllocator {
+    private final long base;
+    private final long end;
+
+    private static class Fragment {
+        private long start;
+        private long end;
+
+        public Fragment(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private List<Fragment> fragments = new ArrayList<Fragment>();
+
+    public FragmentAllocator(long base, long end) {
+        this.base = base;
+        this.end = end;
+        fragments.add(new Fragment(base, end));
+    }
+
+    public synchronized long allocate() {
+        // Find an address which is not in use
+        if (fragments.size() > 0) {
+            Fragment fragment = fragments.get(0);
+
+            long ip = fragment.start;
+            ++fragment.start;
+
+            // If the fragment has shrunk to nothing, remove it
+            if (fragment.start > fragment.end) {
+                fragments.remove(0);
+            }
+
+            return ip;
+        }
+
+        // There are no free ips to offer from this pool.
+        return -1;
+    }
+
+    public synchronized long allocate(long preferred) {
+        // The fragment holding the preferred address, or else the first one after it
+        Fragment next = null;
+        Fragment first = null;
+        int nextIndex = -1;
+        int firstIndex = -1;
+        for (int i = 0; i < fragments.size(); i++) {
+            Fragment fragment = fragments.get(i);
+            if (fragment.start <= preferred && preferred <= fragment.end) {
+                take(fragments.listIterator(i + 1), fragment, preferred);
+                return preferred;
+            }
+            if (fragment.start > preferred && (next == null || fragment.start < next.start)) {
+                next = fragment;
+                nextIndex = i;
+            }
+            if (first == null || fragment.start < first.start) {
+                first = fragment;
+                firstIndex = i;
+            }
+        }
+        if (next == null) {
+            // wrap around
+            next = first;
+            nextIndex = firstIndex;
+        }
+        if (next == null) {
+            return -1;
+        }
+        long ip = next.start;
+        take(fragments.listIterator(nextIndex + 1), next, ip);
+        return ip;
+    }
+
+    public synchronized boolean reserve(long ipLong) {
+        for (ListIterator<Fragment> iterator = fragments.listIterator(); iterator.hasNext();) {
+            Fragment fragment = iterator.next();
+
+            // If this fragment is big enough to contain this IP address
+            if (fragment.start <= ipLong && ipLong <= fragment.end) {
+                take(iterator, fragment, ipLong);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes an address from the fragment holding it.
+     * @param iterator positioned right after the fragment
+     */
+    private void take(ListIterator<Fragment> iterator, Fragment fragment, long ip) {
+        if (ip == fragment.start && ip == fragment.end) {
+            // Nothing left
+            iterator.previous();
+            iterator.remove();
+        } else if (ip == fragment.start) {
+            // Shrink fragment head
+            ++fragment.start;
+        } else if (ip == fragment.end) {
+            // Shrink fragment tail
+            --fragment.end;
+        } else {
+            long oldEnd = fragment.end;
+            fragment.end = ip - 1;
+            iterator.add(new Fragment(ip + 1, oldEnd));
+        }
+    }
+
+    public synchronized boolean release(long ip) {
+        if (ip < base || ip > end || isFree(ip)) {
+            return false;
+        }
+        fragments.add(new Fragment(ip, ip));
+        return true;
+    }
+
+    public synchronized boolean isFree(long ip) {
+        for (Fragment fragment : fragments) {
+            if (fragment.start <= ip && ip <= fragment.end) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public synchronized long getFreeCount() {
+        long free = 0;
+        for (Fragment fragment : fragments) {
+            free += fragment.end - fragment.start + 1;
+        }
+        return free;
+    }
+}
@@ -1,14 +1,68 @@
 package com.dervall.subnet;
 
+import org.dhcp4java.HardwareAddress;
+
 import java.net.Inet4Address;
 
 /**
  * User: Per
  * Date: 2011-02-19
  * Time: 20:55
+ *
+ * A lease is owned by a LeaseTable, which does all the state changes.
  */
 public class Lease {
-    private Inet4Address ip;
-    private Pool source;
-    private byte[] client;
+    private final Inet4Address ip;
+    private final Pool source;
+    private final HardwareAddress client;
+    private volatile LeaseState state;
+    private volatile long expires;
+
+    // Position in the expiry wheel of the owning table
+    final TimingWheel.Timer<Lease> timer = new TimingWheel.Timer<Lease>(this);
+    // Sequence number of the last journal record of this lease, guarded by the table lock
+    long journaled;
+
+    Lease(Inet4Address ip, Pool source, HardwareAddress client) {
+        this.ip = ip;
+        this.source = source;
+        this.client = client;
+        this.state = LeaseState.OFFERED;
+    }
+
+    public Inet4Address getIp() {
+        return ip;
+    }
+
+    public Pool getSource() {
+        return source;
+    }
+
+    public HardwareAddress getClient() {
+        return client;
+    }
+
+    public LeaseState getState() {
+        return state;
+    }
+
+    void setState(LeaseState state) {
+        this.state = state;
+    }
+
+    /**
+     * @return expiry time in milliseconds since the epoch
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    void setExpires(long expires) {
+        this.expires = expires;
+    }
+
+    @Override
+    public String toString() {
+        return "Lease " + ip.getHostAddress() + " " + state + " " + client;
+    }
 }
@@ -0,0 +1,559 @@
+package com.dervall.subnet;
+
+import org.dhcp4java.HardwareAddress;
+import org.dhcp4java.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of lease changes, with periodic snapshots.
+ *
+ * Every change made to the LeaseTable is encoded and queued by the request thread,
+ * which never touches the disk. A writer thread drains the queue and forces it to
+ * disk in one go (group commit), as soon as batchSize records are waiting or the
+ * oldest one waited maxLatencyMillis. A request thread which must not answer before
+ * its change is on disk calls sync() with the sequence number returned by append(),
+ * or LeaseTable.commit(). Changes nobody waited for are lost if the server stops
+ * within maxLatencyMillis of making them.
+ *
+ * Once a write failed nothing more is queued, and sync() throws the failure.
+ *
+ * The journal is split in segments. compact() switches to a new segment and writes
+ * a LeaseSnapshot of the table, after which the older segments are deleted. Recovery
+ * maps the snapshot and replays the segments written since.
+ *
+ * Record: int length, payload (state, ip, expires, htype, hlen, chaddr), int CRC32
+ * of the payload. A torn or corrupt record ends the segment.
+ */
+public class LeaseJournal {
+    private static final Logger logger = Logger.getLogger(LeaseJournal.class.getName().toLowerCase());
+
+    static final String SNAPSHOT = "leases.snapshot";
+    static final String SEGMENT = "leases.journal.";
+
+    private static final int MIN_PAYLOAD = 1 + 4 + 8 + 1 + 1;
+    private static final int MAX_PAYLOAD = MIN_PAYLOAD + 255;
+    // Queued in place of a record to switch to the next segment
+    private static final byte[] ROTATE = new byte[0];
+
+    private final File directory;
+    private final int batchSize;
+    private final long maxLatencyMillis;
+    private boolean dropOrphans;
+
+    private final Object lock = new Object();
+    private List<byte[]> pending = new ArrayList<byte[]>();
+    private long appended;
+    private long durable;
+    private int lastSegment;
+    private boolean closed;
+    private IOException failure;
+
+    private LeaseTable table;
+    private Thread writer;
+    private volatile Thread snapshotter;
+
+    /**
+     * @param directory where the journal and the snapshot live
+     * @param batchSize number of records which triggers a commit at once
+     * @param maxLatencyMillis longest time a record waits for its commit
+     */
+    public LeaseJournal(File directory, int batchSize, long maxLatencyMillis) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+        }
+        if (maxLatencyMillis < 0) {
+            throw new IllegalArgumentException("maxLatencyMillis must not be negative: " + maxLatencyMillis);
+        }
+        this.directory = directory;
+        this.batchSize = batchSize;
+        this.maxLatencyMillis = maxLatencyMillis;
+    }
+
+    /**
+     * @param dropOrphans whether open() drops the leases of addresses outside every
+     * pool, instead of failing; the next snapshot forgets them for good
+     */
+    public void setDropOrphans(boolean dropOrphans) {
+        this.dropOrphans = dropOrphans;
+    }
+
+    /**
+     * Restores the leases found on disk into the table, reserving their addresses in
+     * their pools, then starts journaling the changes of the table.
+     * @param table an empty lease table
+     * @param pools pools owning the addresses
+     * @param now current time in milliseconds, leases which ran out are dropped
+     * @return number of leases restored
+     * @throws IOException the journal can not be read, or holds leases outside every
+     * pool and setDropOrphans() was not set
+     */
+    public int open(LeaseTable table, Collection<Pool> pools, long now) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create lease directory " + directory);
+        }
+        File file = new File(directory, SNAPSHOT);
+        LeaseSnapshot snapshot = file.exists() ? LeaseSnapshot.map(file) : null;
+        int first = snapshot == null ? 0 : snapshot.getSegment();
+        int last = first - 1;
+        Map<Long, Record> records = new HashMap<Long, Record>();
+        for (int segment : segments()) {
+            if (segment >= first) {
+                readFrames(new File(directory, SEGMENT + segment), records);
+                last = segment;
+            }
+        }
+
+        if (!dropOrphans) {
+            // checked before anything is restored, the table and the pools stay untouched
+            int orphans = countOrphans(snapshot, records, pools, now);
+            if (orphans > 0) {
+                throw new IOException(orphans + " leases in " + directory + " are outside every pool");
+            }
+        }
+
+        // the journal is newer than the snapshot
+        int restored = 0;
+        if (snapshot != null) {
+            restored += table.restore(snapshot, new ArrayList<Pool>(pools), now, records);
+        }
+        for (Record record : records.values()) {
+            if (record.expires <= now || record.state == LeaseState.EXPIRED || record.state == LeaseState.RELEASED) {
+                continue;
+            }
+            Inet4Address ip = (Inet4Address) Util.long2InetAddress(record.ip);
+            Pool pool = findPool(pools, ip);
+            if (pool == null) {
+                logger.warning("No pool for lease of " + ip.getHostAddress() + ", dropped");
+                continue;
+            }
+            pool.reserveIp(ip);
+            table.restore(record.client, pool, ip, record.state, record.expires);
+            ++restored;
+        }
+
+        final int segment = Math.max(last + 1, first);
+        synchronized (lock) {
+            lastSegment = segment;
+        }
+        this.table = table;
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write(segment);
+            }
+        }, "LeaseJournal");
+        writer.setDaemon(true);
+        writer.start();
+        table.setJournal(this);
+        return restored;
+    }
+
+    /**
+     * Queues the current state of a lease.
+     * @return sequence number to pass to sync()
+     */
+    public long append(Lease lease) {
+        byte[] record = encode(lease);
+        synchronized (lock) {
+            if (failure != null) {
+                // the writer is gone, sync() reports the failure
+                return ++appended;
+            }
+            pending.add(record);
+            // the writer sleeps until the first record, then waits for the batch or its latency
+            if (pending.size() == 1 || pending.size() >= batchSize) {
+                lock.notifyAll();
+            }
+            return ++appended;
+        }
+    }
+
+    /**
+     * Waits until a record is on disk.
+     * @param sequence as returned by append()
+     * @throws IOException the journal could not be written
+     */
+    public void sync(long sequence) throws IOException {
+        synchronized (lock) {
+            while (durable < sequence && failure == null) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for lease commit");
+                }
+            }
+            if (durable < sequence) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the table and deletes the journal segments it covers.
+     */
+    public void compact() throws IOException {
+        List<Lease> leases;
+        long rotation;
+        int segment;
+        table.loadAll();
+        // Holding the table lock, no change can slip between the snapshot and the rotation.
+        // Leases changed after that are saved in their new state, the new segment agrees.
+        synchronized (table) {
+            leases = table.leases();
+            synchronized (lock) {
+                pending.add(ROTATE);
+                rotation = ++appended;
+                segment = ++lastSegment;
+                lock.notifyAll();
+            }
+        }
+
+        File tmp = new File(directory, SNAPSHOT + ".tmp");
+        LeaseSnapshot.write(tmp, segment, leases);
+        File snapshot = new File(directory, SNAPSHOT);
+        if (!tmp.renameTo(snapshot)) {
+            // Windows does not replace on rename
+            if (!snapshot.delete() || !tmp.renameTo(snapshot)) {
+                throw new IOException("Can not replace lease snapshot " + snapshot);
+            }
+        }
+        syncDirectory();
+
+        sync(rotation);
+        for (int old : segments()) {
+            if (old < segment && !new File(directory, SEGMENT + old).delete()) {
+                logger.warning("Can not delete lease journal segment " + old);
+            }
+        }
+    }
+
+    /**
+     * Starts a daemon thread calling compact() at a fixed interval.
+     */
+    public synchronized void startSnapshots(final long intervalMillis) {
+        if (snapshotter != null) {
+            return;
+        }
+        snapshotter = new Thread(new Runnable() {
+            public void run() {
+                while (snapshotter == Thread.currentThread()) {
+                    try {
+                        Thread.sleep(intervalMillis);
+                        compact();
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Lease snapshot failed", e);
+                    }
+                }
+            }
+        }, "LeaseSnapshot");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    /**
+     * Commits what is queued and stops journaling. The table must no longer change.
+     */
+    public void close() throws IOException {
+        Thread thread = snapshotter;
+        snapshotter = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    private void write(int segment) {
+        FileChannel channel = null;
+        try {
+            channel = openSegment(segment);
+            while (true) {
+                List<byte[]> batch;
+                long last;
+                synchronized (lock) {
+                    while (pending.isEmpty() && !closed) {
+                        lock.wait();
+                    }
+                    if (pending.isEmpty()) {
+                        break;
+                    }
+                    long deadline = System.currentTimeMillis() + maxLatencyMillis;
+                    while (pending.size() < batchSize && !closed) {
+                        long left = deadline - System.currentTimeMillis();
+                        if (left <= 0) {
+                            break;
+                        }
+                        lock.wait(left);
+                    }
+                    batch = pending;
+                    pending = new ArrayList<byte[]>();
+                    last = appended;
+                }
+
+                int from = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    if (batch.get(i) == ROTATE) {
+                        writeFrames(channel, batch.subList(from, i));
+                        channel.force(false);
+                        channel.close();
+                        channel = openSegment(++segment);
+                        from = i + 1;
+                    }
+                }
+                writeFrames(channel, batch.subList(from, batch.size()));
+                channel.force(false);
+
+                synchronized (lock) {
+                    durable = last;
+                    lock.notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            logger.warning("Lease journal writer interrupted");
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Lease journal write failed", e);
+            synchronized (lock) {
+                failure = e;
+                pending = new ArrayList<byte[]>();
+                lock.notifyAll();
+            }
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Closing lease journal", e);
+                }
+            }
+        }
+    }
+
+    private FileChannel openSegment(int segment) throws IOException {
+        File name = new File(directory, SEGMENT + segment);
+        boolean created = !name.exists();
+        RandomAccessFile file = new RandomAccessFile(name, "rw");
+        if (created) {
+            // compact() deletes the old segments once this one is durable, its entry must be too
+            try {
+                syncDirectory();
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+        }
+        file.seek(file.length());
+        return file.getChannel();
+    }
+
+    /**
+     * Forces the directory entries, so that created and renamed files survive a crash.
+     */
+    private void syncDirectory() throws IOException {
+        if (File.separatorChar == '\\') {
+            return;     // Windows can not open a directory, NTFS journals its metadata
+        }
+        FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static void writeFrames(FileChannel channel, List<byte[]> records) throws IOException {
+        int size = 0;
+        for (byte[] record : records) {
+            size += record.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (byte[] record : records) {
+            buffer.put(record);
+        }
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * @return the framed record of a lease
+     */
+    static byte[] encode(Lease lease) {
+        byte[] chaddr = lease.getClient().getHardwareAddress();
+        int length = MIN_PAYLOAD + chaddr.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length + 4);
+        buffer.putInt(length);
+        buffer.put((byte) lease.getState().ordinal());
+        buffer.putInt(Util.inetAddress2Int(lease.getIp()));
+        buffer.putLong(lease.getExpires());
+        buffer.put(lease.getClient().getHardwareType());
+        buffer.put((byte) chaddr.length);
+        buffer.put(chaddr);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 4, length);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    private static void readFrames(File file, Map<Long, Record> records) throws IOException {
+        ByteBuffer buffer = read(file);
+        if (!readFrames(buffer, records)) {
+            logger.warning("Lease journal " + file + " truncated at " + buffer.position());
+        }
+    }
+
+    /**
+     * @return false if a torn or corrupt record was found before the end
+     */
+    static boolean readFrames(ByteBuffer buffer, Map<Long, Record> records) {
+        CRC32 crc = new CRC32();
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int length = buffer.getInt();
+            if (length < MIN_PAYLOAD || length > MAX_PAYLOAD || buffer.remaining() < length + 4) {
+                buffer.position(start);
+                return false;
+            }
+            crc.reset();
+            crc.update(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+            if (buffer.getInt(buffer.position() + length) != (int) crc.getValue()) {
+                buffer.position(start);
+                return false;
+            }
+            Record record = new Record();
+            record.state = LeaseState.values()[buffer.get()];
+            record.ip = buffer.getInt() & 0xFFFFFFFFL;
+            record.expires = buffer.getLong();
+            byte htype = buffer.get();
+            byte[] chaddr = new byte[buffer.get() & 0xFF];
+            buffer.get(chaddr);
+            record.client = new HardwareAddress(htype, chaddr);
+            buffer.getInt();
+            records.put(record.ip, record);
+        }
+        return !buffer.hasRemaining();
+    }
+
+    private static ByteBuffer read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            in.close();
+        }
+    }
+
+    private List<Integer> segments() {
+        List<Integer> segments = new ArrayList<Integer>();
+        String[] names = directory.list();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT)) {
+                    try {
+                        segments.add(Integer.parseInt(name.substring(SEGMENT.length())));
+                    } catch (NumberFormatException e) {
+                        // not ours
+                    }
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    /**
+     * @return number of live leases, in the snapshot or the journal, of addresses
+     * outside every pool
+     */
+    private static int countOrphans(LeaseSnapshot snapshot, Map<Long, Record> records, Collection<Pool> pools, long now) {
+        int orphans = 0;
+        if (snapshot != null) {
+            for (int i = 0; i < snapshot.size(); i++) {
+                LeaseState state = snapshot.getState(i);
+                long ip = snapshot.getIp(i) & 0xFFFFFFFFL;
+                if (state != LeaseState.EXPIRED && state != LeaseState.RELEASED && snapshot.getExpires(i) > now
+                        && !records.containsKey(ip) && findPool(pools, ip) == null) {
+                    ++orphans;
+                }
+            }
+        }
+        for (Record record : records.values()) {
+            if (record.state != LeaseState.EXPIRED && record.state != LeaseState.RELEASED && record.expires > now
+                    && findPool(pools, record.ip) == null) {
+                ++orphans;
+            }
+        }
+        return orphans;
+    }
+
+    private static Pool findPool(Collection<Pool> pools, long ip) {
+        for (Pool pool : pools) {
+            if (pool.contains(ip)) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    private static Pool findPool(Collection<Pool> pools, Inet4Address ip) {
+        for (Pool pool : pools) {
+            if (pool.contains(ip)) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A lease as read back from disk.
+     */
+    static class Record {
+        LeaseState state;
+        long ip;
+        long expires;
+        HardwareAddress client;
+    }
+}
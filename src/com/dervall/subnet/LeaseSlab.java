@@ -0,0 +1,103 @@
+package com.dervall.subnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map from IPv4 address to lease. The leases sit in an array whose free positions
+ * are reused, and a LongIntMap gives the position of each address, so a lookup
+ * neither boxes the key nor walks a chain of entries.
+ *
+ * Not thread-safe, the owner must synchronize.
+ */
+final class LeaseSlab {
+    private static final int MIN_CAPACITY = 16;
+
+    // ip -> position in leases + 1
+    private final LongIntMap positions;
+    private Lease[] leases;
+    // stack of the positions below used which are free again
+    private int[] free;
+    private int freeCount;
+    private int used;
+
+    LeaseSlab(int expected) {
+        positions = new LongIntMap(expected);
+        int capacity = Math.max(MIN_CAPACITY, expected);
+        leases = new Lease[capacity];
+        free = new int[capacity];
+    }
+
+    /**
+     * @param ip address, as an unsigned 32 bit value
+     * @return the lease holding the address, null if none
+     */
+    Lease get(long ip) {
+        int position = positions.get(ip) - 1;
+        return (position < 0) ? null : leases[position];
+    }
+
+    /**
+     * @return the lease which held the address before, null if none
+     */
+    Lease put(long ip, Lease lease) {
+        int position = positions.get(ip) - 1;
+        if (position >= 0) {
+            Lease previous = leases[position];
+            leases[position] = lease;
+            return previous;
+        }
+        if (freeCount > 0) {
+            position = free[--freeCount];
+        } else {
+            if (used == leases.length) {
+                grow();
+            }
+            position = used++;
+        }
+        leases[position] = lease;
+        positions.put(ip, position + 1);
+        return null;
+    }
+
+    /**
+     * Removes the address if the given lease still holds it.
+     * @return true if it was removed
+     */
+    boolean remove(long ip, Lease lease) {
+        int position = positions.get(ip) - 1;
+        if (position < 0 || leases[position] != lease) {
+            return false;
+        }
+        positions.remove(ip);
+        leases[position] = null;
+        free[freeCount++] = position;
+        return true;
+    }
+
+    int size() {
+        return positions.size();
+    }
+
+    /**
+     * @return a copy of all the leases
+     */
+    List<Lease> values() {
+        List<Lease> values = new ArrayList<Lease>(size());
+        for (int i = 0; i < used; i++) {
+            if (leases[i] != null) {
+                values.add(leases[i]);
+            }
+        }
+        return values;
+    }
+
+    private void grow() {
+        Lease[] grown = new Lease[leases.length << 1];
+        System.arraycopy(leases, 0, grown, 0, used);
+        leases = grown;
+        int[] grownFree = new int[grown.length];
+        System.arraycopy(free, 0, grownFree, 0, freeCount);
+        free = grownFree;
+    }
+}
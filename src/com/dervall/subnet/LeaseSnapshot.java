@@ -0,0 +1,160 @@
+package com.dervall.subnet;
+
+import org.dhcp4java.HardwareAddress;
+import org.dhcp4java.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static org.dhcp4java.DHCPConstants.HTYPE_ETHER;
+
+/**
+ * Snapshot of the lease table in fixed size records, read through a memory mapping.
+ *
+ * Nothing is copied when the file is opened: the records are read in place, and
+ * pages are only faulted in when touched, so startup only pays for the fields it
+ * needs to rebuild the pools and the client index.
+ *
+ * Header: magic, first journal segment written after the snapshot, record count,
+ * unused. Record: ip (4), expires (8), state (1), htype (1), hlen (1), unused (1),
+ * chaddr (16).
+ */
+public class LeaseSnapshot {
+    static final int MAGIC = 0x4C534E32;  // "LSN2"
+    static final int HEADER = 16;
+    static final int RECORD = 32;
+
+    private static final int OFF_IP = 0;
+    private static final int OFF_EXPIRES = 4;
+    private static final int OFF_STATE = 12;
+    private static final int OFF_HTYPE = 13;
+    private static final int OFF_HLEN = 14;
+    private static final int OFF_CHADDR = 16;
+    private static final int CHADDR_LEN = 16;
+
+    private static final LeaseState[] STATES = LeaseState.values();
+
+    private final MappedByteBuffer buffer;
+    private final int segment;
+    private final int count;
+
+    private LeaseSnapshot(File file, MappedByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a lease snapshot: " + file);
+        }
+        segment = buffer.getInt(4);
+        count = buffer.getInt(8);
+        if (count < 0 || (long) HEADER + (long) count * RECORD > buffer.capacity()) {
+            throw new IOException("Truncated lease snapshot: " + file);
+        }
+    }
+
+    /**
+     * Maps a snapshot file.
+     */
+    public static LeaseSnapshot map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid once the file is closed
+            return new LeaseSnapshot(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes and forces a snapshot.
+     * @param file destination, overwritten
+     * @param segment first journal segment written after this snapshot
+     * @param leases leases to save
+     */
+    public static void write(File file, int segment, List<Lease> leases) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            buffer.putInt(MAGIC).putInt(segment).putInt(leases.size()).putInt(0);
+            byte[] padding = new byte[CHADDR_LEN];
+            for (Lease lease : leases) {
+                if (buffer.remaining() < RECORD) {
+                    flush(channel, buffer);
+                }
+                byte[] chaddr = lease.getClient().getHardwareAddress();
+                int hlen = Math.min(chaddr.length, CHADDR_LEN);
+                buffer.putInt(Util.inetAddress2Int(lease.getIp()));
+                buffer.putLong(lease.getExpires());
+                buffer.put((byte) lease.getState().ordinal());
+                buffer.put(lease.getClient().getHardwareType());
+                buffer.put((byte) hlen);
+                buffer.put((byte) 0);
+                buffer.put(chaddr, 0, hlen);
+                buffer.put(padding, 0, CHADDR_LEN - hlen);
+            }
+            flush(channel, buffer);
+            channel.force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public int getSegment() {
+        return segment;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public int getIp(int record) {
+        return buffer.getInt(offset(record) + OFF_IP);
+    }
+
+    public long getExpires(int record) {
+        return buffer.getLong(offset(record) + OFF_EXPIRES);
+    }
+
+    public LeaseState getState(int record) {
+        return STATES[buffer.get(offset(record) + OFF_STATE)];
+    }
+
+    /**
+     * @return the client as packed by ClientIndex.macKey(), -1 if not Ethernet
+     */
+    public long getMacKey(int record) {
+        int offset = offset(record);
+        if (buffer.get(offset + OFF_HTYPE) != HTYPE_ETHER || buffer.get(offset + OFF_HLEN) != 6) {
+            return -1;
+        }
+        return ((buffer.getShort(offset + OFF_CHADDR) & 0xFFFFL) << 32)
+                | (buffer.getInt(offset + OFF_CHADDR + 2) & 0xFFFFFFFFL);
+    }
+
+    public HardwareAddress getClient(int record) {
+        int offset = offset(record);
+        byte[] chaddr = new byte[buffer.get(offset + OFF_HLEN) & 0xFF];
+        for (int i = 0; i < chaddr.length; i++) {
+            chaddr[i] = buffer.get(offset + OFF_CHADDR + i);
+        }
+        return new HardwareAddress(buffer.get(offset + OFF_HTYPE), chaddr);
+    }
+
+    private static int offset(int record) {
+        return HEADER + record * RECORD;
+    }
+}
@@ -0,0 +1,14 @@
+package com.dervall.subnet;
+
+public enum LeaseState {
+    /** address offered in answer to a DISCOVER, waiting for the REQUEST */
+    OFFERED,
+    /** address acknowledged and in use by the client */
+    BOUND,
+    /** lease ran out, the address went back to its pool */
+    EXPIRED,
+    /** client gave the address back with a RELEASE */
+    RELEASED,
+    /** client found the address in use with a DECLINE, it is held back for a while */
+    DECLINED
+}
@@ -0,0 +1,420 @@
+package com.dervall.subnet;
+
+import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.HardwareAddress;
+import org.dhcp4java.Util;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Leases indexed by client and by IP, expired on a TimingWheel. An expired,
+ * released or declined lease leaves the table and its address goes back to its pool,
+ * at once for a release and at the end of the hold time for a decline.
+ *
+ * Leases restored from a LeaseSnapshot are only read from the mapped file when
+ * looked up, or when loadAll() gets to them.
+ *
+ * Thread-safe. Expiry is driven by expire(), either from the thread started by
+ * start() or by the caller.
+ */
+public class LeaseTable {
+    private static final Logger logger = Logger.getLogger(LeaseTable.class.getName().toLowerCase());
+
+    private final long tickMillis;
+    private final ClientIndex byClient = new ClientIndex();
+    private final LeaseSlab byIp = new LeaseSlab(0);
+    private final TimingWheel<Lease> wheel;
+
+    // Leases restored from a snapshot stay in the mapped file until first used:
+    // ip -> record + 1, the pools and the client index are already up to date
+    private final LongIntMap unloaded = new LongIntMap(0);
+    private LeaseSnapshot snapshot;
+    private List<Pool> snapshotPools;
+
+    private volatile Thread expiryThread;
+    // Set once at startup by LeaseJournal.open(), then only used under the table lock
+    private LeaseJournal journal;
+
+    public LeaseTable() {
+        this(1000, System.currentTimeMillis());
+    }
+
+    /**
+     * @param tickMillis expiry resolution, leases expire at most this late
+     * @param now current time in milliseconds
+     */
+    public LeaseTable(long tickMillis, long now) {
+        if (tickMillis <= 0) {
+            throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+        }
+        this.tickMillis = tickMillis;
+        wheel = new TimingWheel<Lease>(now / tickMillis);
+    }
+
+    /**
+     * Records an offer. An older lease of the client is replaced, and its address
+     * released if it differs.
+     * @param client client hardware address
+     * @param pool pool the address was taken from
+     * @param ip offered address
+     * @param expires when the offer runs out, in milliseconds
+     * @return the new lease
+     */
+    public Lease offer(HardwareAddress client, Pool pool, Inet4Address ip, long expires) {
+        Lease replaced;
+        Lease lease = new Lease(ip, pool, client);
+        synchronized (this) {
+            Lease holder = lookup(Util.inetAddress2Int(ip));
+            if (holder != null && !holder.getClient().equals(client)) {
+                throw new IllegalStateException(ip.getHostAddress() + " is already leased: " + holder);
+            }
+            replaced = lookup(byClient.get(client));
+            if (holder != null && holder != replaced) {
+                // the client declined this address earlier, the hold timer goes too
+                remove(holder);
+            }
+            if (replaced != null) {
+                remove(replaced);
+                if (!replaced.getIp().equals(ip)) {
+                    replaced.setState(LeaseState.RELEASED);
+                    record(replaced);
+                } else {
+                    replaced = null;
+                }
+            }
+            byClient.put(client, Util.inetAddress2Int(ip));
+            byIp.put(Util.inetAddress2Long(ip), lease);
+            schedule(lease, expires);
+            record(lease);
+        }
+        if (replaced != null) {
+            replaced.getSource().releaseIp(replaced.getIp());
+        }
+        return lease;
+    }
+
+    /**
+     * Binds the lease of a client, or extends it if already bound.
+     * @param client client hardware address
+     * @param expires end of the lease, in milliseconds
+     * @return the lease, null if the client has none
+     */
+    public synchronized Lease bind(HardwareAddress client, long expires) {
+        Lease lease = lookup(byClient.get(client));
+        if (lease == null) {
+            return null;
+        }
+        lease.setState(LeaseState.BOUND);
+        schedule(lease, expires);
+        record(lease);
+        return lease;
+    }
+
+    /**
+     * Ends the lease of a client, its address goes back to the pool.
+     * @param client client hardware address
+     * @return the released lease, null if the client had none
+     */
+    public Lease release(HardwareAddress client) {
+        Lease lease;
+        synchronized (this) {
+            lease = lookup(byClient.get(client));
+            if (lease == null) {
+                return null;
+            }
+            remove(lease);
+            lease.setState(LeaseState.RELEASED);
+            record(lease);
+        }
+        lease.getSource().releaseIp(lease.getIp());
+        return lease;
+    }
+
+    /**
+     * Marks an address as declined: the client no longer holds it, and it stays
+     * out of its pool until the hold time is over.
+     * @param ip declined address
+     * @param holdUntil when the address may be offered again, in milliseconds
+     * @return the declined lease, null if no lease holds this address
+     */
+    public synchronized Lease decline(InetAddress ip, long holdUntil) {
+        Lease lease = lookup(Util.inetAddress2Int(ip));
+        if (lease == null) {
+            return null;
+        }
+        unindexClient(lease);
+        lease.setState(LeaseState.DECLINED);
+        schedule(lease, holdUntil);
+        record(lease);
+        return lease;
+    }
+
+    /**
+     * Waits until the last change of a lease is on disk, returns at once if the table
+     * has no journal.
+     * @throws IOException the journal could not be written
+     */
+    public void commit(Lease lease) throws IOException {
+        LeaseJournal current;
+        long sequence;
+        synchronized (this) {
+            current = journal;
+            sequence = lease.journaled;
+        }
+        if (current != null) {
+            current.sync(sequence);
+        }
+    }
+
+    public synchronized Lease getByClient(HardwareAddress client) {
+        return lookup(byClient.get(client));
+    }
+
+    /**
+     * Looks up the lease of the client sending a request.
+     */
+    public synchronized Lease getByClient(DHCPPacket request) {
+        return lookup(byClient.get(request));
+    }
+
+    public synchronized Lease getByIp(InetAddress ip) {
+        return lookup(Util.inetAddress2Int(ip));
+    }
+
+    /**
+     * @return number of leases holding an address, declined ones included
+     */
+    public synchronized int size() {
+        return byIp.size() + unloaded.size();
+    }
+
+    /**
+     * Expires every lease which ran out by the given time, giving their addresses
+     * back to their pools.
+     * @param now current time in milliseconds
+     * @return the expired leases
+     */
+    public List<Lease> expire(long now) {
+        // leases still in the snapshot are not on the wheel yet
+        loadAll();
+        List<Lease> expired = new ArrayList<Lease>();
+        synchronized (this) {
+            wheel.advance(now / tickMillis, expired);
+            for (Lease lease : expired) {
+                remove(lease);
+                lease.setState(LeaseState.EXPIRED);
+                record(lease);
+            }
+        }
+        for (Lease lease : expired) {
+            lease.getSource().releaseIp(lease.getIp());
+        }
+        return expired;
+    }
+
+    /**
+     * Puts back a lease read from persistent storage, its address must already be
+     * reserved in its pool.
+     */
+    synchronized Lease restore(HardwareAddress client, Pool pool, Inet4Address ip, LeaseState state, long expires) {
+        Lease lease = new Lease(ip, pool, client);
+        lease.setState(state);
+        if (state != LeaseState.DECLINED) {
+            byClient.put(client, Util.inetAddress2Int(ip));
+        }
+        byIp.put(Util.inetAddress2Long(ip), lease);
+        schedule(lease, expires);
+        return lease;
+    }
+
+    /**
+     * Rebuilds the pools and the client index from a snapshot. The leases themselves
+     * are read from the snapshot when first looked up, or by loadAll().
+     * @param snapshot mapped snapshot
+     * @param pools pools owning the addresses, their addresses get reserved
+     * @param now current time in milliseconds, leases which ran out are skipped
+     * @param superseded addresses found in the journal, skipped as well
+     * @return number of leases restored
+     */
+    synchronized int restore(LeaseSnapshot snapshot, List<Pool> pools, long now, Map<Long, ?> superseded) {
+        int restored = 0;
+        int orphans = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            LeaseState state = snapshot.getState(i);
+            if (state == LeaseState.EXPIRED || state == LeaseState.RELEASED || snapshot.getExpires(i) <= now) {
+                continue;
+            }
+            long ip = snapshot.getIp(i) & 0xFFFFFFFFL;
+            if (!superseded.isEmpty() && superseded.containsKey(ip)) {
+                continue;
+            }
+            Pool pool = findPool(pools, ip);
+            if (pool == null) {
+                ++orphans;
+                continue;
+            }
+            pool.reserve(ip);
+            if (state != LeaseState.DECLINED) {
+                long mac = snapshot.getMacKey(i);
+                if (mac >= 0) {
+                    byClient.put(mac, (int) ip);
+                } else {
+                    byClient.put(snapshot.getClient(i), (int) ip);
+                }
+            }
+            unloaded.put(ip, i + 1);
+            ++restored;
+        }
+        if (orphans > 0) {
+            logger.warning(orphans + " leases of the snapshot have no pool, dropped");
+        }
+        this.snapshot = snapshot;
+        this.snapshotPools = pools;
+        return restored;
+    }
+
+    /**
+     * Reads every lease left in the snapshot, a few thousands at a time so that
+     * request threads are not held up.
+     */
+    void loadAll() {
+        LeaseSnapshot mapped;
+        synchronized (this) {
+            mapped = snapshot;
+        }
+        if (mapped == null) {
+            return;
+        }
+        for (int from = 0; from < mapped.size(); from += 4096) {
+            synchronized (this) {
+                int to = Math.min(from + 4096, mapped.size());
+                for (int i = from; i < to; i++) {
+                    long ip = mapped.getIp(i) & 0xFFFFFFFFL;
+                    if (unloaded.get(ip) == i + 1) {
+                        load(ip);
+                    }
+                }
+            }
+        }
+        synchronized (this) {
+            if (snapshot == mapped && unloaded.size() == 0) {
+                snapshot = null;
+                snapshotPools = null;
+            }
+        }
+    }
+
+    /**
+     * @return a copy of all the leases holding an address
+     */
+    synchronized List<Lease> leases() {
+        loadAll();
+        return byIp.values();
+    }
+
+    synchronized void setJournal(LeaseJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Starts a daemon thread calling expire() once per tick.
+     */
+    public synchronized void start() {
+        if (expiryThread != null) {
+            return;
+        }
+        expiryThread = new Thread(new Runnable() {
+            public void run() {
+                while (expiryThread == Thread.currentThread()) {
+                    try {
+                        Thread.sleep(tickMillis);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    try {
+                        expire(System.currentTimeMillis());
+                    } catch (RuntimeException e) {
+                        logger.warning("Lease expiry failed: " + e);
+                    }
+                }
+            }
+        }, "LeaseExpiry");
+        expiryThread.setDaemon(true);
+        expiryThread.start();
+    }
+
+    public synchronized void stop() {
+        Thread thread = expiryThread;
+        expiryThread = null;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    private void schedule(Lease lease, long expires) {
+        lease.setExpires(expires);
+        // round up, a lease never expires early
+        wheel.schedule(lease.timer, (expires + tickMillis - 1) / tickMillis);
+    }
+
+    private void remove(Lease lease) {
+        wheel.cancel(lease.timer);
+        unindexClient(lease);
+        byIp.remove(Util.inetAddress2Long(lease.getIp()), lease);
+    }
+
+    private void record(Lease lease) {
+        if (journal != null) {
+            lease.journaled = journal.append(lease);
+        }
+    }
+
+    private void unindexClient(Lease lease) {
+        if (byClient.get(lease.getClient()) == Util.inetAddress2Int(lease.getIp())) {
+            byClient.remove(lease.getClient());
+        }
+    }
+
+    private Lease lookup(int ip) {
+        if (ip == ClientIndex.NONE) {
+            return null;
+        }
+        Lease lease = byIp.get(ip & 0xFFFFFFFFL);
+        if (lease == null && unloaded.size() > 0) {
+            lease = load(ip & 0xFFFFFFFFL);
+        }
+        return lease;
+    }
+
+    /**
+     * Moves a lease from the snapshot to the table.
+     * @return the lease, null if the snapshot does not hold this address
+     */
+    private Lease load(long ip) {
+        int record = unloaded.remove(ip) - 1;
+        if (record < 0) {
+            return null;
+        }
+        Inet4Address address = (Inet4Address) Util.long2InetAddress(ip);
+        Lease lease = new Lease(address, findPool(snapshotPools, ip), snapshot.getClient(record));
+        lease.setState(snapshot.getState(record));
+        byIp.put(ip, lease);
+        schedule(lease, snapshot.getExpires(record));
+        return lease;
+    }
+
+    private static Pool findPool(List<Pool> pools, long ip) {
+        for (Pool pool : pools) {
+            if (pool.contains(ip)) {
+                return pool;
+            }
+        }
+        return null;
+    }
+}
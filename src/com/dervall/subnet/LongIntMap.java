@@ -0,0 +1,132 @@
+package com.dervall.subnet;
+
+/**
+ * Open addressing map from long to int (linear probing, two arrays), 12 bytes per
+ * slot and no objects. Keys must fit in 48 bits and 0 stands for "no value".
+ *
+ * Not thread-safe, the owner must synchronize.
+ */
+final class LongIntMap {
+    static final int NONE = 0;
+
+    private static final int MIN_CAPACITY = 16;
+    // Set in every stored key, so that 0 marks a free slot and the key 0 still works
+    private static final long USED = 1L << 48;
+
+    private long[] keys;
+    private int[] values;
+    private int size;
+    private int threshold;
+
+    LongIntMap(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 3 / 4 < expected) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return the value of the key, NONE if absent
+     */
+    int get(long key) {
+        long stored = key | USED;
+        for (int slot = slot(stored); ; slot = (slot + 1) & (keys.length - 1)) {
+            if (keys[slot] == stored) {
+                return values[slot];
+            }
+            if (keys[slot] == 0) {
+                return NONE;
+            }
+        }
+    }
+
+    /**
+     * @return the previous value, NONE if absent
+     */
+    int put(long key, int value) {
+        if (value == NONE) {
+            throw new IllegalArgumentException("0 can not be stored");
+        }
+        long stored = key | USED;
+        int slot = slot(stored);
+        for (; keys[slot] != 0; slot = (slot + 1) & (keys.length - 1)) {
+            if (keys[slot] == stored) {
+                int previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+        }
+        keys[slot] = stored;
+        values[slot] = value;
+        if (++size > threshold) {
+            resize(keys.length << 1);
+        }
+        return NONE;
+    }
+
+    /**
+     * @return the value the key had, NONE if absent
+     */
+    int remove(long key) {
+        long stored = key | USED;
+        int mask = keys.length - 1;
+        int slot = slot(stored);
+        for (; keys[slot] != stored; slot = (slot + 1) & mask) {
+            if (keys[slot] == 0) {
+                return NONE;
+            }
+        }
+        int previous = values[slot];
+        --size;
+
+        // Shift back the entries of the run which would no longer be found
+        int hole = slot;
+        for (int next = (hole + 1) & mask; keys[next] != 0; next = (next + 1) & mask) {
+            int home = slot(keys[next]);
+            // move unless home lies cyclically in (hole, next]
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = NONE;
+        return previous;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int slot(long key) {
+        // murmur3 finalizer, MACs of one vendor and IPs of one subnet only differ in the low bits
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key & (keys.length - 1);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        threshold = capacity * 3 / 4;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) {
+                int slot = slot(oldKeys[i]);
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & (capacity - 1);
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
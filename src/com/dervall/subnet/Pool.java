@@ -4,10 +4,6 @@ import org.dhcp4java.Util;
 
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.List;
-import java.util.ListIterator;
 
 /**
  * User: Per
@@ -15,23 +11,32 @@ import java.util.ListIterator;
  * Time: 20:54
  */
 public class Pool {
-    private long base;
-    private long end;
-
-    private class Fragment {
-        private long start;
-        private long end;
-
-        public Fragment(long start, long end) {
-            this.start = start;
-            this.end = end;
-        }
+    /**
+     * How free addresses are tracked, see the AddressAllocator implementations.
+     */
+    public enum Allocation {
+        /** list of free fragments behind a lock, the original allocator */
+        FRAGMENT,
+        /** one bit per address with summary words, lock-free, the default */
+        BITMAP,
+        /** tree of free ranges merged on release, for huge sparse pools */
+        RANGE
     }
 
-    private List<Fragment> fragments = new ArrayList<Fragment>();
+    private final long base;
+    private final long end;
 
+    // Thread-safe, Pool itself holds no mutable state
+    private final AddressAllocator allocator;
+
+    /**
+     * Creates a pool using the lock-free BITMAP allocation.
+     */
     public Pool(Inet4Address baseAddress, Inet4Address netmask) {
-        // Add one fragment to the pool
+        this(baseAddress, netmask, Allocation.BITMAP);
+    }
+
+    public Pool(Inet4Address baseAddress, Inet4Address netmask, Allocation allocation) {
         base = Util.inetAddress2Long(baseAddress);
         long mask = Util.inetAddress2Long(netmask);
 
@@ -39,8 +44,19 @@ public class Pool {
             throw new IllegalArgumentException("Base AND Mask for a Ip pool does not constitute a valid subnet");
         }
 
-        end = base | (~mask);
-        fragments.add(new Fragment(base, end));
+        end = base | (~mask & 0xFFFFFFFFL);
+        switch (allocation) {
+            case BITMAP:
+                allocator = new BitmapAllocator(base, end);
+                break;
+            case RANGE:
+                allocator = new RangeAllocator(base, end);
+                break;
+            case FRAGMENT:
+            default:
+                allocator = new FragmentAllocator(base, end);
+                break;
+        }
     }
 
     /**
@@ -49,45 +65,74 @@ public class Pool {
      * @param ip Ip to reserve
      */
     public void reserveIp(InetAddress ip) {
-
-        long ipLong = Util.inetAddress2Long(ip);
-        for (ListIterator<Fragment> iterator = fragments.listIterator(); iterator.hasNext();) {
-            Fragment fragment = iterator.next();
-
-            // If this fragment is big enough to contain this IP address
-            if (fragment.start >= ipLong && fragment.end <= ipLong) {
-                if (ipLong == fragment.start) {
-                    // Shrink fragment head
-                    ++fragment.start;
-                } else if (ipLong == fragment.end) {
-                    // Shrink fragment tail
-                    --fragment.end;
-                } else {
-                    long oldEnd = fragment.end;
-                    fragment.end = ipLong - 1;
-                    iterator.add(new Fragment(ipLong + 1, oldEnd));
-                }
-            }
-        }
+        allocator.reserve(Util.inetAddress2Long(ip));
     }
 
     public Inet4Address offerIp() {
         // Find an address which is not in use
-        if (fragments.size() > 0) {
-            Fragment fragment = fragments.get(0);
-
-            long ip = fragment.start;
-            ++fragment.start;
+        long ip = allocator.allocate();
+        if (ip < 0) {
+            // There are no free ips to offer from this pool.
+            return null;
+        }
+        return (Inet4Address) Util.long2InetAddress(ip);
+    }
 
-            // If the fragment has shrunk to nothing, remove it
-            if (fragment.start > fragment.end) {
-                fragments.remove(0);
-            }
+    /**
+     * Offers an address picked from a hash of the client: the same client always
+     * starts from the same slot, so it gets its old address back if still free, and
+     * clients arriving together start from different places in the pool.
+     * @param client chaddr or client identifier
+     * @return the address, null if the pool is exhausted
+     */
+    public Inet4Address offerIp(byte[] client) {
+        long ip = allocator.allocate(preferredIp(client));
+        if (ip < 0) {
+            return null;
+        }
+        return (Inet4Address) Util.long2InetAddress(ip);
+    }
 
-            return (Inet4Address) Util.long2InetAddress(ip);
+    /**
+     * @return the address a client starts from in this pool
+     */
+    long preferredIp(byte[] client) {
+        // FNV-1a, stable across restarts unlike identity hashes
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : client) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
         }
+        return base + (hash >>> 1) % (end - base + 1);
+    }
+
+    /**
+     * Give an IP address back to the pool, so that it can be offered again.
+     * @param ip Ip to release
+     * @return true if the address belonged to this pool and was in use
+     */
+    public boolean releaseIp(InetAddress ip) {
+        return allocator.release(Util.inetAddress2Long(ip));
+    }
+
+    public boolean contains(InetAddress ip) {
+        long ipLong = Util.inetAddress2Long(ip);
+        return base <= ipLong && ipLong <= end;
+    }
+
+    boolean contains(long ip) {
+        return base <= ip && ip <= end;
+    }
+
+    boolean reserve(long ip) {
+        return allocator.reserve(ip);
+    }
+
+    public boolean isFree(InetAddress ip) {
+        return allocator.isFree(Util.inetAddress2Long(ip));
+    }
 
-        // There are no free ips to offer from this pool.
-        return null;
+    public long getFreeCount() {
+        return allocator.getFreeCount();
     }
 }
@@ -0,0 +1,146 @@
+package com.dervall.subnet;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Allocator keeping the free addresses as ranges in a TreeMap (start -> end), which
+ * are merged with their neighbours when an address is given back. Memory follows the
+ * number of holes, not the size of the pool, so this suits huge pools with few
+ * reservations, a /8 costing a few entries where a bitmap takes 2 MB.
+ *
+ * A second TreeMap counts the ranges by size, to answer the largest free block.
+ * Every operation is O(log n) in the number of ranges.
+ *
+ * Thread-safe, all methods are synchronized.
+ */
+public class RangeAllocator implements AddressAllocator {
+    private final long base;
+    private final long end;
+
+    private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+    private final TreeMap<Long, Integer> sizes = new TreeMap<Long, Integer>();
+    private long free;
+
+    public RangeAllocator(long base, long end) {
+        if (end < base) {
+            throw new IllegalArgumentException("Invalid address range " + base + "-" + end);
+        }
+        this.base = base;
+        this.end = end;
+        add(base, end);
+    }
+
+    public synchronized long allocate() {
+        if (ranges.isEmpty()) {
+            return -1;
+        }
+        long ip = ranges.firstKey();
+        take(ip, ranges.firstEntry().getValue(), ip);
+        return ip;
+    }
+
+    public synchronized long allocate(long preferred) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(preferred);
+        if (range != null && preferred <= range.getValue()) {
+            take(range.getKey(), range.getValue(), preferred);
+            return preferred;
+        }
+        range = ranges.higherEntry(preferred);
+        if (range == null) {
+            range = ranges.firstEntry();        // wrap around
+        }
+        if (range == null) {
+            return -1;
+        }
+        long ip = range.getKey();
+        take(ip, range.getValue(), ip);
+        return ip;
+    }
+
+    public synchronized boolean reserve(long ip) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(ip);
+        if (range == null || ip > range.getValue()) {
+            return false;
+        }
+        take(range.getKey(), range.getValue(), ip);
+        return true;
+    }
+
+    public synchronized boolean release(long ip) {
+        if (ip < base || ip > end || isFree(ip)) {
+            return false;
+        }
+        long start = ip;
+        long last = ip;
+        // merge with the range ending right before and the one starting right after
+        Map.Entry<Long, Long> before = ranges.floorEntry(ip);
+        if (before != null && before.getValue() == ip - 1) {
+            start = before.getKey();
+            remove(before.getKey(), before.getValue());
+        }
+        Long after = ranges.get(ip + 1);
+        if (after != null) {
+            last = after;
+            remove(ip + 1, after);
+        }
+        add(start, last);
+        return true;
+    }
+
+    public synchronized boolean isFree(long ip) {
+        Map.Entry<Long, Long> range = ranges.floorEntry(ip);
+        return range != null && ip <= range.getValue();
+    }
+
+    public synchronized long getFreeCount() {
+        return free;
+    }
+
+    /**
+     * @return size of the largest run of free addresses, 0 if none is left
+     */
+    public synchronized long getLargestFreeBlock() {
+        return sizes.isEmpty() ? 0 : sizes.lastKey();
+    }
+
+    /**
+     * @return number of free ranges
+     */
+    public synchronized int getRangeCount() {
+        return ranges.size();
+    }
+
+    /**
+     * Removes an address from the range [start, last] holding it.
+     */
+    private void take(long start, long last, long ip) {
+        remove(start, last);
+        if (start < ip) {
+            add(start, ip - 1);
+        }
+        if (ip < last) {
+            add(ip + 1, last);
+        }
+    }
+
+    private void add(long start, long last) {
+        ranges.put(start, last);
+        long size = last - start + 1;
+        Integer count = sizes.get(size);
+        sizes.put(size, count == null ? 1 : count + 1);
+        free += size;
+    }
+
+    private void remove(long start, long last) {
+        ranges.remove(start);
+        long size = last - start + 1;
+        int count = sizes.get(size);
+        if (count == 1) {
+            sizes.remove(size);
+        } else {
+            sizes.put(size, count - 1);
+        }
+        free -= size;
+    }
+}
@@ -1,12 +1,18 @@
 package com.dervall.subnet;
 
-import org.apache.batik.ext.awt.image.renderable.AbstractRable;
+import org.dhcp4java.DHCPOption;
 import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.DHCPResponseFactory;
+import org.dhcp4java.InetCidr;
+import org.dhcp4java.Util;
 
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.dhcp4java.DHCPConstants.*;
 
 /**
  * User: Per
@@ -14,17 +20,70 @@ import java.util.List;
  * Time: 15:08
  */
 public class Subnet {
-    private List<Pool> pools = new ArrayList<Pool>();
+    // Pools are added at configuration time and read by every request thread
+    private final List<Pool> pools = new CopyOnWriteArrayList<Pool>();
+    // Network the subnet answers for, null for one only used as a default
+    private final InetCidr network;
+
+    // Lease time in seconds, server identifier and options sent in ACKs
+    private volatile int leaseTime = 86400;
+    private volatile InetAddress serverIdentifier;
+    private volatile DHCPOption[] options;
 
     public Subnet() {
+        this(null);
+    }
+
+    public Subnet(InetCidr network) {
+        this.network = network;
+    }
+
+    public InetCidr getNetwork() {
+        return network;
+    }
+
+    public int getLeaseTime() {
+        return leaseTime;
+    }
+
+    public void setLeaseTime(int leaseTime) {
+        this.leaseTime = leaseTime;
+    }
+
+    public InetAddress getServerIdentifier() {
+        return serverIdentifier;
+    }
+
+    public void setServerIdentifier(InetAddress serverIdentifier) {
+        this.serverIdentifier = serverIdentifier;
+    }
+
+    public DHCPOption[] getOptions() {
+        return options;
+    }
+
+    public void setOptions(DHCPOption[] options) {
+        this.options = options;
     }
 
     public void addPool(Pool pool) {
         pools.add(pool);
     }
 
+    public List<Pool> getPools() {
+        return pools;
+    }
+
+    /**
+     * @return true if the request was relayed from this subnet, or was not relayed
+     */
     public boolean matchesRequest(DHCPPacket request) {
-        return true;
+        InetAddress address = SubnetSelector.selectionAddress(request);
+        if (network == null || address == null) {
+            return true;
+        }
+        int mask = (int) (0xFFFFFFFFL << (32 - network.getMask()));
+        return (Util.inetAddress2Int(address) & mask) == (int) network.getAddrLong();
     }
 
     public void reserveAddress(InetAddress ip) {
@@ -43,7 +102,78 @@ public class Subnet {
         return null;
     }
 
-    public boolean ackAddress() {
-        return false;
+    /**
+     * Offers an address chosen from a hash of the client, see Pool.offerIp(byte[]).
+     */
+    public InetAddress offerAddress(DHCPPacket request) {
+        byte[] client = clientKey(request);
+        for (Pool pool : pools) {
+            Inet4Address offer = pool.offerIp(client);
+            if (offer != null) {
+                return offer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the client identifier (option 61) if present, the chaddr otherwise
+     */
+    static byte[] clientKey(DHCPPacket request) {
+        byte[] clientId = request.getOptionRaw(DHO_DHCP_CLIENT_IDENTIFIER);
+        if (clientId != null && clientId.length > 0) {
+            return clientId;
+        }
+        return request.getHardwareAddress().getHardwareAddress();
+    }
+
+    /**
+     * Answers a REQUEST from a client which holds a lease of this subnet, without
+     * going through the scripts: INIT-REBOOT (requested address, no ciaddr), RENEWING
+     * and REBINDING (ciaddr). The lease is extended and an ACK returned, or a NAK if
+     * the client asks for another address than the one it holds.
+     * @param request a DHCPREQUEST
+     * @param leases the lease table
+     * @param now current time in milliseconds
+     * @return the response, null if the request needs the scripts: no server
+     * identifier set, SELECTING state, unknown client, lease of another subnet or not bound
+     * @throws IllegalStateException the extended lease could not be committed, no ACK
+     * may go out
+     */
+    public DHCPPacket ackAddress(DHCPPacket request, LeaseTable leases, long now) {
+        InetAddress serverIdentifier = this.serverIdentifier;
+        if (serverIdentifier == null) {
+            return null;        // an ACK or NAK must carry option 54
+        }
+        if (request.containsOption(DHO_DHCP_SERVER_IDENTIFIER)) {
+            return null;        // SELECTING, answers one of our OFFERs
+        }
+        InetAddress address = request.getOptionAsInetAddr(DHO_DHCP_REQUESTED_ADDRESS);
+        InetAddress ciaddr = request.getCiaddr();
+        if (address == null) {
+            if (INADDR_ANY.equals(ciaddr)) {
+                return null;    // malformed, let the scripts decide
+            }
+            address = ciaddr;   // RENEWING or REBINDING
+        } else if (!INADDR_ANY.equals(ciaddr)) {
+            return null;        // INIT-REBOOT must not fill ciaddr
+        }
+
+        Lease lease = leases.getByClient(request);
+        if (lease == null || lease.getState() != LeaseState.BOUND || !pools.contains(lease.getSource())) {
+            return null;
+        }
+        if (!lease.getIp().equals(address)) {
+            return DHCPResponseFactory.makeDHCPNak(request, serverIdentifier, "Address not leased to client");
+        }
+        int time = leaseTime;
+        leases.bind(lease.getClient(), now + time * 1000L);
+        try {
+            // the client may not hold an address the server forgets on restart
+            leases.commit(lease);
+        } catch (IOException e) {
+            throw new IllegalStateException("Lease of " + lease.getIp().getHostAddress() + " not committed", e);
+        }
+        return DHCPResponseFactory.makeDHCPAck(request, lease.getIp(), time, serverIdentifier, null, options);
     }
 }
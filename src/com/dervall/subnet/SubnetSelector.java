@@ -0,0 +1,251 @@
+package com.dervall.subnet;
+
+import org.dhcp4java.DHCPOption;
+import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.InetCidr;
+import org.dhcp4java.Util;
+
+import java.net.InetAddress;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.dhcp4java.DHCPConstants.*;
+
+/**
+ * Finds the subnet a request comes from, in this order:
+ * - relay agent circuit id or remote id (option 82, sub-options 1 and 2) bound to a subnet
+ * - link selection (option 82, sub-option 5, rfc 3527)
+ * - subnet selection (option 118, rfc 3011)
+ * - relay address (giaddr)
+ * - the default subnet, for clients on the local link
+ *
+ * Ids are one hash lookup. Addresses go through a longest prefix match, which probes
+ * one hash table per prefix length in use, longest first: with thousands of /24 and
+ * a few other lengths that is a handful of lookups.
+ *
+ * Thread-safe. Subnets are added at configuration time: each change builds a new
+ * index which is then published at once, lookups never lock.
+ */
+public class SubnetSelector {
+    /** relay agent sub-options, rfc 3046 and rfc 3527 */
+    public static final byte AGENT_CIRCUIT_ID = 1;
+    public static final byte AGENT_REMOTE_ID = 2;
+    public static final byte AGENT_LINK_SELECTION = 5;
+
+    private volatile Index index = new Index();
+
+    // Live view of the subnets, adding to it goes through addSubnet()
+    private final List<Subnet> subnetList = new AbstractList<Subnet>() {
+        @Override
+        public Subnet get(int i) {
+            return index.subnets[i];
+        }
+
+        @Override
+        public int size() {
+            return index.subnets.length;
+        }
+
+        @Override
+        public boolean add(Subnet subnet) {
+            addSubnet(subnet);
+            return true;
+        }
+    };
+
+    /**
+     * Adds a subnet, found by its network address.
+     */
+    public synchronized void addSubnet(Subnet subnet) {
+        Index updated = index.copy();
+        updated.add(subnet);
+        updated.build();
+        index = updated;
+    }
+
+    /**
+     * Binds a relay agent circuit id to a subnet, the subnet is added if needed.
+     */
+    public synchronized void addCircuitId(String circuitId, Subnet subnet) {
+        Index updated = index.copy();
+        updated.add(subnet);
+        updated.circuitIds.put(circuitId, subnet);
+        updated.build();
+        index = updated;
+    }
+
+    /**
+     * Binds a relay agent remote id to a subnet, the subnet is added if needed.
+     */
+    public synchronized void addRemoteId(String remoteId, Subnet subnet) {
+        Index updated = index.copy();
+        updated.add(subnet);
+        updated.remoteIds.put(remoteId, subnet);
+        updated.build();
+        index = updated;
+    }
+
+    /**
+     * Sets the subnet of the clients which are not relayed.
+     */
+    public synchronized void setDefaultSubnet(Subnet subnet) {
+        Index updated = index.copy();
+        updated.add(subnet);
+        updated.defaultSubnet = subnet;
+        updated.build();
+        index = updated;
+    }
+
+    /**
+     * @return every subnet known, in the order they were added. The list follows the
+     * changes of the selector, add() is addSubnet() and subnets can not be removed.
+     */
+    public List<Subnet> getSubnets() {
+        return subnetList;
+    }
+
+    /**
+     * @param request a request from a client
+     * @return the subnet of the client, null if none matches
+     */
+    public Subnet select(DHCPPacket request) {
+        Index current = index;
+        byte[] agent = request.getOptionRaw(DHO_DHCP_AGENT_OPTIONS);
+        if (agent != null && (!current.circuitIds.isEmpty() || !current.remoteIds.isEmpty())) {
+            Map<Byte, String> ids = DHCPOption.agentOptionsToMap(agent);
+            Subnet subnet = lookup(current.circuitIds, ids.get(AGENT_CIRCUIT_ID));
+            if (subnet == null) {
+                subnet = lookup(current.remoteIds, ids.get(AGENT_REMOTE_ID));
+            }
+            if (subnet != null) {
+                return subnet;
+            }
+        }
+        int address = selectionAddress(request, agent);
+        if (address == 0) {
+            return current.defaultSubnet;
+        }
+        return current.match(address);
+    }
+
+    /**
+     * Longest prefix match.
+     * @return the most specific subnet holding the address, null if none
+     */
+    public Subnet select(InetAddress address) {
+        return index.match(Util.inetAddress2Int(address));
+    }
+
+    /**
+     * @return the address telling where the client is, as set by relays, null if
+     * the request was not relayed
+     */
+    public static InetAddress selectionAddress(DHCPPacket request) {
+        int address = selectionAddress(request, request.getOptionRaw(DHO_DHCP_AGENT_OPTIONS));
+        return address == 0 ? null : Util.int2InetAddress(address);
+    }
+
+    private static int selectionAddress(DHCPPacket request, byte[] agent) {
+        if (agent != null) {
+            // sub-options are code, length, value
+            for (int i = 0; i + 1 < agent.length; i += 2 + (agent[i + 1] & 0xFF)) {
+                if (agent[i] == AGENT_LINK_SELECTION && agent[i + 1] == 4 && i + 6 <= agent.length) {
+                    return toInt(agent, i + 2);
+                }
+            }
+        }
+        byte[] selection = request.getOptionRaw(DHO_SUBNET_SELECTION);
+        if (selection != null && selection.length == 4) {
+            return toInt(selection, 0);
+        }
+        return toInt(request.getGiaddrRaw(), 0);
+    }
+
+    private static int toInt(byte[] buf, int offset) {
+        return ((buf[offset] & 0xFF) << 24) | ((buf[offset + 1] & 0xFF) << 16)
+                | ((buf[offset + 2] & 0xFF) << 8) | (buf[offset + 3] & 0xFF);
+    }
+
+    private static Subnet lookup(Map<String, Subnet> ids, String id) {
+        return id == null ? null : ids.get(id);
+    }
+
+    /**
+     * Immutable once published.
+     */
+    private static class Index {
+        Subnet[] subnets = new Subnet[0];
+        Map<String, Subnet> circuitIds = new HashMap<String, Subnet>();
+        Map<String, Subnet> remoteIds = new HashMap<String, Subnet>();
+        Subnet defaultSubnet;
+
+        /** prefix lengths in use, longest first, and network -> subnet + 1 for each */
+        int[] lengths;
+        LongIntMap[] networks;
+
+        Index copy() {
+            Index copy = new Index();
+            copy.subnets = subnets;
+            copy.circuitIds = new HashMap<String, Subnet>(circuitIds);
+            copy.remoteIds = new HashMap<String, Subnet>(remoteIds);
+            copy.defaultSubnet = defaultSubnet;
+            return copy;
+        }
+
+        void add(Subnet subnet) {
+            for (Subnet known : subnets) {
+                if (known == subnet) {
+                    return;
+                }
+            }
+            subnets = Arrays.copyOf(subnets, subnets.length + 1);
+            subnets[subnets.length - 1] = subnet;
+        }
+
+        void build() {
+            List<Integer> used = new ArrayList<Integer>();
+            LongIntMap[] byLength = new LongIntMap[33];
+            for (int i = 0; i < subnets.length; i++) {
+                InetCidr network = subnets[i].getNetwork();
+                if (network == null) {
+                    continue;
+                }
+                int length = network.getMask();
+                if (byLength[length] == null) {
+                    byLength[length] = new LongIntMap(0);
+                    used.add(length);
+                }
+                // first added wins for a duplicate network
+                if (byLength[length].get(network.getAddrLong()) == LongIntMap.NONE) {
+                    byLength[length].put(network.getAddrLong(), i + 1);
+                }
+            }
+            Collections.sort(used, Collections.reverseOrder());
+            lengths = new int[used.size()];
+            networks = new LongIntMap[used.size()];
+            for (int i = 0; i < lengths.length; i++) {
+                lengths[i] = used.get(i);
+                networks[i] = byLength[lengths[i]];
+            }
+        }
+
+        Subnet match(int address) {
+            if (lengths == null) {
+                return null;
+            }
+            for (int i = 0; i < lengths.length; i++) {
+                int mask = (int) (0xFFFFFFFFL << (32 - lengths[i]));
+                int found = networks[i].get((address & mask) & 0xFFFFFFFFL);
+                if (found != LongIntMap.NONE) {
+                    return subnets[found - 1];
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.dervall.subnet;
+
+import java.util.List;
+
+/**
+ * Hierarchical timing wheel: four wheels of 64 slots, each slot of a wheel spanning
+ * a full turn of the wheel below. With one second ticks this covers 194 days; later
+ * deadlines wait on the outer wheel and are looked at again each time it turns.
+ *
+ * Scheduling and cancelling are O(1). Advancing by one tick expires one slot of the
+ * inner wheel, and every 64 ticks moves one slot of an outer wheel down, so the cost
+ * per tick does not depend on how many timers are pending.
+ *
+ * Not thread-safe, the owner must synchronize.
+ */
+public class TimingWheel<T> {
+    private static final int BITS = 6;
+    private static final int SLOTS = 1 << BITS;
+    private static final int MASK = SLOTS - 1;
+    private static final int LEVELS = 4;
+
+    /**
+     * A pending timer, linked in the slot it waits in.
+     */
+    public static class Timer<T> {
+        private final T payload;
+        private long deadline;
+        private Timer<T> prev;
+        private Timer<T> next;
+
+        public Timer(T payload) {
+            this.payload = payload;
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+
+        public boolean isScheduled() {
+            return next != null;
+        }
+
+        private void unlink() {
+            prev.next = next;
+            next.prev = prev;
+            prev = null;
+            next = null;
+        }
+    }
+
+    /** slots[level][slot] is the sentinel of a circular list */
+    private final Timer<T>[][] slots;
+    private long now;
+    private int size;
+
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long startTick) {
+        slots = (Timer<T>[][]) new Timer<?>[LEVELS][SLOTS];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < SLOTS; slot++) {
+                Timer<T> sentinel = new Timer<T>(null);
+                sentinel.prev = sentinel;
+                sentinel.next = sentinel;
+                slots[level][slot] = sentinel;
+            }
+        }
+        now = startTick;
+    }
+
+    /**
+     * @return the last tick processed by advance()
+     */
+    public long getTick() {
+        return now;
+    }
+
+    /**
+     * @return number of pending timers
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedules a timer, or moves it if it is already pending.
+     * @param timer the timer
+     * @param deadline tick at which it expires, a past tick expires on next advance()
+     */
+    public void schedule(Timer<T> timer, long deadline) {
+        if (timer.isScheduled()) {
+            timer.unlink();
+            --size;
+        }
+        timer.deadline = deadline;
+        insert(timer, now + 1);
+        ++size;
+    }
+
+    /**
+     * @param timer timer to cancel
+     * @return true if the timer was pending
+     */
+    public boolean cancel(Timer<T> timer) {
+        if (!timer.isScheduled()) {
+            return false;
+        }
+        timer.unlink();
+        --size;
+        return true;
+    }
+
+    /**
+     * Moves time forward, collecting the payload of each expired timer.
+     * @param tick new current tick, nothing happens if it is in the past
+     * @param expired receives the payloads, in deadline order
+     */
+    public void advance(long tick, List<T> expired) {
+        while (now < tick) {
+            ++now;
+            // bring down the outer slots which now fall within reach, level by level
+            long t = now;
+            for (int level = 1; level < LEVELS && (t & MASK) == 0; level++) {
+                t >>>= BITS;
+                cascade(slots[level][(int) (t & MASK)]);
+            }
+            Timer<T> sentinel = slots[0][(int) (now & MASK)];
+            while (sentinel.next != sentinel) {
+                Timer<T> timer = sentinel.next;
+                timer.unlink();
+                --size;
+                expired.add(timer.payload);
+            }
+        }
+    }
+
+    private void cascade(Timer<T> sentinel) {
+        Timer<T> timer = sentinel.next;
+        sentinel.next = sentinel;
+        sentinel.prev = sentinel;
+        while (timer != sentinel) {
+            Timer<T> next = timer.next;
+            timer.prev = null;
+            timer.next = null;
+            insert(timer, now);
+            timer = next;
+        }
+    }
+
+    /**
+     * Links a timer in the slot where it waits.
+     * @param first earliest tick it may expire at, slots of earlier ticks are processed
+     */
+    private void insert(Timer<T> timer, long first) {
+        long deadline = Math.max(timer.deadline, first);
+        long delta = deadline - now;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1)))) {
+            ++level;
+        }
+        int slot;
+        if (delta >= (1L << (BITS * LEVELS))) {
+            // too far away: park it in the last slot reachable on the outer wheel
+            slot = (int) (((now >>> (BITS * level)) - 1) & MASK);
+        } else {
+            slot = (int) ((deadline >>> (BITS * level)) & MASK);
+        }
+        Timer<T> sentinel = slots[level][slot];
+        timer.prev = sentinel.prev;
+        timer.next = sentinel;
+        sentinel.prev.next = timer;
+        sentinel.prev = timer;
+    }
+}
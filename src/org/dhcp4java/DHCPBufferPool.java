@@ -0,0 +1,101 @@
+/*
+ *	This file is part of dhcp4java, a DHCP API for the Java language.
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.dhcp4java;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of fixed-size <tt>ByteBuffer</tt> used by the NIO receive loop.
+ *
+ * <p>Buffers are pre-allocated, handed to a receiving thread, travel with the
+ * request through the servlet dispatcher and come back once the response is sent.
+ * If the pool is exhausted a heap buffer is allocated so the receiver never blocks:
+ * this happens under load, when a direct allocation would be both slow and off-heap.
+ * Such buffers are dropped on release and left to the garbage collector, the pool
+ * only takes back buffers of its own kind.
+ *
+ * <p>This class is thread-safe.
+ */
+final class DHCPBufferPool {
+
+    private final BlockingQueue<ByteBuffer> free;
+    private final int                       bufferSize;
+    private final boolean                   direct;
+    /** number of buffers allocated because the pool was empty */
+    private final AtomicLong                misses = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity number of buffers kept in the pool, must be positive.
+     * @param bufferSize size in bytes of each buffer.
+     * @param direct whether buffers are allocated outside of the java heap.
+     */
+    DHCPBufferPool(int capacity, int bufferSize, boolean direct) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.free       = new ArrayBlockingQueue<ByteBuffer>(capacity);
+        this.bufferSize = bufferSize;
+        this.direct     = direct;
+        for (int i = 0; i < capacity; i++) {
+            this.free.offer(this.allocate());
+        }
+    }
+
+    /**
+     * Borrows a cleared buffer from the pool.
+     *
+     * @return a buffer ready to receive a datagram, never <tt>null</tt>.
+     */
+    ByteBuffer acquire() {
+        ByteBuffer buf = this.free.poll();
+        if (buf == null) {
+            this.misses.incrementAndGet();
+            return ByteBuffer.allocate(this.bufferSize);
+        }
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Gives a buffer back to the pool.
+     *
+     * @param buf buffer previously obtained through <tt>acquire()</tt>, may be <tt>null</tt>.
+     */
+    void release(ByteBuffer buf) {
+        if ((buf != null) && (buf.capacity() == this.bufferSize) && (buf.isDirect() == this.direct)) {
+            this.free.offer(buf);		// silently dropped if pool is full
+        }
+    }
+
+    /**
+     * @return the number of buffers allocated outside of the pool.
+     */
+    long getMisses() {
+        return this.misses.get();
+    }
+
+    private ByteBuffer allocate() {
+        return this.direct ? ByteBuffer.allocateDirect(this.bufferSize)
+                           : ByteBuffer.allocate(this.bufferSize);
+    }
+}
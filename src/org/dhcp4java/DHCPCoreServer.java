@@ -23,11 +23,17 @@ import java.io.InputStream;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
 import java.util.Properties;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -46,6 +52,38 @@ import java.util.logging.Logger;
  * <tt>serverAddress=127.0.0.1:67</tt> <i>[address:port]</i>
  * <br>
  * <tt>serverThreads=2</tt> <i>[number of concurrent threads for servlets]</i>
+ * <br>
+ * <tt>serverIo=socket</tt> <i>[I/O engine: <tt>socket</tt> for a blocking <tt>DatagramSocket</tt>,
+ * 		<tt>nio</tt> for a <tt>DatagramChannel</tt> reading into pooled direct buffers]</i>
+ * <br>
+ * <tt>serverIoBuffers=64</tt> <i>[number of pooled receive and send buffers for the <tt>nio</tt> engine,
+ * 		requests beyond it get heap buffers]</i>
+ * <br>
+ * <tt>serverSockets=1</tt> <i>[number of sockets bound to <tt>serverAddress</tt>, each with its
+ * 		own receive thread; above 1 they share the port through <tt>SO_REUSEPORT</tt>, and the
+ * 		kernel spreads unicast clients (relayed or renewing) among them]</i>
+ * <br>
+ * <tt>serverUnicastAddress=</tt> <i>[interface address the extra sockets bind to, required
+ * 		when <tt>serverSockets</tt> is above 1 and <tt>serverAddress</tt> is the wildcard address:
+ * 		a broadcast reaches every socket of a <tt>SO_REUSEPORT</tt> group, so only the first
+ * 		socket listens on the wildcard address and receives them]</i>
+ * <br>
+ * <tt>serverQueueSize=20</tt> <i>[requests waiting for a free servlet thread]</i>
+ * <br>
+ * <tt>serverShedPolicy=newest</tt> <i>[request dropped when the queue is full: <tt>newest</tt>,
+ * 		<tt>oldest</tt>, or <tt>discover</tt> to shed DISCOVERs before any other message]</i>
+ * <br>
+ * <tt>serverDispatch=pool</tt> <i>[<tt>pool</tt> runs servlets on the platform thread pool above,
+ * 		<tt>virtual</tt> starts one virtual thread per request (Java 21)]</i>
+ * <br>
+ * <tt>serverVirtualThreadsMax=1024</tt> <i>[requests running at once in <tt>virtual</tt> mode]</i>
+ * <br>
+ * <tt>serverPacketPool=0</tt> <i>[number of <tt>DHCPPacket</tt> objects recycled per servlet thread,
+ * 		0 to disable; when enabled, servlets must not keep the request or response once they
+ * 		return (<tt>clone()</tt> them instead)]</i>
+ * <br>
+ * <tt>serverPacketPoolDebug=false</tt> <i>[never reuse recycled packets, and fail on any access
+ * 		to them, to track down servlets keeping packets]</i>
  * </blockquote>
  *
  * <p>Note: this class implements <tt>Runnable</tt> allowing it to be run
@@ -70,25 +108,38 @@ import java.util.logging.Logger;
 public class DHCPCoreServer implements Runnable {
 
     private static final Logger logger = Logger.getLogger(DHCPCoreServer.class.getName().toLowerCase());
-    private   static final int    BOUNDED_QUEUE_SIZE = 20;
 
     /** default MTU for ethernet */
     protected static final int    PACKET_SIZE        = 1500;
 
     /** the servlet it must run */
     protected DHCPServlet        servlet;
-    /** working threads pool. */
+    /** working threads pool, <tt>null</tt> in virtual dispatch mode. */
     protected ThreadPoolExecutor threadPool;
+    /** virtual threads executor, <tt>null</tt> in pool dispatch mode. */
+    private   DHCPVirtualExecutor virtualExecutor;
+    /** admission control when the working threads pool is saturated. */
+    private   DHCPLoadShedder    loadShedder;
     /** Consolidated parameters of the server. */
     protected Properties         properties;
     /** Reference of user-provided parameters */
     protected Properties         userProps;
     /** IP address and port for the server */ 
     private   InetSocketAddress sockAddress = null;
-    /** The socket for receiving and sending. */
-    private   DatagramSocket     serverSocket;
+    /** The sockets for receiving and sending, one per receive thread. */
+    private   DatagramSocket[]   serverSockets;
+    /** The channels for receiving and sending, when running the nio engine. */
+    private   DatagramChannel[]  serverChannels;
+    /** Receive buffers for the nio engine. */
+    private   DHCPBufferPool     bufferPool;
+    /** Recycled packets for servlet threads, <tt>null</tt> if disabled. */
+    DHCPPacketPool               packetPool;
+    /** Datagrams dropped by the servlet's classifier on the receive threads. */
+    private final AtomicLong     rejected = new AtomicLong();
     /** do we need to stop the server? */
-    private   boolean			 stopped = false;
+    private   volatile boolean	 stopped = false;
+    /** Receive threads, index is the shard they listen to. */
+    private   volatile Thread[]  listeners;
     /**
      * Constructor
      *
@@ -125,7 +176,7 @@ public class DHCPCoreServer implements Runnable {
      *
      */
     protected void init() throws DHCPServerInitException {
-        if (this.serverSocket != null) {
+        if ((this.serverSockets != null) || (this.serverChannels != null)) {
             throw new IllegalStateException("Server already initialized");
         }
 
@@ -152,46 +203,161 @@ public class DHCPCoreServer implements Runnable {
                 throw new DHCPServerInitException("Cannot find which SockAddress to open");
             }
 
-            // open socket for listening and sending
-            this.serverSocket = new DatagramSocket(null);
-            this.serverSocket.setBroadcast(true);		// allow sending broadcast
-            this.serverSocket.bind(sockAddress);
+            // open sockets for listening and sending
+            int numSockets = Integer.valueOf(this.properties.getProperty(SERVER_SOCKETS));
+            if (numSockets < 1) {
+                throw new DHCPServerInitException(SERVER_SOCKETS + " must be at least 1: " + numSockets);
+            }
+            boolean reusePort = (numSockets > 1);		// let the kernel spread load among sockets
+            InetSocketAddress[] bindAddresses = this.getBindAddresses(numSockets);
+            String io = this.properties.getProperty(SERVER_IO);
+            if (SERVER_IO_NIO.equalsIgnoreCase(io)) {
+                int numBuffers = Integer.valueOf(this.properties.getProperty(SERVER_IO_BUFFERS));
+                this.bufferPool = new DHCPBufferPool(numBuffers, PACKET_SIZE, true);
+                this.serverChannels = new DatagramChannel[numSockets];
+                for (int i = 0; i < numSockets; i++) {
+                    DatagramChannel channel = DatagramChannel.open();
+                    this.serverChannels[i] = channel;
+                    if (reusePort) {
+                        if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                            throw new DHCPServerInitException("SO_REUSEPORT not supported on this platform");
+                        }
+                        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    channel.socket().setBroadcast(true);		// allow sending broadcast
+                    channel.socket().bind(bindAddresses[i]);
+                }
+            } else if (SERVER_IO_SOCKET.equalsIgnoreCase(io)) {
+                this.serverSockets = new DatagramSocket[numSockets];
+                for (int i = 0; i < numSockets; i++) {
+                    DatagramSocket socket = new DatagramSocket(null);
+                    this.serverSockets[i] = socket;
+                    if (reusePort) {
+                        if (!socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                            throw new DHCPServerInitException("SO_REUSEPORT not supported on this platform");
+                        }
+                        socket.setReuseAddress(true);
+                        socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    }
+                    socket.setBroadcast(true);		// allow sending broadcast
+                    socket.bind(bindAddresses[i]);
+                }
+            } else {
+                throw new DHCPServerInitException("Unknown " + SERVER_IO + " engine: " + io);
+            }
 
             // initialize Thread Pool
             int numThreads = Integer.valueOf(this.properties.getProperty(SERVER_THREADS));
             int maxThreads = Integer.valueOf(this.properties.getProperty(SERVER_THREADS_MAX));
             int keepaliveThreads = Integer.valueOf(this.properties.getProperty(SERVER_THREADS_KEEPALIVE));
-            this.threadPool = new ThreadPoolExecutor(numThreads, maxThreads,
-                                                     keepaliveThreads, TimeUnit.MILLISECONDS,
-                                                     new ArrayBlockingQueue<Runnable>(BOUNDED_QUEUE_SIZE),
-                                                     new ServerThreadFactory());
-            this.threadPool.prestartAllCoreThreads();
+            int queueSize = Integer.valueOf(this.properties.getProperty(SERVER_QUEUE_SIZE));
+            this.loadShedder = new DHCPLoadShedder(DHCPLoadShedder.parsePolicy(this.properties.getProperty(SERVER_SHED_POLICY)));
+            String dispatchMode = this.properties.getProperty(SERVER_DISPATCH);
+            if (SERVER_DISPATCH_VIRTUAL.equalsIgnoreCase(dispatchMode)) {
+                int maxVirtual = Integer.valueOf(this.properties.getProperty(SERVER_VIRTUAL_THREADS_MAX));
+                this.virtualExecutor = new DHCPVirtualExecutor(maxVirtual, queueSize, this.loadShedder,
+                                                               "DHCPCoreServer-virtual-");
+            } else if (SERVER_DISPATCH_POOL.equalsIgnoreCase(dispatchMode)) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(numThreads, maxThreads,
+                                                                 keepaliveThreads, TimeUnit.MILLISECONDS,
+                                                                 new ArrayBlockingQueue<Runnable>(queueSize),
+                                                                 new ServerThreadFactory(),
+                                                                 this.loadShedder);
+                pool.prestartAllCoreThreads();
+                this.threadPool = pool;
+            } else {
+                throw new DHCPServerInitException("Unknown " + SERVER_DISPATCH + " mode: " + dispatchMode);
+            }
+
+            int poolSize = Integer.valueOf(this.properties.getProperty(SERVER_PACKET_POOL));
+            if (poolSize > 0) {
+                boolean debug = Boolean.valueOf(this.properties.getProperty(SERVER_PACKET_POOL_DEBUG));
+                this.packetPool = new DHCPPacketPool(poolSize, debug);
+            }
 
             // now intialize the servlet
             this.servlet.setServer(this);
             this.servlet.init(this.properties);
         } catch (DHCPServerInitException e) {
+            this.closeSockets();
+            this.serverSockets = null;
+            this.serverChannels = null;
         	throw e;		// transparently re-throw
         } catch (Exception e) {
-            this.serverSocket = null;
+            this.closeSockets();
+            this.serverSockets = null;
+            this.serverChannels = null;
             logger.log(Level.SEVERE, "Cannot open socket", e);
             throw new DHCPServerInitException("Unable to init server", e);
         }
     }
 
-    /*
-     * (non-Javadoc)
+    /**
+     * Returns the address each socket binds to.
+     *
+     * <p>A broadcast is delivered to every socket of a <tt>SO_REUSEPORT</tt> group, and would
+     * be serviced once per socket. On the wildcard address the first socket alone receives
+     * broadcasts, the others are bound to <tt>serverUnicastAddress</tt> and share the unicast
+     * traffic sent to it.
      *
-     * @see java.lang.Runnable#run()
+     * @param numSockets number of sockets
+     * @return the address of each socket, all of them <tt>sockAddress</tt> unless it is the
+     * 			wildcard address.
+     * @throws DHCPServerInitException several sockets on the wildcard address, without
+     * 			<tt>serverUnicastAddress</tt>.
+     */
+    private InetSocketAddress[] getBindAddresses(int numSockets) throws DHCPServerInitException {
+        InetSocketAddress[] addresses = new InetSocketAddress[numSockets];
+        Arrays.fill(addresses, this.sockAddress);
+        if ((numSockets > 1) && this.sockAddress.getAddress().isAnyLocalAddress()) {
+            String unicast = this.properties.getProperty(SERVER_UNICAST_ADDRESS);
+            if ((unicast == null) || (unicast.length() == 0)) {
+                throw new DHCPServerInitException(SERVER_SOCKETS + " above 1 on a wildcard address requires "
+                                                  + SERVER_UNICAST_ADDRESS + ", broadcasts would be serviced once per socket");
+            }
+            InetSocketAddress shared = new InetSocketAddress(unicast, this.sockAddress.getPort());
+            if (shared.isUnresolved() || shared.getAddress().isAnyLocalAddress()) {
+                throw new DHCPServerInitException("Invalid " + SERVER_UNICAST_ADDRESS + ": " + unicast);
+            }
+            for (int i = 1; i < numSockets; i++) {
+                addresses[i] = shared;
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Receive one datagram on the first socket and hand it over to the thread pool.
+     *
+     * <p>The receive loop of the first socket, the only one by default, calls this
+     * method; override it to change how requests are received.
      */
     protected void dispatch() {
+        this.dispatch(0);
+    }
+
+    /**
+     * Receive one datagram on the socket <tt>shard</tt> and hand it over to the
+     * thread pool.
+     *
+     * <p>The receive loops of the extra sockets (<tt>serverSockets</tt> above 1) call
+     * this method, the first one goes through <tt>dispatch()</tt>.
+     *
+     * @param shard index of the socket, between 0 and <tt>serverSockets</tt> - 1
+     */
+    protected void dispatch(int shard) {
+        if (this.serverChannels != null) {
+            this.dispatchChannel(shard);
+            return;
+        }
         try {
             DatagramPacket requestDatagram = new DatagramPacket(
                     new byte[PACKET_SIZE], PACKET_SIZE);
             logger.finer("Waiting for packet");
 
             // receive datagram
-            this.serverSocket.receive(requestDatagram);
+            this.serverSockets[shard].receive(requestDatagram);
 
             if (logger.isLoggable(Level.FINER)) {
                 StringBuilder sbuf = new StringBuilder("Received packet from ");
@@ -203,28 +369,150 @@ public class DHCPCoreServer implements Runnable {
                 logger.finer(sbuf.toString());
             }
 
+            // drop junk right away, it never takes a seat in the queue
+            int verdict = this.servlet.classify(ByteBuffer.wrap(requestDatagram.getData(),
+                                                requestDatagram.getOffset(), requestDatagram.getLength()));
+            if (verdict < 0) {
+                this.rejected.incrementAndGet();
+                return;
+            }
+
             // send work to thread pool
-            DHCPServletDispatcher dispatcher = new DHCPServletDispatcher(this, servlet, requestDatagram);
-            threadPool.execute(dispatcher);
+            DHCPServletDispatcher dispatcher = new DHCPServletDispatcher(this, servlet, requestDatagram, shard);
+            dispatcher.setDHCPMessageType((byte) verdict);
+            dispatchExecutor().execute(dispatcher);
+        } catch (IOException e) {
+	        logger.log(Level.FINE, "IOException", e);
+        }
+    }
+    /**
+     * @return the executor requests are dispatched to, depending on the dispatch mode.
+     */
+    private ExecutorService dispatchExecutor() {
+        return (this.threadPool != null) ? this.threadPool : this.virtualExecutor;
+    }
+
+    /**
+     * Receive one datagram from the channel into a pooled buffer and hand it
+     * over to the thread pool, without copying it.
+     *
+     * <p>The buffer is given back to the pool by the dispatcher, once the
+     * response has been sent.
+     */
+    private void dispatchChannel(int shard) {
+        ByteBuffer buffer = this.bufferPool.acquire();
+        try {
+            logger.finer("Waiting for packet");
+
+            // receive datagram
+            InetSocketAddress sender = (InetSocketAddress) this.serverChannels[shard].receive(buffer);
+            buffer.flip();
+
+            if (logger.isLoggable(Level.FINER)) {
+                StringBuilder sbuf = new StringBuilder("Received packet from ");
+
+                DHCPPacket.appendHostAddress(sbuf, sender.getAddress());
+                sbuf.append('(')
+                    .append(sender.getPort())
+                    .append(')');
+                logger.finer(sbuf.toString());
+            }
+
+            // drop junk right away, it never takes a seat in the queue
+            int verdict = this.servlet.classify(buffer);
+            if (verdict < 0) {
+                this.rejected.incrementAndGet();
+                return;			// buffer released below
+            }
+
+            // send work to thread pool, buffer ownership goes with it
+            DHCPServletDispatcher dispatcher = new DHCPServletDispatcher(this, servlet, buffer, sender, shard);
+            dispatcher.setDHCPMessageType((byte) verdict);
+            dispatchExecutor().execute(dispatcher);
+            buffer = null;
         } catch (IOException e) {
 	        logger.log(Level.FINE, "IOException", e);
+        } finally {
+            this.bufferPool.release(buffer);	// no-op once handed over
+        }
+    }
+
+    /**
+     * Gives a receive buffer back to the pool once its request is done.
+     *
+     * <p>This is a callback method used by servlet dispatchers.
+     */
+    void releaseBuffer(ByteBuffer buffer) {
+        if (this.bufferPool != null) {
+            this.bufferPool.release(buffer);
         }
     }
+
     /**
      * Send back response packet to client.
      *
-     * <p>This is a callback method used by servlet dispatchers to send back responses.
+     * <p>This is a callback method used by servlet dispatchers to send back responses
+     * to requests received on the first socket, the only one by default.
      */
     protected void sendResponse(DatagramPacket responseDatagram) {
+        this.sendResponse(responseDatagram, 0);
+    }
+
+    /**
+     * Send back response packet to client, on the socket the request came from.
+     *
+     * <p>This is the callback method for requests received on the extra sockets
+     * (<tt>serverSockets</tt> above 1), the first one goes through
+     * <tt>sendResponse(DatagramPacket)</tt>.
+     */
+    protected void sendResponse(DatagramPacket responseDatagram, int shard) {
         if (responseDatagram == null) {
             return; // skipping
         }
 
         try {
 	        // sending back
-            this.serverSocket.send(responseDatagram);
+            this.serverSockets[shard].send(responseDatagram);
+	    } catch (IOException e) {
+	        logger.log(Level.SEVERE, "IOException", e);
+	    }
+    }
+
+    /**
+     * Send back response packet to client, through the nio channel.
+     *
+     * <p>This is a callback method used by servlet dispatchers to send back responses
+     * produced by <tt>DHCPServlet.serviceBuffer()</tt>, for requests received on the
+     * first channel.
+     */
+    protected void sendResponse(DHCPPacket response) {
+        this.sendResponse(response, 0);
+    }
+
+    /**
+     * Send back response packet to client, on the channel the request came from.
+     *
+     * <p>This is the callback method for requests received on the extra channels,
+     * the first one goes through <tt>sendResponse(DHCPPacket)</tt>.
+     */
+    protected void sendResponse(DHCPPacket response, int shard) {
+        if (response == null) {
+            return; // skipping
+        }
+
+        ByteBuffer responseBuf = this.bufferPool.acquire();
+        try {
+            int length = response.serializeTo(responseBuf);
+            responseBuf.flip();
+
+            if (logger.isLoggable(Level.FINER)) { logger.finer("Buffer is " + length + " bytes long"); }
+
+	        // sending back, straight from the pooled buffer
+            this.serverChannels[shard].send(responseBuf, response.getAddrPort());
 	    } catch (IOException e) {
 	        logger.log(Level.SEVERE, "IOException", e);
+	    } finally {
+	        this.bufferPool.release(responseBuf);
 	    }
     }
     /**
@@ -281,26 +569,106 @@ public class DHCPCoreServer implements Runnable {
      * This is the main loop for accepting new request and delegating work to
      * servlets in different threads.
      *
+     * <p>When several sockets are configured, one receive thread is started for
+     * each extra socket and the calling thread serves the first one.
      */
     public void run() {
-        if (this.serverSocket == null) {
+        if ((this.serverSockets == null) && (this.serverChannels == null)) {
             throw new IllegalStateException("Listening socket is not open - terminating");
         }
+        int numSockets = (this.serverChannels != null) ? this.serverChannels.length
+                                                       : this.serverSockets.length;
+        Thread[] threads = new Thread[numSockets];
+        threads[0] = Thread.currentThread();
+        for (int shard = 1; shard < numSockets; shard++) {
+            threads[shard] = new Thread(new ShardListener(shard), "DHCPCoreServer-listener-" + shard);
+            threads[shard].setDaemon(true);
+        }
+        this.listeners = threads;
+        for (int shard = 1; shard < numSockets; shard++) {
+            threads[shard].start();
+        }
+        this.listen(0);
+    }
+
+    /**
+     * Receive loop for one socket, until the server is stopped.
+     */
+    private void listen(int shard) {
         while (!this.stopped) {
             try {
-                this.dispatch();		// do the stuff
+                if (shard == 0) {
+                    this.dispatch();		// do the stuff
+                } else {
+                    this.dispatch(shard);
+                }
             } catch (Exception e) {
                 logger.log(Level.WARNING, "Unexpected Exception", e);
             }
         }
     }
+
+    /**
+     * Runs the receive loop of an extra socket in its own thread.
+     */
+    private class ShardListener implements Runnable {
+        private final int shard;
+
+        ShardListener(int shard) {
+            this.shard = shard;
+        }
+
+        public void run() {
+            DHCPCoreServer.this.listen(this.shard);
+        }
+    }
+
     /**
-     * This method stops the server and closes the socket.
+     * This method stops the server and closes the sockets.
      *
+     * <p>It waits (up to one second) for the receive threads to exit, since a
+     * channel blocked in <tt>receive()</tt> only releases its port once its thread
+     * has woken up.
      */
     public void stopServer() {
     	this.stopped = true;
-    	this.serverSocket.close();		// this generates an exception when trying to receive
+    	this.closeSockets();		// this generates an exception when trying to receive
+
+    	Thread[] threads = this.listeners;
+    	if (threads != null) {
+    	    long deadline = System.currentTimeMillis() + 1000;
+    	    try {
+    	        for (Thread listener : threads) {
+    	            long left = deadline - System.currentTimeMillis();
+    	            if ((listener != Thread.currentThread()) && (left > 0)) {
+    	                listener.join(left);
+    	            }
+    	        }
+    	    } catch (InterruptedException e) {
+    	        Thread.currentThread().interrupt();
+    	    }
+    	}
+    }
+
+    private void closeSockets() {
+        if (this.serverChannels != null) {
+            for (DatagramChannel channel : this.serverChannels) {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        logger.log(Level.FINE, "IOException", e);
+                    }
+                }
+            }
+        }
+        if (this.serverSockets != null) {
+            for (DatagramSocket socket : this.serverSockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
     }
 
     private static final Properties DEF_PROPS = new Properties();
@@ -313,6 +681,32 @@ public class DHCPCoreServer implements Runnable {
     private static final String SERVER_THREADS_MAX_DEFAULT = "4";
     public static final String SERVER_THREADS_KEEPALIVE = "serverThreadsKeepalive";
     private static final String SERVER_THREADS_KEEPALIVE_DEFAULT = "10000";
+    public static final String SERVER_IO = "serverIo";
+    public static final String SERVER_IO_SOCKET = "socket";
+    public static final String SERVER_IO_NIO = "nio";
+    private static final String SERVER_IO_DEFAULT = SERVER_IO_SOCKET;
+    public static final String SERVER_IO_BUFFERS = "serverIoBuffers";
+    private static final String SERVER_IO_BUFFERS_DEFAULT = "64";
+    public static final String SERVER_SOCKETS = "serverSockets";
+    private static final String SERVER_SOCKETS_DEFAULT = "1";
+    public static final String SERVER_UNICAST_ADDRESS = "serverUnicastAddress";
+    public static final String SERVER_QUEUE_SIZE = "serverQueueSize";
+    private static final String SERVER_QUEUE_SIZE_DEFAULT = "20";
+    public static final String SERVER_SHED_POLICY = "serverShedPolicy";
+    public static final String SERVER_SHED_POLICY_NEWEST = "newest";
+    public static final String SERVER_SHED_POLICY_OLDEST = "oldest";
+    public static final String SERVER_SHED_POLICY_DISCOVER = "discover";
+    private static final String SERVER_SHED_POLICY_DEFAULT = SERVER_SHED_POLICY_NEWEST;
+    public static final String SERVER_DISPATCH = "serverDispatch";
+    public static final String SERVER_DISPATCH_POOL = "pool";
+    public static final String SERVER_DISPATCH_VIRTUAL = "virtual";
+    private static final String SERVER_DISPATCH_DEFAULT = SERVER_DISPATCH_POOL;
+    public static final String SERVER_VIRTUAL_THREADS_MAX = "serverVirtualThreadsMax";
+    private static final String SERVER_VIRTUAL_THREADS_MAX_DEFAULT = "1024";
+    public static final String SERVER_PACKET_POOL = "serverPacketPool";
+    private static final String SERVER_PACKET_POOL_DEFAULT = "0";
+    public static final String SERVER_PACKET_POOL_DEBUG = "serverPacketPoolDebug";
+    private static final String SERVER_PACKET_POOL_DEBUG_DEFAULT = "false";
 
     static {
         // initialize defProps
@@ -320,6 +714,15 @@ public class DHCPCoreServer implements Runnable {
         DEF_PROPS.put(SERVER_THREADS, SERVER_THREADS_DEFAULT);
         DEF_PROPS.put(SERVER_THREADS_MAX, SERVER_THREADS_MAX_DEFAULT);
         DEF_PROPS.put(SERVER_THREADS_KEEPALIVE, SERVER_THREADS_KEEPALIVE_DEFAULT);
+        DEF_PROPS.put(SERVER_IO, SERVER_IO_DEFAULT);
+        DEF_PROPS.put(SERVER_IO_BUFFERS, SERVER_IO_BUFFERS_DEFAULT);
+        DEF_PROPS.put(SERVER_SOCKETS, SERVER_SOCKETS_DEFAULT);
+        DEF_PROPS.put(SERVER_QUEUE_SIZE, SERVER_QUEUE_SIZE_DEFAULT);
+        DEF_PROPS.put(SERVER_SHED_POLICY, SERVER_SHED_POLICY_DEFAULT);
+        DEF_PROPS.put(SERVER_DISPATCH, SERVER_DISPATCH_DEFAULT);
+        DEF_PROPS.put(SERVER_VIRTUAL_THREADS_MAX, SERVER_VIRTUAL_THREADS_MAX_DEFAULT);
+        DEF_PROPS.put(SERVER_PACKET_POOL, SERVER_PACKET_POOL_DEFAULT);
+        DEF_PROPS.put(SERVER_PACKET_POOL_DEBUG, SERVER_PACKET_POOL_DEBUG_DEFAULT);
     }
 
     private static class ServerThreadFactory implements ThreadFactory {
@@ -343,31 +746,37 @@ public class DHCPCoreServer implements Runnable {
 	public InetSocketAddress getSockAddress() {
 		return sockAddress;
 	}
-}
-
-
-/**
- * Servlet dispatcher
- */
-class DHCPServletDispatcher implements Runnable {
-    private static final Logger logger = Logger.getLogger(DHCPServletDispatcher.class.getName().toLowerCase());
 
-    private final DHCPCoreServer     server;
-    private final DHCPServlet    dispatchServlet;
-    private final DatagramPacket dispatchPacket;
+	/**
+	 * Returns the number of requests dropped because the servlet threads could not
+	 * keep up, whatever their message type.
+	 *
+	 * @return number of dropped requests since startup.
+	 */
+	public long getDroppedRequests() {
+		return this.loadShedder.getDropped();
+	}
 
-    public DHCPServletDispatcher(DHCPCoreServer server, DHCPServlet servlet, DatagramPacket req) {
-        this.server          = server;
-        this.dispatchServlet = servlet;
-        this.dispatchPacket  = req;
-    }
+	/**
+	 * Returns the number of requests of a given type dropped because the servlet
+	 * threads could not keep up.
+	 *
+	 * @param messageType DHCP message type, e.g. <tt>DHCPDISCOVER</tt>, 0 for BOOTP
+	 * 			or packets without message type.
+	 * @return number of dropped requests of this type since startup.
+	 */
+	public long getDroppedRequests(byte messageType) {
+		return this.loadShedder.getDropped(messageType);
+	}
 
-    public void run() {
-        try {
-            DatagramPacket response = this.dispatchServlet.serviceDatagram(this.dispatchPacket);
-            this.server.sendResponse(response);		// invoke callback method
-        } catch (Exception e) {
-            logger.log(Level.FINE, "Exception in dispatcher", e);
-        }
-    }
+	/**
+	 * Returns the number of datagrams rejected by <tt>DHCPServlet.classify()</tt>
+	 * before being parsed (BOOTP, BOOTREPLY, unsupported message types...).
+	 *
+	 * @return number of rejected datagrams since startup.
+	 */
+	public long getRejectedRequests() {
+		return this.rejected.get();
+	}
 }
+
@@ -0,0 +1,173 @@
+/*
+ *	This file is part of dhcp4java, a DHCP API for the Java language.
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.dhcp4java;
+
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static org.dhcp4java.DHCPConstants.*;
+
+/**
+ * Admission control for the worker pool of <tt>DHCPCoreServer</tt>.
+ *
+ * <p>This handler is called by the <tt>ThreadPoolExecutor</tt> (or the <tt>DHCPVirtualExecutor</tt>)
+ * when its queue is full and no more threads can be started. It decides which request is
+ * shed according to the configured policy, and keeps a count of every dropped request by
+ * DHCP message type.
+ *
+ * <p>Policies:
+ * <ul>
+ * 	<li><tt>newest</tt>: the incoming request is dropped (historical behaviour)</li>
+ * 	<li><tt>oldest</tt>: the request waiting for the longest time is dropped to make room</li>
+ * 	<li><tt>discover</tt>: DISCOVERs are shed first. An incoming DISCOVER is dropped, any other
+ * 		message (REQUEST, RELEASE...) evicts the oldest queued DISCOVER, so that clients
+ * 		holding a lease keep being served while new clients retry later.</li>
+ * </ul>
+ *
+ * <p>This class is thread-safe.
+ */
+final class DHCPLoadShedder implements RejectedExecutionHandler {
+
+    private static final Logger logger = Logger.getLogger(DHCPLoadShedder.class.getName().toLowerCase());
+
+    /** Shedding policies, see class comment */
+    enum Policy { NEWEST, OLDEST, DISCOVER }
+
+    private final Policy          policy;
+    /** drops indexed by DHCP message type (0 for unknown/BOOTP) */
+    private final AtomicLongArray droppedByType = new AtomicLongArray(256);
+    /** total number of drops */
+    private final AtomicLong      dropped       = new AtomicLong();
+
+    DHCPLoadShedder(Policy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        this.policy = policy;
+    }
+
+    /**
+     * Parses a policy name as found in the server properties (case insensitive).
+     *
+     * @param name policy name
+     * @return the policy
+     * @throws IllegalArgumentException unknown policy name
+     */
+    static Policy parsePolicy(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("policy name must not be null");
+        }
+        return Policy.valueOf(name.trim().toUpperCase());
+    }
+
+    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+        this.shed(r, executor.getQueue(), executor.isShutdown());
+    }
+
+    /**
+     * Applies the shedding policy to a request that does not fit in the queue.
+     *
+     * @param r the incoming request
+     * @param queue the full queue of waiting requests
+     * @param shutdown whether the executor is shutting down, in which case <tt>r</tt> is dropped
+     */
+    void shed(Runnable r, BlockingQueue<Runnable> queue, boolean shutdown) {
+        if (shutdown) {
+            this.drop(r);
+            return;
+        }
+
+        switch (this.policy) {
+        case OLDEST:
+            // a receive thread may take the freed seat first, make room again then
+            while (!queue.offer(r)) {
+                Runnable oldest = queue.poll();
+                if (oldest != null) {
+                    this.drop(oldest);
+                }
+            }
+            break;
+        case DISCOVER:
+            if (messageType(r) != DHCPDISCOVER) {
+                // same race as above, r is only dropped once no DISCOVER is left to evict
+                do {
+                    if (queue.offer(r)) {
+                        return;
+                    }
+                } while (this.evictDiscover(queue));
+            }
+            this.drop(r);
+            break;
+        case NEWEST:
+        default:
+            this.drop(r);
+            break;
+        }
+    }
+
+    /**
+     * Removes the oldest DISCOVER waiting in the queue.
+     *
+     * @return <tt>true</tt> if a DISCOVER was found and dropped.
+     */
+    private boolean evictDiscover(BlockingQueue<Runnable> queue) {
+        for (Iterator<Runnable> it = queue.iterator(); it.hasNext(); ) {
+            Runnable queued = it.next();
+            if (messageType(queued) == DHCPDISCOVER && queue.remove(queued)) {
+                this.drop(queued);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drop(Runnable r) {
+        byte type = messageType(r);
+
+        this.dropped.incrementAndGet();
+        this.droppedByType.incrementAndGet(type & 0xFF);
+        if (r instanceof DHCPServletDispatcher) {
+            ((DHCPServletDispatcher) r).discard();	// give back receive buffer
+        }
+        if (logger.isLoggable(Level.FINER)) {
+            logger.finer("Server overloaded, dropped request of type " + type);
+        }
+    }
+
+    private static byte messageType(Runnable r) {
+        return (r instanceof DHCPServletDispatcher) ? ((DHCPServletDispatcher) r).getDHCPMessageType() : 0;
+    }
+
+    Policy getPolicy() {
+        return this.policy;
+    }
+
+    long getDropped() {
+        return this.dropped.get();
+    }
+
+    long getDropped(byte messageType) {
+        return this.droppedByType.get(messageType & 0xFF);
+    }
+}
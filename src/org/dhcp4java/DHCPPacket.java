@@ -18,22 +18,18 @@
  */
 package org.dhcp4java;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.io.Serializable;
 import java.net.DatagramPacket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.LinkedHashMap;
-import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -287,7 +283,7 @@ import static org.dhcp4java.DHCPConstants.*;
  * 
  */
 public class DHCPPacket implements Cloneable, Serializable {
-	private static final long   serialVersionUID = 1L;
+	private static final long   serialVersionUID = 2L;
 
     private static final Logger logger = Logger.getLogger(DHCPPacket.class.getName().toLowerCase());
     
@@ -315,12 +311,24 @@ public class DHCPPacket implements Cloneable, Serializable {
     // ----------------------------------------------------------------------
     // options part of the packet
 
-    // DHCP options
-    // Invariant 1: K is identical to V.getCode()
+    // DHCP options, indexed by code (unsigned), with codes listed in creation order
+    // in optionOrder[0..optionCount-1]
+    // Invariant 1: options[i] is null or options[i].getCode() == (byte) i
     // Invariant 2: V.value is never <tt>null</tt>
-    // Invariant 3; K is not 0 (PAD) and not -1 (END)
-    private Map<Byte, DHCPOption> options;
+    // Invariant 3; options[0] (PAD) and options[255] (END) are always null
+    // Invariant 4: optionOrder lists exactly once each code having a non-null slot
+    private DHCPOption[]          options;
+    private byte[]                optionOrder;
+    private int                   optionCount;
     private boolean               isDhcp;    // well-formed DHCP Packet ?
+    // Lazy options: raw copy of the options area and offsets of each option, in wire order.
+    // Each entry of lazyIndex is (code << 24 | offset << 8 | length). Options are
+    // decoded on demand into lazyDecoded, and moved to the table by materializeOptions().
+    // Invariant: when lazyRaw is not null, optionCount is 0.
+    private byte[]                lazyRaw;
+    private int[]                 lazyIndex;
+    private int                   lazyCount;
+    private DHCPOption[]          lazyDecoded;
     private boolean               truncated; // are the option truncated
     // ----------------------------------------------------------------------
     // extra bytes for padding
@@ -331,6 +339,10 @@ public class DHCPPacket implements Cloneable, Serializable {
     // or received from.
     private InetAddress address;
     private int         port;
+
+    // ----------------------------------------------------------------------
+    // set by DHCPPacketPool in debug mode, once the packet must not be used anymore
+    private transient boolean recycled;
     
     
     /**
@@ -354,7 +366,53 @@ public class DHCPPacket implements Cloneable, Serializable {
         this.file    = new byte[128];
         this.padding = new byte[0];
         this.isDhcp  = true;
-        this.options = new LinkedHashMap<Byte, DHCPOption>();
+        this.options = new DHCPOption[256];
+        this.optionOrder = new byte[16];
+    }
+
+    /**
+     * Puts the packet back in the state of a newly constructed one, keeping its arrays.
+     *
+     * <p>Used by <tt>DHCPPacketPool</tt>.
+     */
+    void reset() {
+        this.comment = "";
+        this.op      = BOOTREPLY;
+        this.htype   = HTYPE_ETHER;
+        this.hlen    = 6;
+        this.hops    = 0;
+        this.xid     = 0;
+        this.secs    = 0;
+        this.flags   = 0;
+        Arrays.fill(this.ciaddr, (byte) 0);
+        Arrays.fill(this.yiaddr, (byte) 0);
+        Arrays.fill(this.siaddr, (byte) 0);
+        Arrays.fill(this.giaddr, (byte) 0);
+        Arrays.fill(this.chaddr, (byte) 0);
+        Arrays.fill(this.sname,  (byte) 0);
+        Arrays.fill(this.file,   (byte) 0);
+        this.padding   = new byte[0];
+        this.isDhcp    = true;
+        this.truncated = false;
+        this.address   = null;
+        this.port      = 0;
+        this.removeAllOptions();
+    }
+
+    /**
+     * Flags the packet as recycled, see <tt>DHCPPacketPool</tt> debug mode.
+     */
+    void markRecycled() {
+        this.recycled = true;
+    }
+
+    /**
+     * @throws IllegalStateException the packet was recycled by the server.
+     */
+    private void checkLive() {
+        if (this.recycled) {
+            throw new IllegalStateException("DHCPPacket used after being recycled");
+        }
     }
 
     /**
@@ -371,7 +429,7 @@ public class DHCPPacket implements Cloneable, Serializable {
     	if (datagram == null) {
             throw new IllegalArgumentException("datagram is null");
         }
-        DHCPPacket packet = new DHCPPacket();
+        DHCPPacket packet = DHCPPacketPool.borrow();
         // all parameters are checked in marshall()
         packet.marshall(datagram.getData(), datagram.getOffset(), datagram.getLength(),
                         datagram.getAddress(), datagram.getPort(),
@@ -395,12 +453,56 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws DHCPBadPacketException the datagram is malformed.
      */
     public static DHCPPacket getPacket(byte[] buf, int offset, int length, boolean strict) throws DHCPBadPacketException {
-        DHCPPacket packet = new DHCPPacket();
+        DHCPPacket packet = DHCPPacketPool.borrow();
         // all parameters are checked in marshall()
         packet.marshall(buf, offset, length, null, 0, strict);
         return packet;
     }
 
+    /**
+     * Factory for creating <tt>DHCPPacket</tt> objects by parsing a
+     * <tt>ByteBuffer</tt>, typically filled by a <tt>DatagramChannel</tt>.
+     *
+     * <p>The datagram is read in place from the buffer's position up to its limit,
+     * the buffer may be direct. Its position and limit are left unchanged.
+     *
+     * @param buf buffer holding the incoming datagram.
+     * @param address the address from which the packet was sent, or <tt>null</tt>
+     * @param port the port from which the packet was sent
+     * @param strict do we parse in strict mode?
+     * @return the newly create <tt>DHCPPacket</tt> instance
+     * @throws DHCPBadPacketException the datagram is malformed.
+     * @throws IllegalArgumentException buf is <tt>null</tt>
+     */
+    public static DHCPPacket getPacket(ByteBuffer buf, InetAddress address, int port, boolean strict) throws DHCPBadPacketException {
+        return getPacket(buf, address, port, strict, false);
+    }
+
+    /**
+     * Factory for creating <tt>DHCPPacket</tt> objects by parsing a
+     * <tt>ByteBuffer</tt>, with optional lazy decoding of options.
+     *
+     * <p>In lazy mode, the options area is copied once and only the position of each
+     * option is recorded. A <tt>DHCPOption</tt> is built the first time an option is
+     * read, so options that are never looked at cost nothing. The resulting packet
+     * behaves exactly like an eagerly parsed one.
+     *
+     * @param buf the buffer holding the datagram, from position to limit
+     * @param address the address from which the packet was sent, or <tt>null</tt>
+     * @param port the port from which the packet was sent
+     * @param strict do we parse in strict mode?
+     * @param lazy do we decode options on demand?
+     * @return the newly create <tt>DHCPPacket</tt> instance
+     * @throws DHCPBadPacketException the datagram is malformed.
+     */
+    public static DHCPPacket getPacket(ByteBuffer buf, InetAddress address, int port,
+                                       boolean strict, boolean lazy) throws DHCPBadPacketException {
+        DHCPPacket packet = DHCPPacketPool.borrow();
+        // all parameters are checked in marshall()
+        packet.marshall(buf, address, port, strict, lazy);
+        return packet;
+    }
+
     /**
      * Returns a copy of this <tt>DHCPPacket</tt>.
      * 
@@ -410,7 +512,9 @@ public class DHCPPacket implements Cloneable, Serializable {
      */
     @Override
     public DHCPPacket clone() {
+        this.checkLive();
         try {
+            this.materializeOptions();
             DHCPPacket p = (DHCPPacket) super.clone();
 
             // specifically cloning arrays to avoid side-effects
@@ -421,8 +525,8 @@ public class DHCPPacket implements Cloneable, Serializable {
             p.chaddr = this.chaddr.clone();
             p.sname  = this.sname .clone();
             p.file   = this.file  .clone();
-            //p.options = this.options.clone();
-            p.options = new LinkedHashMap<Byte, DHCPOption>(this.options);
+            p.options = this.options.clone();    // DHCPOption is immutable
+            p.optionOrder = this.optionOrder.clone();
             p.padding = this.padding.clone();
 
             p.truncated = false;    // freshly new object, it is not considered as corrupt
@@ -450,6 +554,9 @@ public class DHCPPacket implements Cloneable, Serializable {
         DHCPPacket p = (DHCPPacket) o;
         boolean    b;
 
+        this.materializeOptions();
+        p.materializeOptions();
+
         b  = (this.comment.equals(p.comment));
         b &= (this.op    == p.op);
         b &= (this.htype == p.htype);
@@ -465,7 +572,7 @@ public class DHCPPacket implements Cloneable, Serializable {
         b &= (Arrays.equals(this.chaddr, p.chaddr));
         b &= (Arrays.equals(this.sname,  p.sname));
         b &= (Arrays.equals(this.file,   p.file));
-        b &= (this.options.equals(p.options));
+        b &= (Arrays.equals(this.options, p.options));      // order is not significant
         b &= (this.isDhcp == p.isDhcp);
         // we deliberately ignore "truncated" since it is reset when cloning
         b &= (Arrays.equals(this.padding, p.padding));
@@ -480,6 +587,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      */
 	@Override
 	public int hashCode() {
+		this.materializeOptions();
 		int h = -1;
 		h ^= this.comment.hashCode();
 		h += this.op;
@@ -496,7 +604,7 @@ public class DHCPPacket implements Cloneable, Serializable {
 		h ^= Arrays.hashCode(this.chaddr);
 		h ^= Arrays.hashCode(this.sname);
 		h ^= Arrays.hashCode(this.file);
-		h ^= this.options.hashCode();
+		h ^= Arrays.hashCode(this.options);
 		h += this.isDhcp ? 1 : 0;
 //		h += this.truncated ? 1 : 0;
 		h ^= Arrays.hashCode(this.padding);
@@ -533,16 +641,22 @@ public class DHCPPacket implements Cloneable, Serializable {
         assert(this.padding != null);    // length is free for padding
         // options
         assert(this.options != null);
-        for (Map.Entry<Byte, DHCPOption> mapEntry : this.options.entrySet()) {
-            Byte       key = mapEntry.getKey();
-            DHCPOption opt = mapEntry.getValue();
-
-            assert(key != null);
-            assert(key != DHO_PAD);
-            assert(key != DHO_END);
-            assert(opt != null);
-            assert(opt.getCode() == key);
-            assert(opt.getValueFast() != null);
+        assert(this.options.length == 256);
+        assert(this.lazyRaw == null || this.optionCount == 0);
+        assert(this.options[DHO_PAD & 0xFF] == null);
+        assert(this.options[DHO_END & 0xFF] == null);
+        int present = 0;
+        for (int i = 0; i < 256; i++) {
+            DHCPOption opt = this.options[i];
+            if (opt != null) {
+                assert(opt.getCode() == (byte) i);
+                assert(opt.getValueFast() != null);
+                present++;
+            }
+        }
+        assert(present == this.optionCount);
+        for (int i = 0; i < this.optionCount; i++) {
+            assert(this.options[this.optionOrder[i] & 0xFF] != null);
         }
     }
     /** 
@@ -577,6 +691,49 @@ public class DHCPPacket implements Cloneable, Serializable {
             throw new IndexOutOfBoundsException("offset+length exceeds buffer length");
         }
         
+        // size checks and parsing are shared with the ByteBuffer flavour
+        return this.marshall(ByteBuffer.wrap(buffer, offset, length), address0, port0, strict);
+    }
+
+    /**
+     * Convert a DHCP message held in a <tt>ByteBuffer</tt> into a DHCPMessage object.
+     *
+     * <p>The datagram is read from the buffer's position up to its limit. The buffer
+     * itself is left untouched (position and limit are not modified), so heap and
+     * direct buffers can be parsed in place without being copied first.
+     *
+     * @return a DHCPMessage object with information from the buffer.
+     * @param  buffer  buffer containing the datagram, from position to limit
+     * @param  address0 the address from which the packet was sent, or <tt>null</tt>
+     * @param  port0 the port from which the packet was sent
+     * @param  strict do we read in strict mode?
+     * @throws IllegalArgumentException if buffer is <tt>null</tt>
+     * @throws DHCPBadPacketException datagram is malformed
+     */
+    protected DHCPPacket marshall(ByteBuffer buffer, InetAddress address0, int port0, boolean strict) {
+        return this.marshall(buffer, address0, port0, strict, false);
+    }
+
+    /**
+     * Convert a DHCP message held in a <tt>ByteBuffer</tt> into a DHCPMessage object,
+     * with optional lazy decoding of options.
+     *
+     * @return a DHCPMessage object with information from the buffer.
+     * @param  buffer  buffer containing the datagram, from position to limit
+     * @param  address0 the address from which the packet was sent, or <tt>null</tt>
+     * @param  port0 the port from which the packet was sent
+     * @param  strict do we read in strict mode?
+     * @param  lazy do we only record option offsets, see <tt>getPacket()</tt>?
+     * @throws IllegalArgumentException if buffer is <tt>null</tt>
+     * @throws DHCPBadPacketException datagram is malformed
+     */
+    protected DHCPPacket marshall(ByteBuffer buffer, InetAddress address0, int port0,
+                                  boolean strict, boolean lazy) {
+        if (buffer == null) {
+            throw new IllegalArgumentException("null buffer not allowed");
+        }
+        int length = buffer.remaining();
+
         // absolute minimum size for a valid packet
         if (length < _BOOTP_ABSOLUTE_MIN_LEN) {
             throw new DHCPBadPacketException("DHCP Packet too small (" + length +
@@ -591,75 +748,84 @@ public class DHCPPacket implements Cloneable, Serializable {
         // copy address and port
         this.address = address0; // no need to clone, InetAddress is immutable
         this.port    = port0;
-        
-        try {
-            // turn buffer into a readable stream
-            ByteArrayInputStream inBStream = new ByteArrayInputStream(buffer, offset, length);
-            DataInputStream      inStream  = new DataInputStream(inBStream);
-
-            // parse static part of packet
-            this.op    = inStream.readByte ();
-            this.htype = inStream.readByte ();
-            this.hlen  = inStream.readByte ();
-            this.hops  = inStream.readByte ();
-            this.xid   = inStream.readInt  ();
-            this.secs  = inStream.readShort();
-            this.flags = inStream.readShort();
-            inStream.readFully(this.ciaddr, 0,   4);
-            inStream.readFully(this.yiaddr, 0,   4);
-            inStream.readFully(this.siaddr, 0,   4);
-            inStream.readFully(this.giaddr, 0,   4);
-            inStream.readFully(this.chaddr, 0,  16);
-            inStream.readFully(this.sname,  0,  64);
-            inStream.readFully(this.file,   0, 128);
-
-            // check for DHCP MAGIC_COOKIE
-            this.isDhcp = true;
-            inBStream.mark(4);        // read ahead 4 bytes
-            if (inStream.readInt() != _MAGIC_COOKIE) {
-                this.isDhcp = false;
-                inBStream.reset();    // re-read the 4 bytes
-            }
-
-            if (this.isDhcp) {    // is it a full DHCP packet or a simple BOOTP?
-                // DHCP Packet: parsing options
-                int type = 0;
 
-                while (true) {
-                    int r = inBStream.read();
-                    if (r < 0) { break; } // EOF
+        // private cursor over the caller's buffer, network byte order
+        ByteBuffer in = buffer.duplicate();
+        in.order(ByteOrder.BIG_ENDIAN);
+
+        // parse static part of packet
+        this.op    = in.get     ();
+        this.htype = in.get     ();
+        this.hlen  = in.get     ();
+        this.hops  = in.get     ();
+        this.xid   = in.getInt  ();
+        this.secs  = in.getShort();
+        this.flags = in.getShort();
+        in.get(this.ciaddr, 0,   4);
+        in.get(this.yiaddr, 0,   4);
+        in.get(this.siaddr, 0,   4);
+        in.get(this.giaddr, 0,   4);
+        in.get(this.chaddr, 0,  16);
+        in.get(this.sname,  0,  64);
+        in.get(this.file,   0, 128);
+
+        // check for DHCP MAGIC_COOKIE
+        if (in.remaining() < 4) {
+            throw new DHCPBadPacketException("DHCP Packet too small (" + length +
+                    "), no room left for magic cookie");
+        }
+        this.isDhcp = (in.getInt(in.position()) == _MAGIC_COOKIE);	// read ahead 4 bytes
+
+        if (this.isDhcp) {    // is it a full DHCP packet or a simple BOOTP?
+            in.position(in.position() + 4);		// skip magic cookie
+            // DHCP Packet: parsing options
+            int type = 0;
+            int start = in.position();
+
+            if (lazy) {
+                this.clearOptions();
+                this.lazyRaw     = new byte[in.remaining()];
+                this.lazyIndex   = new int[16];
+                this.lazyCount   = 0;
+                this.lazyDecoded = null;
+                in.duplicate().get(this.lazyRaw);
+            }
 
-                    type = (byte) r;
+            while (true) {
+                if (!in.hasRemaining()) { break; } // EOF
 
-                    if (type == DHO_PAD) { continue; } // skip Padding
-                    if (type == DHO_END) { break;    } // break if end of options
+                type = in.get();
 
-                    r = inBStream.read();
-                    if (r < 0) { break; } // EOF
+                if (type == DHO_PAD) { continue; } // skip Padding
+                if (type == DHO_END) { break;    } // break if end of options
 
-                    int    len      = Math.min(r, inBStream.available());
-                    byte[] unit_opt = new byte[len];
-                    inBStream.read(unit_opt);
+                if (!in.hasRemaining()) { break; } // EOF
+                int r = in.get() & 0xFF;
 
-                    this.setOption(new DHCPOption((byte) type, unit_opt));  // store option
-                }
-                this.truncated = (type != DHO_END); // truncated options?
-                if (strict && this.truncated) {
-                	throw new DHCPBadPacketException("Packet seams to be truncated");
+                int    len      = Math.min(r, in.remaining());
+                if (lazy) {
+                    this.indexOption(type, in.position() - start, len);     // record offset only
+                    in.position(in.position() + len);
+                    continue;
                 }
+                byte[] unit_opt = new byte[len];
+                in.get(unit_opt);
+
+                this.setOption(new DHCPOption((byte) type, unit_opt));  // store option
             }
+            this.truncated = (type != DHO_END); // truncated options?
+            if (strict && this.truncated) {
+            	throw new DHCPBadPacketException("Packet seams to be truncated");
+            }
+        }
 
-            // put the remaining in padding
-            this.padding = new byte[inBStream.available()];
-            inBStream.read(this.padding);
-            // final verifications (if assertions are activated)
-            this.assertInvariants();
+        // put the remaining in padding
+        this.padding = new byte[in.remaining()];
+        in.get(this.padding);
+        // final verifications (if assertions are activated)
+        this.assertInvariants();
 
-            return this;
-        } catch (IOException e) {
-            // unlikely with ByteArrayInputStream
-            throw new DHCPBadPacketException("IOException: "+e.toString(), e);
-        }
+        return this;
     }
 
     /**
@@ -691,34 +857,84 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws DHCPBadPacketException the datagram would be malformed (too small, too big...)
      */
     public byte[] serialize(int minSize, int maxSize) {
+        ByteBuffer buf = ByteBuffer.allocate(_DHCP_MAX_MTU);
+        this.serializeTo(buf, minSize, maxSize);
+        byte[] data = new byte[buf.position()];
+        buf.flip();
+        buf.get(data);
+        return data;
+    }
+
+    /**
+     * Writes the packet into a <tt>ByteBuffer</tt>, ready to be sent on the wire.
+     *
+     * <p>Same as <tt>serialize()</tt>, without any intermediate array. See
+     * <tt>serializeTo(ByteBuffer, int, int)</tt>.
+     *
+     * @param buf the buffer to write to, from its position
+     * @return the number of bytes written.
+     * @throws DHCPBadPacketException the datagram would be malformed (too small, too big...)
+     */
+    public int serializeTo(ByteBuffer buf) {
+    	int minLen = _BOOTP_ABSOLUTE_MIN_LEN;
+
+        if (this.isDhcp) {
+        	minLen += _BOOTP_VEND_SIZE;
+        }
+        return this.serializeTo(buf, minLen, _DHCP_DEFAULT_MAX_LEN);
+    }
+
+    /**
+     * Writes the packet into a <tt>ByteBuffer</tt>, ready to be sent on the wire.
+     *
+     * <p>Header, magic cookie, options and padding are written in one pass, starting
+     * at the buffer's position which is advanced past the datagram. The buffer may be
+     * direct, its byte order is left unchanged. Flip the buffer before sending it.
+     *
+     * <p>If the packet does not fit, the buffer's position is restored and an exception
+     * is raised.
+     *
+     * @param buf the buffer to write to, from its position
+     * @param minSize the minimum size of the datagram, padded with zeros if needed
+     * @param maxSize the maximum buffer size in bytes
+     * @return the number of bytes written.
+     * @throws IllegalArgumentException buf is <tt>null</tt>
+     * @throws DHCPBadPacketException the datagram would be malformed (too small, too big...)
+     */
+    public int serializeTo(ByteBuffer buf, int minSize, int maxSize) {
+        if (buf == null) {
+            throw new IllegalArgumentException("null buffer not allowed");
+        }
+        this.checkLive();
         this.assertInvariants();
-        // prepare output buffer, pre-sized to maximum buffer length
-        // default buffer is half the maximum size of possible packet
-        // (this seams reasonable for most uses, worst case only doubles the buffer size once
-        ByteArrayOutputStream outBStream = new ByteArrayOutputStream(_DHCP_MAX_MTU / 2);
-        DataOutputStream      outStream  = new DataOutputStream(outBStream);
+        int       start = buf.position();
+        ByteOrder order = buf.order();
+        boolean   done  = false;
+        buf.order(ByteOrder.BIG_ENDIAN);
         try {
-            outStream.writeByte (this.op);
-            outStream.writeByte (this.htype);
-            outStream.writeByte (this.hlen);
-            outStream.writeByte (this.hops);
-            outStream.writeInt  (this.xid);
-            outStream.writeShort(this.secs);
-            outStream.writeShort(this.flags);
-            outStream.write(this.ciaddr, 0,   4);
-            outStream.write(this.yiaddr, 0,   4);
-            outStream.write(this.siaddr, 0,   4);
-            outStream.write(this.giaddr, 0,   4);
-            outStream.write(this.chaddr, 0,  16);
-            outStream.write(this.sname,  0,  64);
-            outStream.write(this.file,   0, 128);
+            buf.put     (this.op);
+            buf.put     (this.htype);
+            buf.put     (this.hlen);
+            buf.put     (this.hops);
+            buf.putInt  (this.xid);
+            buf.putShort(this.secs);
+            buf.putShort(this.flags);
+            buf.put(this.ciaddr, 0,   4);
+            buf.put(this.yiaddr, 0,   4);
+            buf.put(this.siaddr, 0,   4);
+            buf.put(this.giaddr, 0,   4);
+            buf.put(this.chaddr, 0,  16);
+            buf.put(this.sname,  0,  64);
+            buf.put(this.file,   0, 128);
 
             if (this.isDhcp) {
                 // DHCP and not BOOTP -> magic cookie required
-                outStream.writeInt(_MAGIC_COOKIE);
+                buf.putInt(_MAGIC_COOKIE);
 
-                // parse output options in creation order (LinkedHashMap)
-                for (DHCPOption opt : this.getOptionsCollection()) {
+                // parse output options in creation order
+                this.materializeOptions();
+                for (int i = 0; i < this.optionCount; i++) {
+                    DHCPOption opt = this.options[this.optionOrder[i] & 0xFF];
                     assert (opt != null);
                     assert (opt.getCode() != DHO_PAD);
                     assert (opt.getCode() != DHO_END);
@@ -728,37 +944,36 @@ public class DHCPPacket implements Cloneable, Serializable {
                     if (size > 255) {
                     	throw new DHCPBadPacketException("Options larger than 255 bytes are not yet supported");
                     }
-                    outStream.writeByte(opt.getCode());        // output option code
-                    outStream.writeByte(size);    // output option length
-                    outStream.write(opt.getValueFast());    // output option data
+                    buf.put(opt.getCode());        // output option code
+                    buf.put((byte) size);    // output option length
+                    buf.put(opt.getValueFast());    // output option data
                 }
                 // mark end of options
-                outStream.writeByte(DHO_END);
+                buf.put(DHO_END);
             }
 
             // write padding
-            outStream.write(this.padding);
+            buf.put(this.padding);
 
             // add padding if the packet is too small
-            int min_padding = minSize - outBStream.size();
-            if (min_padding > 0) {
-                byte[] add_padding = new byte[min_padding];
-                outStream.write(add_padding);
+            for (int i = minSize - (buf.position() - start); i > 0; i--) {
+                buf.put((byte) 0);
             }
 
-            // final packet is here
-            byte[] data = outBStream.toByteArray();
-
             // do some post sanity checks
-            if (data.length > _DHCP_MAX_MTU) {
-                throw new DHCPBadPacketException("serialize: packet too big (" + data.length + " greater than max MAX_MTU (" + _DHCP_MAX_MTU + ')');
+            int length = buf.position() - start;
+            if (length > _DHCP_MAX_MTU) {
+                throw new DHCPBadPacketException("serialize: packet too big (" + length + " greater than max MAX_MTU (" + _DHCP_MAX_MTU + ')');
+            }
+            done = true;
+            return length;
+        } catch (BufferOverflowException e) {
+            throw new DHCPBadPacketException("serialize: packet too big for buffer (" + (buf.limit() - start) + " bytes)");
+        } finally {
+            buf.order(order);
+            if (!done) {
+                buf.position(start);
             }
-
-            return data;
-        } catch (IOException e) {
-            // nomrally impossible with ByteArrayOutputStream
-            logger.log(Level.SEVERE, "Unexpected Exception", e);
-            throw new DHCPBadPacketException("IOException raised: "+e.toString());
         }
     }
 
@@ -838,7 +1053,7 @@ public class DHCPPacket implements Cloneable, Serializable {
             if (this.isDhcp) {
                 buffer.append("\nOptions follows:");
 
-                // parse options in creation order (LinkedHashMap)
+                // parse options in creation order
                 for (DHCPOption opt : this.getOptionsCollection()) {
                     buffer.append('\n');
                     opt.append(buffer);
@@ -869,6 +1084,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the _comment field.
      */
     public String getComment() {
+        this.checkLive();
         return this.comment;
     }
     /**
@@ -880,6 +1096,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param comment The comment to set.
      */
     public void setComment(String comment) {
+        this.checkLive();
         this.comment = comment;
     }
     /**
@@ -890,6 +1107,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the chaddr field.
      */
     public byte[] getChaddr() {
+        this.checkLive();
         return this.chaddr.clone();
     }
 
@@ -913,6 +1131,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the <tt>HardwareAddress</tt> object
      */
     public HardwareAddress getHardwareAddress() {
+        this.checkLive();
     	int len = this.hlen & 0xff;
     	if (len > 16) {
     		len = 16;
@@ -931,6 +1150,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the chaddr field as hex string.
      */
     public String getChaddrAsHex() {
+        this.checkLive();
         return this.appendChaddrAsHex(new StringBuilder(this.hlen & 0xFF)).toString();
     }
     /**
@@ -945,6 +1165,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws IllegalArgumentException chaddr buffer is longer than 16 bytes.
      */
     public void setChaddr(byte[] chaddr) {
+        this.checkLive();
         if (chaddr != null) {
             if (chaddr.length > this.chaddr.length) {
                 throw new IllegalArgumentException("chaddr is too long: " + chaddr.length +
@@ -962,6 +1183,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param hex the chaddr in hex format
      */
     public void setChaddrHex(String hex) {
+        this.checkLive();
         this.setChaddr(hex2Bytes(hex));
     }
     /**
@@ -970,6 +1192,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the ciaddr field converted to <tt>InetAddress</tt> object.
      */
     public InetAddress getCiaddr() {
+        this.checkLive();
         try {
             return InetAddress.getByAddress(this.getCiaddrRaw());
         } catch (UnknownHostException e) {
@@ -986,6 +1209,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return Returns the ciaddr as raw byte[4].
      */
     public byte[] getCiaddrRaw() {
+        this.checkLive();
         return this.ciaddr.clone();
     }
 
@@ -998,6 +1222,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param ciaddr The ciaddr to set.
      */
     public void setCiaddr(InetAddress ciaddr) {
+        this.checkLive();
         if (!(ciaddr instanceof Inet4Address)) {
             throw new IllegalArgumentException("Inet4Address required");
         }
@@ -1010,6 +1235,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws UnknownHostException
      */
     public void setCiaddr(String ciaddr) throws UnknownHostException {
+        this.checkLive();
         this.setCiaddr(InetAddress.getByName(ciaddr));
     }
     /**
@@ -1025,6 +1251,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param ciaddr The ciaddr to set.
      */
     public void setCiaddrRaw(byte[] ciaddr) {
+        this.checkLive();
         if (ciaddr.length != 4) {
             throw new IllegalArgumentException("4-byte array required");
         }
@@ -1040,6 +1267,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the file field.
      */
     public byte[] getFileRaw() {
+        this.checkLive();
         return this.file.clone();
     }
 
@@ -1049,6 +1277,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the file converted to a String (transparent encoding).
      */
     public String getFile() {
+        this.checkLive();
         return bytesToString(this.getFileRaw());
     }
     /**
@@ -1064,6 +1293,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws IllegalArgumentException string too long
      */
     public void setFile(String file) {
+        this.checkLive();
         this.setFileRaw(stringToBytes(file));
     }
 
@@ -1081,6 +1311,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws IllegalArgumentException string too long
      */
     public void setFileRaw(byte[] file) {
+        this.checkLive();
         if (file != null) {
             if (file.length > this.file.length) {
                 throw new IllegalArgumentException("File is too long:" + file.length + " max is:" + this.file.length);
@@ -1098,6 +1329,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the flags field.
      */
     public short getFlags() {
+        this.checkLive();
         return this.flags;
     }
 
@@ -1107,6 +1339,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param flags The flags field to set.
      */
     public void setFlags(short flags) {
+        this.checkLive();
         this.flags = flags;
     }
 
@@ -1116,6 +1349,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the giaddr field converted to <tt>InetAddress</tt> object.
      */
     public InetAddress getGiaddr() {
+        this.checkLive();
         try {
             return InetAddress.getByAddress(this.getGiaddrRaw());
         } catch (UnknownHostException e) {
@@ -1132,6 +1366,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return Returns the giaddr as raw byte[4].
      */
     public byte[] getGiaddrRaw() {
+        this.checkLive();
         return this.giaddr.clone();
     }
 
@@ -1144,6 +1379,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param giaddr The giaddr to set.
      */
     public void setGiaddr(InetAddress giaddr) {
+        this.checkLive();
         if (!(giaddr instanceof Inet4Address)) {
             throw new IllegalArgumentException("Inet4Address required");
         }
@@ -1157,6 +1393,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws UnknownHostException
      */
     public void setGiaddr(String giaddr) throws UnknownHostException {
+        this.checkLive();
         this.setGiaddr(InetAddress.getByName(giaddr));
     }
 
@@ -1173,6 +1410,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param giaddr The giaddr to set.
      */
     public void setGiaddrRaw(byte[] giaddr) {
+        this.checkLive();
         if (giaddr.length != 4) {
             throw new IllegalArgumentException("4-byte array required");
         }
@@ -1187,6 +1425,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the hlen field.
      */
     public byte getHlen() {
+        this.checkLive();
         return this.hlen;
     }
 
@@ -1200,6 +1439,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param hlen The hlen to set.
      */
     public void setHlen(byte hlen) {
+        this.checkLive();
         this.hlen = hlen;
     }
 
@@ -1209,6 +1449,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the hops field.
      */
     public byte getHops() {
+        this.checkLive();
         return this.hops;
     }
 
@@ -1218,6 +1459,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param hops The hops to set.
      */
     public void setHops(byte hops) {
+        this.checkLive();
         this.hops = hops;
     }
 
@@ -1236,6 +1478,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the htype field.
      */
     public byte getHtype() {
+        this.checkLive();
         return this.htype;
     }
 
@@ -1254,6 +1497,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param htype The htype to set.
      */
     public void setHtype(byte htype) {
+        this.checkLive();
         this.htype = htype;
     }
 
@@ -1268,6 +1512,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return Returns the isDhcp.
      */
     public boolean isDhcp() {
+        this.checkLive();
         return this.isDhcp;
     }
 
@@ -1286,6 +1531,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param isDhcp The isDhcp to set.
      */
     public void setDhcp(boolean isDhcp) {
+        this.checkLive();
         this.isDhcp = isDhcp;
     }
 
@@ -1301,6 +1547,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the op field.
      */
     public byte getOp() {
+        this.checkLive();
         return this.op;
     }
 
@@ -1318,6 +1565,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param op The op to set.
      */
     public void setOp(byte op) {
+        this.checkLive();
         this.op = op;
     }
 
@@ -1330,6 +1578,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return Returns the padding.
      */
     public byte[] getPadding() {
+        this.checkLive();
         return this.padding.clone();
     }
 
@@ -1347,6 +1596,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param padding The padding to set.
      */
     public void setPadding(byte[] padding) {
+        this.checkLive();
         this.padding = ((padding == null) ? new byte[0] : padding.clone());
     }
 
@@ -1358,6 +1608,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param length size of the padding buffer
      */
     public void setPaddingWithZeroes(int length) {
+        this.checkLive();
         if (length < 0) {
             length = 0;
         }
@@ -1373,6 +1624,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the secs field.
      */
     public short getSecs() {
+        this.checkLive();
         return this.secs;
     }
 
@@ -1382,6 +1634,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param secs The secs to set.
      */
     public void setSecs(short secs) {
+        this.checkLive();
         this.secs = secs;
     }
 
@@ -1391,6 +1644,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the siaddr field converted to <tt>InetAddress</tt> object.
      */
     public InetAddress getSiaddr() {
+        this.checkLive();
         try {
             return InetAddress.getByAddress(this.getSiaddrRaw());
         } catch (UnknownHostException e) {
@@ -1407,6 +1661,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return Returns the siaddr as raw byte[4].
      */
     public byte[] getSiaddrRaw() {
+        this.checkLive();
         return this.siaddr.clone();
     }
 
@@ -1419,6 +1674,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param siaddr The siaddr to set.
      */
     public void setSiaddr(InetAddress siaddr) {
+        this.checkLive();
         if (!(siaddr instanceof Inet4Address)) {
             throw new IllegalArgumentException("Inet4Address required");
         }
@@ -1432,6 +1688,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws UnknownHostException
      */
     public void setSiaddr(String siaddr) throws UnknownHostException {
+        this.checkLive();
         this.setSiaddr(InetAddress.getByName(siaddr));
     }
 
@@ -1448,6 +1705,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param siaddr The siaddr to set.
      */
     public void setSiaddrRaw(byte[] siaddr) {
+        this.checkLive();
         if (siaddr.length != 4) {
             throw new IllegalArgumentException("4-byte array required");
         }
@@ -1464,6 +1722,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the sname field.
      */
     public byte[] getSnameRaw() {
+        this.checkLive();
         return this.sname.clone();
     }
 
@@ -1473,6 +1732,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the sname converted to a String (transparent encoding).
      */
     public String getSname() {
+        this.checkLive();
         return bytesToString(this.getSnameRaw());
     }
 
@@ -1489,6 +1749,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws IllegalArgumentException string too long
      */
     public void setSname(String sname) {
+        this.checkLive();
         this.setSnameRaw(stringToBytes(sname));
     }
 
@@ -1506,6 +1767,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws IllegalArgumentException string too long
      */
     public void setSnameRaw(byte[] sname) {
+        this.checkLive();
         if (sname != null) {
             if (sname.length > this.sname.length) {
                 throw new IllegalArgumentException("Sname is too long:" + sname.length + " max is:" + this.sname.length);
@@ -1523,6 +1785,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return Returns the xid.
      */
     public int getXid() {
+        this.checkLive();
         return this.xid;
     }
 
@@ -1535,6 +1798,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param xid The xid to set.
      */
     public void setXid(int xid) {
+        this.checkLive();
         this.xid = xid;
     }
 
@@ -1544,6 +1808,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the yiaddr field converted to <tt>InetAddress</tt> object.
      */
     public InetAddress getYiaddr() {
+        this.checkLive();
         try {
             return InetAddress.getByAddress(this.getYiaddrRaw());
         } catch (UnknownHostException e) {
@@ -1560,6 +1825,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return Returns the yiaddr as raw byte[4].
      */
     public byte[] getYiaddrRaw() {
+        this.checkLive();
         return this.yiaddr.clone();
     }
 
@@ -1572,6 +1838,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param yiaddr The yiaddr to set.
      */
     public void setYiaddr(InetAddress yiaddr) {
+        this.checkLive();
         if (!(yiaddr instanceof Inet4Address)) {
             throw new IllegalArgumentException("Inet4Address required");
         }
@@ -1585,6 +1852,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws UnknownHostException
      */
     public void setYiaddr(String yiaddr) throws UnknownHostException {
+        this.checkLive();
         this.setYiaddr(InetAddress.getByName(yiaddr));
     }
 
@@ -1601,6 +1869,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param yiaddr The yiaddr to set.
      */
     public void setYiaddrRaw(byte[] yiaddr) {
+        this.checkLive();
         if (yiaddr.length != 4) {
             throw new IllegalArgumentException("4-byte array required");
         }
@@ -1614,6 +1883,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return option type, of <tt>null</tt> if not present.
      */
     public Byte getDHCPMessageType() {
+        this.checkLive();
         return this.getOptionAsByte(DHO_DHCP_MESSAGE_TYPE);
     }
 
@@ -1625,6 +1895,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param optionType
      */
     public void setDHCPMessageType(byte optionType) {
+        this.checkLive();
         this.setOptionAsByte(DHO_DHCP_MESSAGE_TYPE, optionType);
     }
 
@@ -1641,6 +1912,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the truncated field.
      */
     public boolean isTruncated() {
+        this.checkLive();
         return this.truncated;
     }
 
@@ -1987,7 +2259,8 @@ public class DHCPPacket implements Cloneable, Serializable {
      * the option is not present.
      */
     public DHCPOption getOption(byte code) {
-        DHCPOption opt = this.options.get(code);
+        this.checkLive();
+        DHCPOption opt = (this.lazyRaw != null) ? this.lazyOption(code) : this.options[code & 0xFF];
         // Sanity checks
         if (opt == null) {
             return null;
@@ -2004,7 +2277,11 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return true if option is present
      */
     public boolean containsOption(byte code) {
-        return this.options.containsKey(code);
+        this.checkLive();
+        if (this.lazyRaw != null) {
+            return this.lazyFind(code) >= 0;
+        }
+        return this.options[code & 0xFF] != null;
     }
 
     /**
@@ -2015,7 +2292,8 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return collection of <tt>DHCPOption</tt>.
      */
     public Collection<DHCPOption> getOptionsCollection() {
-        return Collections.unmodifiableCollection(this.options.values());    // read only
+        this.materializeOptions();
+        return Collections.unmodifiableList(Arrays.asList(this.getOptionsArray()));    // read only
     }
 
     /**
@@ -2024,7 +2302,13 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return the options array
      */
     public DHCPOption[] getOptionsArray() {
-        return this.options.values().toArray(new DHCPOption[this.options.size()]);
+        this.checkLive();
+        this.materializeOptions();
+        DHCPOption[] opts = new DHCPOption[this.optionCount];
+        for (int i = 0; i < this.optionCount; i++) {
+            opts[i] = this.options[this.optionOrder[i] & 0xFF];
+        }
+        return opts;
     }
 
     /**
@@ -2060,11 +2344,13 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param    opt    option code, use <tt>DHO_*</tt> for predefined values.
      */
     public void setOption(DHCPOption opt) {
+        this.checkLive();
         if (opt != null) {
             if (opt.getValueFast() == null) {
                 this.removeOption(opt.getCode());
             } else {
-                this.options.put(opt.getCode(), opt);
+                this.materializeOptions();
+                this.putOption(opt);
             }
         }
     }
@@ -2101,14 +2387,127 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param opt the option code to remove.
      */
     public void removeOption(byte opt) {
-        this.options.remove(opt);
+        this.materializeOptions();
+        int slot = opt & 0xFF;
+        if (this.options[slot] == null) {
+            return;
+        }
+        this.options[slot] = null;
+        for (int i = 0; i < this.optionCount; i++) {
+            if (this.optionOrder[i] == opt) {
+                System.arraycopy(this.optionOrder, i + 1, this.optionOrder, i, this.optionCount - i - 1);
+                break;
+            }
+        }
+        this.optionCount--;
     }
 
     /**
      * Remove all options.
      */
     public void removeAllOptions() {
-        this.options.clear();
+        this.lazyRaw = null;
+        this.lazyIndex = null;
+        this.lazyDecoded = null;
+        this.lazyCount = 0;
+        this.clearOptions();
+    }
+
+    /**
+     * Empties the option table.
+     */
+    private void clearOptions() {
+        for (int i = 0; i < this.optionCount; i++) {
+            this.options[this.optionOrder[i] & 0xFF] = null;
+        }
+        this.optionCount = 0;
+    }
+
+    /**
+     * Stores an option, appending its code to the creation order if new.
+     */
+    private void putOption(DHCPOption opt) {
+        int slot = opt.getCode() & 0xFF;
+        if (this.options[slot] == null) {
+            if (this.optionCount == this.optionOrder.length) {
+                this.optionOrder = Arrays.copyOf(this.optionOrder, this.optionCount * 2);
+            }
+            this.optionOrder[this.optionCount++] = opt.getCode();
+        }
+        this.options[slot] = opt;
+    }
+
+    /**
+     * @return <tt>true</tt> if some options are still waiting to be decoded.
+     */
+    public boolean isLazy() {
+        return this.lazyRaw != null;
+    }
+
+    /**
+     * Records the position of an option in lazy mode.
+     */
+    private void indexOption(int code, int offset, int len) {
+        if (this.lazyCount == this.lazyIndex.length) {
+            this.lazyIndex = Arrays.copyOf(this.lazyIndex, this.lazyCount * 2);
+        }
+        this.lazyIndex[this.lazyCount++] = ((code & 0xFF) << 24) | (offset << 8) | len;
+    }
+
+    /**
+     * Finds an option in the lazy index. As with the map, the last occurrence wins.
+     *
+     * @return index in <tt>lazyIndex</tt>, or -1 if not present.
+     */
+    private int lazyFind(byte code) {
+        for (int i = this.lazyCount - 1; i >= 0; i--) {
+            if ((byte) (this.lazyIndex[i] >>> 24) == code) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Decodes an option in lazy mode, decoded options are kept for further calls.
+     */
+    private DHCPOption lazyOption(byte code) {
+        int i = this.lazyFind(code);
+        if (i < 0) {
+            return null;
+        }
+        if (this.lazyDecoded == null) {
+            this.lazyDecoded = new DHCPOption[this.lazyCount];
+        }
+        DHCPOption opt = this.lazyDecoded[i];
+        if (opt == null) {
+            int entry  = this.lazyIndex[i];
+            int offset = (entry >>> 8) & 0xFFFF;
+            int len    = entry & 0xFF;
+            opt = new DHCPOption(code, Arrays.copyOfRange(this.lazyRaw, offset, offset + len));
+            this.lazyDecoded[i] = opt;
+        }
+        return opt;
+    }
+
+    /**
+     * Decodes all options still pending in lazy mode, and stores them in the map
+     * in wire order. Called before any modification or full traversal of options.
+     */
+    private void materializeOptions() {
+        if (this.lazyRaw == null) {
+            return;
+        }
+        for (int i = 0; i < this.lazyCount; i++) {
+            byte code = (byte) (this.lazyIndex[i] >>> 24);
+            if (this.options[code & 0xFF] == null) {
+                this.putOption(this.lazyOption(code));    // position of first occurrence
+            }
+        }
+        this.lazyRaw     = null;
+        this.lazyIndex   = null;
+        this.lazyDecoded = null;
+        this.lazyCount   = 0;
     }
 
     /**
@@ -2119,6 +2518,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * or from which the datagram was received. <tt>null</tt> if no address.
      */
     public InetAddress getAddress() {
+        this.checkLive();
         return this.address;
     }
 
@@ -2129,6 +2529,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @throws IllegalArgumentException address is not of <tt>Inet4Address</tt> class.
      */
     public void setAddress(InetAddress address) {
+        this.checkLive();
     	if (address == null) {
     		this.address = null;
     	} else if (!(address instanceof Inet4Address)) {
@@ -2146,6 +2547,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * or from which the datagram was received.
      */
     public int getPort() {
+        this.checkLive();
         return this.port;
     }
 
@@ -2155,6 +2557,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param port the port number.
      */
     public void setPort(int port) {
+        this.checkLive();
         this.port = port;
     }
     
@@ -2164,6 +2567,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @return address + port.
      */
     public InetSocketAddress getAddrPort() {
+        this.checkLive();
     	return new InetSocketAddress(address, port);
     }
     
@@ -2173,6 +2577,7 @@ public class DHCPPacket implements Cloneable, Serializable {
      * @param addrPort address and port, if <tt>null</t> address is set to null and port to 0
      */
     public void setAddrPort(InetSocketAddress addrPort) {
+        this.checkLive();
     	if (addrPort == null) {
     		setAddress(null);
     		setPort(0);
@@ -0,0 +1,124 @@
+/*
+ *	This file is part of dhcp4java, a DHCP API for the Java language.
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.dhcp4java;
+
+import java.nio.ByteBuffer;
+
+import static org.dhcp4java.DHCPConstants.*;
+
+/**
+ * Classifies raw datagrams before they are parsed.
+ *
+ * <p><tt>classify()</tt> checks the size, the <tt>op</tt> field, the magic cookie and
+ * option 53 straight from the received bytes, and either returns the DHCP message
+ * type or a negative <tt>REJECT_*</tt> code. Nothing is allocated, so junk traffic
+ * (BOOTP, BOOTREPLY from misconfigured relays, unknown message types...) can be
+ * dropped by the receive thread without paying for a full parse.
+ *
+ * <p>A datagram that passes the classifier may still be rejected by the parser, as
+ * only the fields above are checked.
+ */
+public final class DHCPPacketClassifier {
+
+    // Suppresses default constructor, ensuring non-instantiability.
+    private DHCPPacketClassifier() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** datagram too small or too big to be a DHCP packet */
+    public static final int REJECT_MALFORMED        = -1;
+    /** BOOTP packet, no magic cookie */
+    public static final int REJECT_BOOTP            = -2;
+    /** <tt>op</tt> is not BOOTREQUEST */
+    public static final int REJECT_NOT_REQUEST      = -3;
+    /** no DHCP message type option */
+    public static final int REJECT_NO_MESSAGE_TYPE  = -4;
+    /** message type a server does not handle (OFFER, ACK, unknown...) */
+    public static final int REJECT_UNSUPPORTED_TYPE = -5;
+
+    private static final int OFF_OP      = 0;
+    private static final int OFF_COOKIE  = _BOOTP_ABSOLUTE_MIN_LEN;
+    private static final int OFF_OPTIONS = _BOOTP_ABSOLUTE_MIN_LEN + 4;
+
+    /**
+     * Classifies a datagram held in a byte array.
+     *
+     * @param buf the datagram buffer
+     * @param offset offset of the datagram in the buffer
+     * @param length length of the datagram
+     * @return the DHCP message type (DISCOVER, REQUEST, DECLINE, RELEASE or INFORM),
+     * 		or a negative <tt>REJECT_*</tt> code.
+     */
+    public static int classify(byte[] buf, int offset, int length) {
+        return classify(ByteBuffer.wrap(buf, offset, length));
+    }
+
+    /**
+     * Classifies a datagram held in a <tt>ByteBuffer</tt>, from its position to its limit.
+     *
+     * <p>The buffer is left untouched and is expected in network byte order.
+     *
+     * @param buf the datagram buffer
+     * @return the DHCP message type (DISCOVER, REQUEST, DECLINE, RELEASE or INFORM),
+     * 		or a negative <tt>REJECT_*</tt> code.
+     */
+    public static int classify(ByteBuffer buf) {
+        int base   = buf.position();
+        int limit  = buf.limit();
+        int length = limit - base;
+
+        if ((length < _BOOTP_ABSOLUTE_MIN_LEN) || (length > _DHCP_MAX_MTU)) {
+            return REJECT_MALFORMED;
+        }
+        if ((length < OFF_OPTIONS) || (buf.getInt(base + OFF_COOKIE) != _MAGIC_COOKIE)) {
+            return REJECT_BOOTP;
+        }
+        if (buf.get(base + OFF_OP) != BOOTREQUEST) {
+            return REJECT_NOT_REQUEST;
+        }
+
+        int type = -1;		// unsigned byte once found
+        int pos  = base + OFF_OPTIONS;
+        while (pos < limit) {
+            byte code = buf.get(pos++);
+            if (code == DHO_PAD) { continue; }
+            if (code == DHO_END) { break;    }
+            if (pos >= limit)    { break;    }
+            int len = buf.get(pos++) & 0xFF;
+            if (code == DHO_DHCP_MESSAGE_TYPE) {
+                // last occurrence wins, as in DHCPPacket
+                type = ((len == 1) && (pos < limit)) ? (buf.get(pos) & 0xFF) : -1;
+            }
+            pos += len;
+        }
+        if (type < 0) {
+            return REJECT_NO_MESSAGE_TYPE;
+        }
+
+        switch (type) {
+        case DHCPDISCOVER:
+        case DHCPREQUEST:
+        case DHCPDECLINE:
+        case DHCPRELEASE:
+        case DHCPINFORM:
+            return type;
+        default:
+            return REJECT_UNSUPPORTED_TYPE;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ *	This file is part of dhcp4java, a DHCP API for the Java language.
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.dhcp4java;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-thread pool of <tt>DHCPPacket</tt> objects, used by <tt>DHCPCoreServer</tt>.
+ *
+ * <p>The server opens a scope around each request with <tt>enter()</tt>. Within that
+ * scope, packets created by <tt>DHCPPacket.getPacket()</tt> and by
+ * <tt>DHCPResponseFactory</tt> are taken from the pool of the current thread. When
+ * the response has been sent, <tt>exit()</tt> resets them and gives them back.
+ * Outside of a scope, <tt>borrow()</tt> simply creates a new packet.
+ *
+ * <p>As a consequence, a servlet must not keep a reference to the request or the
+ * response once it returns: use <tt>clone()</tt> to keep a copy.
+ *
+ * <p>In debug mode, recycled packets are never reused. They are flagged instead, and
+ * any further access to their options or any attempt to serialize them throws an
+ * <tt>IllegalStateException</tt>, which points to the faulty code.
+ *
+ * <p>Pooling only pays off when the same threads serve many requests, it is
+ * pointless with one virtual thread per request.
+ *
+ * <p>This class is thread-safe.
+ */
+final class DHCPPacketPool {
+
+    /** pool scope opened on the current thread, if any */
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<Scope>();
+
+    private final ThreadLocal<Scope> scopes = new ThreadLocal<Scope>();
+    private final int                capacity;
+    private final boolean            debug;
+    /** number of packets created because the pool was empty */
+    private final AtomicLong         misses = new AtomicLong();
+
+    /**
+     * Constructor.
+     *
+     * @param capacity number of free packets kept per thread, must be positive.
+     * @param debug do we quarantine recycled packets to detect use after recycle?
+     */
+    DHCPPacketPool(int capacity, boolean debug) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.debug    = debug;
+    }
+
+    /**
+     * Opens a pool scope on the current thread, for the duration of one request.
+     */
+    void enter() {
+        Scope scope = this.scopes.get();
+        if (scope == null) {
+            scope = new Scope(this);
+            this.scopes.set(scope);
+        }
+        CURRENT.set(scope);
+    }
+
+    /**
+     * Closes the scope of the current thread, recycling every packet borrowed since
+     * <tt>enter()</tt>.
+     */
+    void exit() {
+        Scope scope = CURRENT.get();
+        CURRENT.remove();
+        if ((scope == null) || (scope.pool != this)) {
+            return;
+        }
+        List<DHCPPacket> borrowed = scope.borrowed;
+        for (int i = 0; i < borrowed.size(); i++) {
+            DHCPPacket packet = borrowed.get(i);
+            if (this.debug) {
+                packet.markRecycled();			// quarantined, never reused
+            } else if (scope.free.size() < this.capacity) {
+                packet.reset();
+                scope.free.push(packet);
+            }
+        }
+        borrowed.clear();
+    }
+
+    /**
+     * Returns an empty packet, from the pool of the current thread if a scope is
+     * open, or a new one otherwise.
+     *
+     * @return a packet in the same state as <tt>new DHCPPacket()</tt>.
+     */
+    static DHCPPacket borrow() {
+        Scope scope = CURRENT.get();
+        if (scope == null) {
+            return new DHCPPacket();
+        }
+        DHCPPacket packet = scope.free.poll();
+        if (packet == null) {
+            scope.pool.misses.incrementAndGet();
+            packet = new DHCPPacket();
+        }
+        scope.borrowed.add(packet);
+        return packet;
+    }
+
+    boolean isDebug() {
+        return this.debug;
+    }
+
+    /**
+     * @return the number of packets created because a pool was empty.
+     */
+    long getMisses() {
+        return this.misses.get();
+    }
+
+    /**
+     * Per-thread state: free packets and packets borrowed in the current scope.
+     */
+    private static final class Scope {
+        final DHCPPacketPool        pool;
+        final ArrayDeque<DHCPPacket> free     = new ArrayDeque<DHCPPacket>();
+        final List<DHCPPacket>      borrowed = new ArrayList<DHCPPacket>(4);
+
+        Scope(DHCPPacketPool pool) {
+            this.pool = pool;
+        }
+    }
+}
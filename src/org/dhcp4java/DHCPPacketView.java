@@ -0,0 +1,490 @@
+/*
+ *	This file is part of dhcp4java, a DHCP API for the Java language.
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.dhcp4java;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import static org.dhcp4java.DHCPConstants.*;
+
+/**
+ * Read-only flyweight view of a DHCP datagram held in a <tt>ByteBuffer</tt>.
+ *
+ * <p>Unlike <tt>DHCPPacket</tt>, nothing is copied when the view is created: every
+ * getter reads the field or option straight from the buffer, at its offset. This makes
+ * triage and simple servlets much cheaper, as most requests only need a handful of
+ * fields (xid, chaddr, giaddr, message type and a few options). A full
+ * <tt>DHCPPacket</tt> can be built at any time through <tt>toPacket()</tt>.
+ *
+ * <p>A view can be re-pointed to another buffer with <tt>wrap()</tt>, so that a single
+ * instance per thread is enough.
+ *
+ * <p>Options are located by scanning the options area on each call. When an option
+ * appears several times, the last occurrence is used, consistently with
+ * <tt>DHCPPacket</tt>.
+ *
+ * <p><b>Note</b>: the view is only valid as long as the underlying buffer is not reused.
+ * When a servlet is called by <tt>DHCPCoreServer</tt>, the buffer goes back to the
+ * server once the servlet returns, so the view must not be kept; call
+ * <tt>toPacket()</tt> if the request has to outlive the call.
+ *
+ * <p>This class is not thread-safe.
+ */
+public final class DHCPPacketView {
+
+    // offsets of the static part of the packet
+    private static final int OFF_OP     = 0;
+    private static final int OFF_HTYPE  = 1;
+    private static final int OFF_HLEN   = 2;
+    private static final int OFF_HOPS   = 3;
+    private static final int OFF_XID    = 4;
+    private static final int OFF_SECS   = 8;
+    private static final int OFF_FLAGS  = 10;
+    private static final int OFF_CIADDR = 12;
+    private static final int OFF_YIADDR = 16;
+    private static final int OFF_SIADDR = 20;
+    private static final int OFF_GIADDR = 24;
+    private static final int OFF_CHADDR = 28;
+    private static final int OFF_COOKIE = _BOOTP_ABSOLUTE_MIN_LEN;
+    private static final int OFF_OPTIONS = _BOOTP_ABSOLUTE_MIN_LEN + 4;
+
+    private ByteBuffer  buffer;
+    private int         base;      // buffer position of the first byte of the datagram
+    private int         limit;     // buffer limit
+    private boolean     isDhcp;
+    private InetAddress address;
+    private int         port;
+
+    /**
+     * Creates an empty view, to be pointed to a datagram through <tt>wrap()</tt>.
+     */
+    public DHCPPacketView() {
+        // nothing
+    }
+
+    /**
+     * Creates a view over a datagram.
+     *
+     * @param buf buffer holding the datagram, from position to limit
+     * @param address the address from which the packet was sent, or <tt>null</tt>
+     * @param port the port from which the packet was sent
+     * @throws DHCPBadPacketException the datagram is too small or too big
+     */
+    public DHCPPacketView(ByteBuffer buf, InetAddress address, int port) {
+        this.wrap(buf, address, port);
+    }
+
+    /**
+     * Points this view to a new datagram.
+     *
+     * <p>The buffer's position and limit are read once, the buffer is never modified.
+     * It is expected in network byte order (the default for <tt>ByteBuffer</tt>).
+     *
+     * @param buf buffer holding the datagram, from position to limit
+     * @param address0 the address from which the packet was sent, or <tt>null</tt>
+     * @param port0 the port from which the packet was sent
+     * @return this view
+     * @throws IllegalArgumentException buf is <tt>null</tt>
+     * @throws DHCPBadPacketException the datagram is too small or too big
+     */
+    public DHCPPacketView wrap(ByteBuffer buf, InetAddress address0, int port0) {
+        if (buf == null) {
+            throw new IllegalArgumentException("null buffer not allowed");
+        }
+        int length = buf.remaining();
+        if (length < _BOOTP_ABSOLUTE_MIN_LEN + 4) {
+            throw new DHCPBadPacketException("DHCP Packet too small (" + length +
+                    ") absolute minimum is " + (_BOOTP_ABSOLUTE_MIN_LEN + 4));
+        }
+        if (length > _DHCP_MAX_MTU) {
+            throw new DHCPBadPacketException("DHCP Packet too big (" + length +
+                    ") max MTU is " + _DHCP_MAX_MTU);
+        }
+        this.buffer  = buf;
+        this.base    = buf.position();
+        this.limit   = buf.limit();
+        this.isDhcp  = (buf.getInt(this.base + OFF_COOKIE) == _MAGIC_COOKIE);
+        this.address = address0;
+        this.port    = port0;
+        return this;
+    }
+
+    /**
+     * Builds a full <tt>DHCPPacket</tt> out of this view, in strict mode.
+     *
+     * <p>This is where the real parsing cost is paid.
+     *
+     * @return the newly created packet
+     * @throws DHCPBadPacketException the datagram is malformed
+     */
+    public DHCPPacket toPacket() {
+        return this.toPacket(true);
+    }
+
+    /**
+     * Builds a full <tt>DHCPPacket</tt> out of this view.
+     *
+     * <p>Options of the resulting packet are decoded lazily, see
+     * <tt>DHCPPacket.getPacket(ByteBuffer, InetAddress, int, boolean, boolean)</tt>.
+     *
+     * @param strict do we parse in strict mode?
+     * @return the newly created packet
+     * @throws DHCPBadPacketException the datagram is malformed
+     */
+    public DHCPPacket toPacket(boolean strict) {
+        ByteBuffer buf = this.buffer.duplicate();
+        buf.position(this.base).limit(this.limit);
+        return DHCPPacket.getPacket(buf, this.address, this.port, strict, true);
+    }
+
+    // ========================================================================
+    // static part
+
+    public byte getOp() {
+        return this.buffer.get(this.base + OFF_OP);
+    }
+
+    public byte getHtype() {
+        return this.buffer.get(this.base + OFF_HTYPE);
+    }
+
+    public byte getHlen() {
+        return this.buffer.get(this.base + OFF_HLEN);
+    }
+
+    public byte getHops() {
+        return this.buffer.get(this.base + OFF_HOPS);
+    }
+
+    public int getXid() {
+        return this.buffer.getInt(this.base + OFF_XID);
+    }
+
+    public short getSecs() {
+        return this.buffer.getShort(this.base + OFF_SECS);
+    }
+
+    public short getFlags() {
+        return this.buffer.getShort(this.base + OFF_FLAGS);
+    }
+
+    /**
+     * @return the ciaddr field as a 32 bits int, see <tt>Util.int2InetAddress</tt>.
+     */
+    public int getCiaddrAsInt() {
+        return this.buffer.getInt(this.base + OFF_CIADDR);
+    }
+
+    public InetAddress getCiaddr() {
+        return Util.int2InetAddress(this.getCiaddrAsInt());
+    }
+
+    /**
+     * @return the yiaddr field as a 32 bits int, see <tt>Util.int2InetAddress</tt>.
+     */
+    public int getYiaddrAsInt() {
+        return this.buffer.getInt(this.base + OFF_YIADDR);
+    }
+
+    public InetAddress getYiaddr() {
+        return Util.int2InetAddress(this.getYiaddrAsInt());
+    }
+
+    /**
+     * @return the siaddr field as a 32 bits int, see <tt>Util.int2InetAddress</tt>.
+     */
+    public int getSiaddrAsInt() {
+        return this.buffer.getInt(this.base + OFF_SIADDR);
+    }
+
+    public InetAddress getSiaddr() {
+        return Util.int2InetAddress(this.getSiaddrAsInt());
+    }
+
+    /**
+     * @return the giaddr field as a 32 bits int, see <tt>Util.int2InetAddress</tt>.
+     */
+    public int getGiaddrAsInt() {
+        return this.buffer.getInt(this.base + OFF_GIADDR);
+    }
+
+    public InetAddress getGiaddr() {
+        return Util.int2InetAddress(this.getGiaddrAsInt());
+    }
+
+    /**
+     * Returns the chaddr field (Client hardware address - typically MAC address).
+     *
+     * @return a copy of the raw byte[16] field. Only the first <tt>hlen</tt> bytes are valid.
+     */
+    public byte[] getChaddr() {
+        byte[] chaddr = new byte[16];
+        this.copy(this.base + OFF_CHADDR, chaddr, 16);
+        return chaddr;
+    }
+
+    /**
+     * Returns the first <tt>n</tt> bytes of chaddr as an unsigned big-endian number.
+     *
+     * <p>With <tt>n=6</tt> this is the usual 48 bits ethernet MAC address packed in
+     * a <tt>long</tt>, which is handy as a hash key.
+     *
+     * @param n number of bytes, between 0 and 8
+     * @return the packed bytes
+     */
+    public long getChaddrAsLong(int n) {
+        if ((n < 0) || (n > 8)) {
+            throw new IllegalArgumentException("n must be between 0 and 8: " + n);
+        }
+        long mac = 0;
+        for (int i = 0; i < n; i++) {
+            mac = (mac << 8) | (this.buffer.get(this.base + OFF_CHADDR + i) & 0xFF);
+        }
+        return mac;
+    }
+
+    /**
+     * @return the hardware address (@MAC) as an <tt>HardwareAddress</tt> object.
+     */
+    public HardwareAddress getHardwareAddress() {
+        int len = this.getHlen() & 0xFF;
+        if (len > 16) {
+            len = 16;
+        }
+        byte[] buf = new byte[len];
+        this.copy(this.base + OFF_CHADDR, buf, len);
+        return new HardwareAddress(this.getHtype(), buf);
+    }
+
+    public boolean isDhcp() {
+        return this.isDhcp;
+    }
+
+    public InetAddress getAddress() {
+        return this.address;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    // ========================================================================
+    // options
+
+    /**
+     * Return the DHCP Message Type.
+     *
+     * @return option type, or <tt>null</tt> if not present.
+     */
+    public Byte getDHCPMessageType() {
+        return this.getOptionAsByte(DHO_DHCP_MESSAGE_TYPE);
+    }
+
+    /**
+     * Tests whether an option code is present in the packet.
+     *
+     * @param code DHCP option code
+     * @return true if option is present
+     */
+    public boolean containsOption(byte code) {
+        return this.findOption(code) >= 0;
+    }
+
+    /**
+     * Returns the absolute index in the buffer of the first byte of an option value.
+     *
+     * <p>Together with <tt>getOptionLength()</tt> this gives zero-copy access to any option.
+     *
+     * @param code option code
+     * @return the offset, or -1 if the option is not present.
+     */
+    public int getOptionOffset(byte code) {
+        long found = this.findOption(code);
+        return (found < 0) ? -1 : (int) (found >>> 16);
+    }
+
+    /**
+     * Returns the length of an option value.
+     *
+     * @param code option code
+     * @return the length, or -1 if the option is not present.
+     */
+    public int getOptionLength(byte code) {
+        long found = this.findOption(code);
+        return (found < 0) ? -1 : (int) (found & 0xFFFF);
+    }
+
+    /**
+     * Returns a copy of the option value.
+     *
+     * @param code option code
+     * @return the option value, or <tt>null</tt> if the option is not present.
+     */
+    public byte[] getOptionRaw(byte code) {
+        long found = this.findOption(code);
+        if (found < 0) {
+            return null;
+        }
+        byte[] value = new byte[(int) (found & 0xFFFF)];
+        this.copy((int) (found >>> 16), value, value.length);
+        return value;
+    }
+
+    /**
+     * Returns the option as a <tt>DHCPOption</tt>.
+     *
+     * @param code option code
+     * @return the option, or <tt>null</tt> if the option is not present.
+     */
+    public DHCPOption getOption(byte code) {
+        byte[] value = this.getOptionRaw(code);
+        return (value == null) ? null : new DHCPOption(code, value);
+    }
+
+    /**
+     * Returns a DHCP Option as Byte format, see <tt>DHCPPacket.getOptionAsByte()</tt>.
+     *
+     * @param code the option code.
+     * @return the option value, <tt>null</tt> if option is not present.
+     * @throws IllegalArgumentException the option code is not of byte format.
+     * @throws DHCPBadPacketException the option value in packet is of wrong size.
+     */
+    public Byte getOptionAsByte(byte code) {
+        if (!DHCPOption.isOptionAsByte(code)) {
+            throw new IllegalArgumentException("DHCP option type (" + code + ") is not byte");
+        }
+        int offset = this.checkedOffset(code, 1);
+        return (offset < 0) ? null : this.buffer.get(offset);
+    }
+
+    /**
+     * Returns a DHCP Option as Short format, see <tt>DHCPPacket.getOptionAsShort()</tt>.
+     *
+     * @param code the option code.
+     * @return the option value, <tt>null</tt> if option is not present.
+     * @throws IllegalArgumentException the option code is not of short format.
+     * @throws DHCPBadPacketException the option value in packet is of wrong size.
+     */
+    public Short getOptionAsShort(byte code) {
+        if (!DHCPOption.isOptionAsShort(code)) {
+            throw new IllegalArgumentException("DHCP option type (" + code + ") is not short");
+        }
+        int offset = this.checkedOffset(code, 2);
+        return (offset < 0) ? null : this.buffer.getShort(offset);
+    }
+
+    /**
+     * Returns a DHCP Option as Integer format, see <tt>DHCPPacket.getOptionAsInteger()</tt>.
+     *
+     * @param code the option code.
+     * @return the option value, <tt>null</tt> if option is not present.
+     * @throws IllegalArgumentException the option code is not of int format.
+     * @throws DHCPBadPacketException the option value in packet is of wrong size.
+     */
+    public Integer getOptionAsInteger(byte code) {
+        if (!DHCPOption.isOptionAsInt(code)) {
+            throw new IllegalArgumentException("DHCP option type (" + code + ") is not int");
+        }
+        int offset = this.checkedOffset(code, 4);
+        return (offset < 0) ? null : this.buffer.getInt(offset);
+    }
+
+    /**
+     * Returns a DHCP Option as InetAddress format, see <tt>DHCPPacket.getOptionAsInetAddr()</tt>.
+     *
+     * @param code the option code.
+     * @return the option value, <tt>null</tt> if option is not present.
+     * @throws IllegalArgumentException the option code is not of InetAddr format.
+     * @throws DHCPBadPacketException the option value in packet is of wrong size.
+     */
+    public InetAddress getOptionAsInetAddr(byte code) {
+        if (!DHCPOption.isOptionAsInetAddr(code)) {
+            throw new IllegalArgumentException("DHCP option type (" + code + ") is not InetAddr");
+        }
+        int offset = this.checkedOffset(code, 4);
+        return (offset < 0) ? null : Util.int2InetAddress(this.buffer.getInt(offset));
+    }
+
+    /**
+     * Returns a DHCP Option as String format, see <tt>DHCPPacket.getOptionAsString()</tt>.
+     *
+     * @param code the option code.
+     * @return the option value, <tt>null</tt> if option is not present.
+     * @throws IllegalArgumentException the option code is not of String format.
+     */
+    public String getOptionAsString(byte code) {
+        if (!DHCPOption.isOptionAsString(code)) {
+            throw new IllegalArgumentException("DHCP option type (" + code + ") is not string");
+        }
+        byte[] value = this.getOptionRaw(code);
+        return (value == null) ? null : DHCPPacket.bytesToString(value);
+    }
+
+    /**
+     * Syntactic sugar for getAddress/getPort.
+     *
+     * @return address + port.
+     */
+    public InetSocketAddress getAddrPort() {
+        return new InetSocketAddress(this.address, this.port);
+    }
+
+    /**
+     * Locates the last occurrence of an option.
+     *
+     * @return <tt>(offset << 16) | length</tt>, or -1 if not found.
+     */
+    private long findOption(byte code) {
+        if (!this.isDhcp) {
+            return -1;
+        }
+        long found = -1;
+        int  pos   = this.base + OFF_OPTIONS;
+        while (pos < this.limit) {
+            byte type = this.buffer.get(pos++);
+            if (type == DHO_PAD) { continue; }
+            if (type == DHO_END) { break;    }
+            if (pos >= this.limit) { break;  }
+            int len = Math.min(this.buffer.get(pos++) & 0xFF, this.limit - pos);
+            if (type == code) {
+                found = ((long) pos << 16) | len;
+            }
+            pos += len;
+        }
+        return found;
+    }
+
+    private int checkedOffset(byte code, int size) {
+        long found = this.findOption(code);
+        if (found < 0) {
+            return -1;
+        }
+        int len = (int) (found & 0xFFFF);
+        if (len != size) {
+            throw new DHCPBadPacketException("option " + code + " is wrong size:" + len + " should be " + size);
+        }
+        return (int) (found >>> 16);
+    }
+
+    private void copy(int from, byte[] dst, int len) {
+        for (int i = 0; i < len; i++) {
+            dst[i] = this.buffer.get(from + i);
+        }
+    }
+}
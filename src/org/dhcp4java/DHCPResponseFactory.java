@@ -88,7 +88,7 @@ public final class DHCPResponseFactory {
 			throw new IllegalArgumentException("offeredAddress must be IPv4");
 		}
 		
-		DHCPPacket resp = new DHCPPacket();
+		DHCPPacket resp = DHCPPacketPool.borrow();
 		
 		resp.setOp(BOOTREPLY);
 		resp.setHtype(request.getHtype());
@@ -170,7 +170,7 @@ public final class DHCPResponseFactory {
 		}
 		
 		
-		DHCPPacket resp = new DHCPPacket();
+		DHCPPacket resp = DHCPPacketPool.borrow();
 		
 		resp.setOp(BOOTREPLY);
 		resp.setHtype(request.getHtype());
@@ -244,7 +244,7 @@ public final class DHCPResponseFactory {
 			throw new DHCPBadPacketException("request is not DHCPREQUEST");
 		}
 		
-		DHCPPacket resp = new DHCPPacket();
+		DHCPPacket resp = DHCPPacketPool.borrow();
 		
 		resp.setOp(BOOTREPLY);
 		resp.setHtype(request.getHtype());
@@ -20,6 +20,8 @@ package org.dhcp4java;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -43,6 +45,10 @@ public class DHCPServlet {
     
     /** the server instance running this servlet */
     protected DHCPCoreServer server = null;
+
+    /** whether a subclass overrides the low-level entry points, which must then see every datagram */
+    private final boolean customDatagram = this.overrides("serviceDatagram", DatagramPacket.class);
+    private final boolean customBuffer   = this.overrides("serviceBuffer", ByteBuffer.class, InetSocketAddress.class);
     
     /**
      * Initialize servlet. Override this method to implement any initialization you may need.
@@ -71,11 +77,35 @@ public class DHCPServlet {
      * @return response the datagram to send back, or <tt>null</tt> if no answer
      */
     public DatagramPacket serviceDatagram(DatagramPacket requestDatagram) {
+        return this.serviceDatagram(requestDatagram, false);
+    }
+
+    /**
+     * Called by <tt>DHCPCoreServer</tt> for a datagram already let through by <tt>classify()</tt>
+     * on the receive thread, so that it is not classified a second time.
+     *
+     * @param requestDatagram the datagram received from the client
+     * @return response the datagram to send back, or <tt>null</tt> if no answer
+     */
+    DatagramPacket serviceClassifiedDatagram(DatagramPacket requestDatagram) {
+        if (this.customDatagram) {
+            return this.serviceDatagram(requestDatagram);
+        }
+        return this.serviceDatagram(requestDatagram, true);
+    }
+
+    private DatagramPacket serviceDatagram(DatagramPacket requestDatagram, boolean classified) {
         DatagramPacket responseDatagram;
     	
         if (requestDatagram == null) { return null; }
 
         try {
+            // drop junk before parsing
+            if (!classified && !this.accept(ByteBuffer.wrap(requestDatagram.getData(), requestDatagram.getOffset(),
+                                                            requestDatagram.getLength()))) {
+                return null;
+            }
+
             // parse DHCP request
             DHCPPacket request = DHCPPacket.getPacket(requestDatagram);
 
@@ -122,6 +152,143 @@ public class DHCPServlet {
         return null;
     }
 
+    /**
+     * Low-level method for receiving a UDP payload held in a <tt>ByteBuffer</tt>.
+     *
+     * <p>This is the counterpart of <tt>serviceDatagram()</tt> used by the NIO engine
+     * of <tt>DHCPCoreServer</tt>. The request is parsed in place from the buffer,
+     * which belongs to the server and must not be kept once this method returns.
+     *
+     * <p>The response is returned as a <tt>DHCPPacket</tt> whose address and port
+     * are already set, the server takes care of serializing and sending it.
+     * <tt>postProcess()</tt> is not called on this path since no
+     * <tt>DatagramPacket</tt> is ever built.
+     *
+     * @param requestBuffer the datagram payload, from position to limit
+     * @param sender address and port of the client or relay
+     * @return the response packet to send back, or <tt>null</tt> if no answer
+     */
+    public DHCPPacket serviceBuffer(ByteBuffer requestBuffer, InetSocketAddress sender) {
+        return this.serviceBuffer(requestBuffer, sender, false);
+    }
+
+    /**
+     * Called by <tt>DHCPCoreServer</tt> for a buffer already let through by <tt>classify()</tt>
+     * on the receive thread, so that it is not classified a second time.
+     *
+     * @param requestBuffer the datagram payload, from position to limit
+     * @param sender address and port of the client or relay
+     * @return the response packet to send back, or <tt>null</tt> if no answer
+     */
+    DHCPPacket serviceClassifiedBuffer(ByteBuffer requestBuffer, InetSocketAddress sender) {
+        if (this.customBuffer) {
+            return this.serviceBuffer(requestBuffer, sender);
+        }
+        return this.serviceBuffer(requestBuffer, sender, true);
+    }
+
+    private DHCPPacket serviceBuffer(ByteBuffer requestBuffer, InetSocketAddress sender, boolean classified) {
+        if ((requestBuffer == null) || (sender == null)) { return null; }
+
+        try {
+            // drop junk before parsing
+            if (!classified && !this.accept(requestBuffer)) {
+                return null;
+            }
+
+            // map DHCP request, no parsing yet
+            DHCPPacketView request = new DHCPPacketView(requestBuffer, sender.getAddress(), sender.getPort());
+
+            // do the real work
+            DHCPPacket response = this.serviceView(request); // call service function
+            // done
+            if (logger.isLoggable(Level.FINER)) {
+                logger.finer("service() done");
+            }
+            if (response == null) { return null; }
+
+            // check address/port
+            if (response.getAddress() == null) {
+                logger.warning("Address needed in response");
+                return null;
+            }
+            return response;
+        } catch (DHCPBadPacketException e) {
+            logger.log(Level.INFO, "Invalid DHCP packet received", e);
+        } catch (Exception e) {
+            logger.log(Level.INFO, "Unexpected Exception", e);
+        }
+
+        // general fallback, we do nothing
+        return null;
+    }
+
+    /**
+     * Classifies a raw datagram, before anything is parsed.
+     *
+     * <p>The default implementation uses <tt>DHCPPacketClassifier</tt>, and only lets
+     * through BOOTREQUEST packets carrying a message type handled by <tt>service()</tt>.
+     * Servlets that override <tt>service()</tt> to handle more (BOOTP for example) must
+     * override this method too.
+     *
+     * <p>This method is also called by <tt>DHCPCoreServer</tt> on its receive threads,
+     * so that junk traffic never reaches the worker queue. It must be thread-safe and
+     * must not modify the buffer.
+     *
+     * @param request the raw datagram, from position to limit
+     * @return the DHCP message type, or a negative <tt>DHCPPacketClassifier.REJECT_*</tt>
+     * 		code to drop the datagram.
+     */
+    protected int classify(ByteBuffer request) {
+        return DHCPPacketClassifier.classify(request);
+    }
+
+    /**
+     * @return <tt>true</tt> if the subclass overrides the given public method.
+     */
+    private boolean overrides(String name, Class<?>... parameterTypes) {
+        try {
+            return this.getClass().getMethod(name, parameterTypes).getDeclaringClass() != DHCPServlet.class;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return <tt>true</tt> if <tt>classify()</tt> lets the datagram through.
+     */
+    private boolean accept(ByteBuffer request) {
+        int verdict = this.classify(request);
+        if (verdict < 0) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Datagram rejected before parsing (" + verdict + ')');
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Entry point for requests received by <tt>serviceBuffer()</tt>.
+     *
+     * <p>The view reads fields and options directly from the receive buffer. Servlets
+     * that only need a few fields can override this method and avoid building a full
+     * <tt>DHCPPacket</tt>; the view must not be kept after this method returns.
+     *
+     * <p>The default implementation parses the whole packet and calls <tt>service()</tt>.
+     *
+     * @param request the incoming request, never <tt>null</tt>
+     * @return the response packet or null if no response is sent back.
+     */
+    protected DHCPPacket serviceView(DHCPPacketView request) {
+        DHCPPacket packet = request.toPacket();
+
+        if (logger.isLoggable(Level.FINER)) {
+            logger.finer(packet.toString());
+        }
+        return this.service(packet);
+    }
+
     /**
      * General method for parsing a DHCP request.
      * 
@@ -0,0 +1,125 @@
+/*
+ *	This file is part of dhcp4java, a DHCP API for the Java language.
+ *	(c) 2006 Stephan Hadinger
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.dhcp4java;
+
+import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Servlet dispatcher
+ */
+class DHCPServletDispatcher implements Runnable {
+    private static final Logger logger = Logger.getLogger(DHCPServletDispatcher.class.getName().toLowerCase());
+
+    private final DHCPCoreServer     server;
+    private final DHCPServlet    dispatchServlet;
+    private final DatagramPacket dispatchPacket;
+    private final ByteBuffer     dispatchBuffer;
+    private final InetSocketAddress dispatchSender;
+    private final int            dispatchShard;
+    /** DHCP message type, -1 if not yet known */
+    private int                  messageType = -1;
+
+    public DHCPServletDispatcher(DHCPCoreServer server, DHCPServlet servlet, DatagramPacket req) {
+        this(server, servlet, req, 0);
+    }
+
+    public DHCPServletDispatcher(DHCPCoreServer server, DHCPServlet servlet, DatagramPacket req, int shard) {
+        this.server          = server;
+        this.dispatchServlet = servlet;
+        this.dispatchPacket  = req;
+        this.dispatchBuffer  = null;
+        this.dispatchSender  = null;
+        this.dispatchShard   = shard;
+    }
+
+    public DHCPServletDispatcher(DHCPCoreServer server, DHCPServlet servlet, ByteBuffer req, InetSocketAddress sender, int shard) {
+        this.server          = server;
+        this.dispatchServlet = servlet;
+        this.dispatchPacket  = null;
+        this.dispatchBuffer  = req;
+        this.dispatchSender  = sender;
+        this.dispatchShard   = shard;
+    }
+
+    public void run() {
+        DHCPPacketPool pool = this.server.packetPool;
+        if (pool != null) {
+            pool.enter();		// packets created from now on are recycled in exit()
+        }
+        try {
+            // the first socket goes through the single socket callbacks, which subclasses may override
+            if (this.dispatchBuffer != null) {
+                DHCPPacket response = this.dispatchServlet.serviceClassifiedBuffer(this.dispatchBuffer, this.dispatchSender);
+                if (this.dispatchShard == 0) {
+                    this.server.sendResponse(response);		// invoke callback method
+                } else {
+                    this.server.sendResponse(response, this.dispatchShard);
+                }
+            } else {
+                DatagramPacket response = this.dispatchServlet.serviceClassifiedDatagram(this.dispatchPacket);
+                if (this.dispatchShard == 0) {
+                    this.server.sendResponse(response);		// invoke callback method
+                } else {
+                    this.server.sendResponse(response, this.dispatchShard);
+                }
+            }
+        } catch (Exception e) {
+            logger.log(Level.FINE, "Exception in dispatcher", e);
+        } finally {
+            if (pool != null) {
+                pool.exit();		// response has been sent
+            }
+            this.server.releaseBuffer(this.dispatchBuffer);
+        }
+    }
+
+    /**
+     * Sets the DHCP message type, when already known by the receive thread.
+     */
+    void setDHCPMessageType(byte type) {
+        this.messageType = type & 0xFF;
+    }
+
+    /**
+     * Called instead of <tt>run()</tt> when the request is shed.
+     */
+    void discard() {
+        this.server.releaseBuffer(this.dispatchBuffer);
+    }
+
+    /**
+     * Returns the DHCP message type of the request, as classified by the receive thread,
+     * or read from the raw datagram if it was not.
+     *
+     * @return the message type, 0 if unknown.
+     */
+    byte getDHCPMessageType() {
+        if (this.messageType < 0) {
+            ByteBuffer raw = (this.dispatchBuffer != null) ? this.dispatchBuffer
+                    : ByteBuffer.wrap(this.dispatchPacket.getData(),
+                                      this.dispatchPacket.getOffset(), this.dispatchPacket.getLength());
+            this.messageType = Math.max(DHCPPacketClassifier.classify(raw), 0);
+        }
+        return (byte) this.messageType;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ *	This file is part of dhcp4java, a DHCP API for the Java language.
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.dhcp4java;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executor starting one virtual thread per servlet request.
+ *
+ * <p>Virtual threads are cheap to create and to block, so slow servlets (scripts,
+ * disk or network access) do not starve a small pool of platform threads. The number
+ * of requests running at once is capped by <tt>maxConcurrency</tt>; requests above
+ * that cap wait in a bounded queue, and the <tt>DHCPLoadShedder</tt> decides what to
+ * drop when the queue is full.
+ *
+ * <p>Virtual threads need a Java 21 runtime. They are looked up by reflection so that
+ * the library still runs on older JVMs, where this executor falls back to short-lived
+ * platform threads with the same concurrency cap.
+ *
+ * <p>This class is thread-safe.
+ */
+final class DHCPVirtualExecutor extends AbstractExecutorService {
+
+    private static final Logger logger = Logger.getLogger(DHCPVirtualExecutor.class.getName().toLowerCase());
+
+    private final ThreadFactory           threadFactory;
+    private final boolean                 virtual;
+    private final Semaphore               permits;
+    private final BlockingQueue<Runnable> pending;
+    private final DHCPLoadShedder         shedder;
+    /** number of running requests, used for termination */
+    private final AtomicInteger           running = new AtomicInteger();
+    private volatile boolean              shutdown;
+
+    /**
+     * Constructor.
+     *
+     * @param maxConcurrency maximum number of requests running at once.
+     * @param queueSize number of requests waiting for a permit.
+     * @param shedder admission control applied when the queue is full.
+     * @param namePrefix prefix for thread names.
+     */
+    DHCPVirtualExecutor(int maxConcurrency, int queueSize, DHCPLoadShedder shedder, String namePrefix) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency must be positive: " + maxConcurrency);
+        }
+        ThreadFactory factory = newVirtualThreadFactory(namePrefix);
+        this.virtual       = (factory != null);
+        if (factory == null) {
+            logger.warning("Virtual threads not available on this JVM, using platform threads");
+            factory = new PlatformThreadFactory(namePrefix);
+        }
+        this.threadFactory = factory;
+        this.permits       = new Semaphore(maxConcurrency);
+        this.pending       = new ArrayBlockingQueue<Runnable>(queueSize);
+        this.shedder       = shedder;
+    }
+
+    /**
+     * @return <tt>true</tt> if requests really run on virtual threads.
+     */
+    boolean isVirtual() {
+        return this.virtual;
+    }
+
+    public void execute(Runnable command) {
+        if (command == null) {
+            throw new NullPointerException();
+        }
+        if (!this.shutdown && this.permits.tryAcquire()) {
+            this.start(command);
+        } else if (this.shutdown || !this.pending.offer(command)) {
+            this.shedder.shed(command, this.pending, this.shutdown);
+        } else {
+            this.startPending();	// a permit may have been released meanwhile
+        }
+    }
+
+    /**
+     * Starts a thread for a request, the caller owns a permit.
+     */
+    private void start(final Runnable command) {
+        this.running.incrementAndGet();
+        boolean started = false;
+        try {
+            Thread thread = this.threadFactory.newThread(new Runnable() {
+                public void run() {
+                    try {
+                        command.run();
+                    } finally {
+                        DHCPVirtualExecutor.this.finished();
+                    }
+                }
+            });
+            thread.start();
+            started = true;
+        } finally {
+            if (!started) {
+                // no thread will call finished(): give back what was taken
+                this.running.decrementAndGet();
+                this.permits.release();
+            }
+        }
+    }
+
+    private void finished() {
+        this.running.decrementAndGet();
+        this.permits.release();
+        this.startPending();
+        if (this.shutdown) {
+            synchronized (this) {
+                this.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Starts as many waiting requests as there are free permits.
+     */
+    private void startPending() {
+        while (!this.pending.isEmpty() && this.permits.tryAcquire()) {
+            Runnable next = this.pending.poll();
+            if (next == null) {
+                this.permits.release();
+                return;
+            }
+            this.start(next);
+        }
+    }
+
+    public void shutdown() {
+        this.shutdown = true;
+    }
+
+    public List<Runnable> shutdownNow() {
+        this.shutdown = true;
+        List<Runnable> drained = new ArrayList<Runnable>();
+        this.pending.drainTo(drained);
+        return drained;
+    }
+
+    public boolean isShutdown() {
+        return this.shutdown;
+    }
+
+    public boolean isTerminated() {
+        return this.shutdown && (this.running.get() == 0) && this.pending.isEmpty();
+    }
+
+    public synchronized boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!this.isTerminated()) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return true;
+    }
+
+    /**
+     * Returns a factory of virtual threads, through <tt>Thread.ofVirtual()</tt>.
+     *
+     * @return the factory, or <tt>null</tt> if virtual threads are not supported.
+     */
+    static ThreadFactory newVirtualThreadFactory(String namePrefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ClassNotFoundException e) {
+            return null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (IllegalAccessException e) {
+            return null;
+        } catch (InvocationTargetException e) {
+            // preview feature not enabled
+            logger.log(Level.FINE, "Virtual threads disabled", e.getCause());
+            return null;
+        }
+    }
+
+    private static class PlatformThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger();
+        private final String        namePrefix;
+
+        PlatformThreadFactory(String namePrefix) {
+            this.namePrefix = namePrefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, this.namePrefix + this.threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
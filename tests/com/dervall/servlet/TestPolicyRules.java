@@ -0,0 +1,144 @@
+package com.dervall.servlet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.DHCPPacket;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+
+import static com.dervall.servlet.PolicyRules.Verdict.*;
+import static org.dhcp4java.DHCPConstants.*;
+import static org.junit.Assert.*;
+
+public class TestPolicyRules {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestPolicyRules.class);
+    }
+
+    private static PolicyRules parse(String text) throws IOException {
+        return PolicyRules.parse(new StringReader(text));
+    }
+
+    private static DHCPPacket request(String mac) {
+        DHCPPacket request = new DHCPPacket();
+        request.setOp(BOOTREQUEST);
+        request.setHtype(HTYPE_ETHER);
+        request.setHlen((byte) 6);
+        request.setChaddrHex(mac);
+        request.setDHCPMessageType(DHCPDISCOVER);
+        return request;
+    }
+
+    private static DHCPPacket relayed(String mac, String giaddr) throws Exception {
+        DHCPPacket request = request(mac);
+        request.setGiaddr(InetAddress.getByName(giaddr));
+        return request;
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        PolicyRules rules = parse("# nothing\n\n");
+        assertEquals(0, rules.size());
+        assertEquals(SCRIPT, rules.evaluate(request("001122334455")));
+        assertEquals(DENY, parse("default deny").evaluate(request("001122334455")));
+    }
+
+    @Test
+    public void testMac() throws IOException {
+        PolicyRules rules = parse("deny mac=00:11:22\nallow mac=00-11-23\ndefault script\n");
+        assertEquals(DENY, rules.evaluate(request("001122334455")));
+        assertEquals(ALLOW, rules.evaluate(request("001123000000")));
+        assertEquals(SCRIPT, rules.evaluate(request("001124334455")));
+    }
+
+    @Test
+    public void testOptions() throws IOException {
+        PolicyRules rules = parse("allow vendor=\"MSFT 5.0\" # windows\n"
+                + "deny user=guest\n"
+                + "allow user=voip vendor=phone\n");
+        DHCPPacket request = request("001122334455");
+        request.setOptionRaw(DHO_VENDOR_CLASS_IDENTIFIER, "MSFT 5.0".getBytes("ISO-8859-1"));
+        assertEquals(ALLOW, rules.evaluate(request));
+
+        request = request("001122334455");
+        request.setOptionRaw(DHO_USER_CLASS, "guest".getBytes("ISO-8859-1"));
+        assertEquals(DENY, rules.evaluate(request));
+
+        // all conditions of a rule must match
+        request = request("001122334455");
+        request.setOptionRaw(DHO_USER_CLASS, "voip".getBytes("ISO-8859-1"));
+        assertEquals(SCRIPT, rules.evaluate(request));
+        request.setOptionRaw(DHO_VENDOR_CLASS_IDENTIFIER, "phone\0".getBytes("ISO-8859-1"));
+        assertEquals(ALLOW, rules.evaluate(request));
+    }
+
+    @Test
+    public void testRelayIds() throws IOException {
+        PolicyRules rules = parse("deny circuit=eth0/1/7\nallow remote=modem-12\n");
+        DHCPPacket request = request("001122334455");
+        request.setOptionRaw(DHO_DHCP_AGENT_OPTIONS,
+                new byte[] {1, 8, 'e', 't', 'h', '0', '/', '1', '/', '7', 2, 2, 'x', 'y'});
+        assertEquals(DENY, rules.evaluate(request));
+        request.setOptionRaw(DHO_DHCP_AGENT_OPTIONS,
+                new byte[] {1, 1, 'a', 2, 8, 'm', 'o', 'd', 'e', 'm', '-', '1', '2'});
+        assertEquals(ALLOW, rules.evaluate(request));
+        assertEquals(SCRIPT, rules.evaluate(request("001122334455")));
+    }
+
+    @Test
+    public void testGiaddr() throws Exception {
+        PolicyRules rules = parse("deny giaddr=10.1.2.0/24\n"
+                + "allow giaddr=10.1.0.0/16\n"
+                + "script giaddr=10.0.0.0/8 mac=001122\n"
+                + "deny giaddr=10.0.0.0/8\n"
+                + "allow mac=001122\n");
+        assertEquals(DENY, rules.evaluate(relayed("001122334455", "10.1.2.3")));
+        assertEquals(ALLOW, rules.evaluate(relayed("001122334455", "10.1.3.3")));
+        assertEquals(SCRIPT, rules.evaluate(relayed("001122334455", "10.2.3.3")));
+        assertEquals(DENY, rules.evaluate(relayed("00AA22334455", "10.2.3.3")));
+        assertEquals(ALLOW, rules.evaluate(relayed("001122334455", "11.0.0.1")));
+        // not relayed
+        assertEquals(ALLOW, rules.evaluate(request("001122334455")));
+        assertEquals(SCRIPT, rules.evaluate(request("00AA22334455")));
+    }
+
+    @Test
+    public void testFirstMatchWins() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            text.append("deny mac=0000").append(String.format("%02x", i)).append('\n');
+        }
+        text.append("allow giaddr=10.0.0.0/8\n");
+        text.append("deny mac=000063\n");
+        PolicyRules rules = parse(text.toString());
+        assertEquals(102, rules.size());
+        assertEquals(DENY, rules.evaluate(relayed("000063000000", "10.0.0.1")));
+        assertEquals(ALLOW, rules.evaluate(relayed("000064000000", "10.0.0.1")));
+        assertEquals(SCRIPT, rules.evaluate(request("000064000000")));
+    }
+
+    @Test
+    public void testSyntaxErrors() throws IOException {
+        String[] invalid = {
+                "permit mac=001122",
+                "allow mac=0011",
+                "allow mac=00112g",
+                "allow colour=red",
+                "allow mac",
+                "allow vendor=\"MSFT 5.0",
+                "allow giaddr=10.0.0.0/33",
+                "allow user=a user=b",
+                "default",
+        };
+        for (String line : invalid) {
+            try {
+                parse("# first\n" + line);
+                fail(line);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2: "));
+            }
+        }
+    }
+}
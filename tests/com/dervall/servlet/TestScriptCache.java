@@ -0,0 +1,359 @@
+package com.dervall.servlet;
+
+import com.dervall.subnet.Subnet;
+import groovy.lang.Binding;
+import groovy.lang.Script;
+import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.InetCidr;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.dhcp4java.DHCPConstants.*;
+import static org.junit.Assert.*;
+
+public class TestScriptCache {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestScriptCache.class);
+    }
+
+    private File directory;
+    private final AtomicInteger bindings = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("scripts", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private void write(String name, String text, long modified) throws IOException {
+        File file = new File(directory, name);
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(text);
+        } finally {
+            writer.close();
+        }
+        assertTrue(file.setLastModified(modified));
+    }
+
+    private ScriptCache cache(String... names) {
+        return new ScriptCache(directory, names) {
+            @Override
+            protected Binding createBinding() {
+                bindings.incrementAndGet();
+                Binding binding = new Binding();
+                binding.setVariable("answer", 42);
+                return binding;
+            }
+        };
+    }
+
+    @Test
+    public void testRun() throws IOException {
+        write("a.groovy", "request == null ? answer : request.getXid()", 10000);
+        ScriptCache cache = cache("a.groovy");
+
+        assertEquals(42, cache.run("a.groovy", null));
+        DHCPPacket request = new DHCPPacket();
+        request.setXid(7);
+        assertEquals(7, cache.run("a.groovy", request));
+        // the request does not stay in the binding
+        assertNull(cache.getScript("a.groovy").getBinding().getVariable("request"));
+    }
+
+    static final CyclicBarrier BARRIER = new CyclicBarrier(2);
+
+    @Test
+    public void testInstancePool() throws Exception {
+        write("a.groovy", "if (request != null) com.dervall.servlet.TestScriptCache.BARRIER.await(5, java.util.concurrent.TimeUnit.SECONDS); answer", 10000);
+        final ScriptCache cache = cache("a.groovy");
+
+        cache.run("a.groovy", null);
+        Script first = cache.getScript("a.groovy");
+        assertEquals(1, bindings.get());
+        // owned by the caller, the next run needs another one
+        assertNotSame(first, cache.getScript("a.groovy"));
+        assertEquals(2, bindings.get());
+
+        // two runs at once take two instances
+        bindings.set(0);
+        final Object[] result = new Object[1];
+        Thread thread = new Thread() {
+            public void run() {
+                result[0] = cache.run("a.groovy", new DHCPPacket());
+            }
+        };
+        thread.start();
+        assertEquals(42, cache.run("a.groovy", new DHCPPacket()));
+        thread.join();
+        assertEquals(42, result[0]);
+        assertEquals(2, bindings.get());
+
+        // a thread per request, as with virtual threads, reuses them
+        for (int i = 0; i < 20; i++) {
+            thread = new Thread() {
+                public void run() {
+                    result[0] = cache.run("a.groovy", null);
+                }
+            };
+            thread.start();
+            thread.join();
+            assertEquals(42, result[0]);
+        }
+        assertEquals(2, bindings.get());
+    }
+
+    @Test
+    public void testMissing() throws IOException {
+        ScriptCache cache = cache("none.groovy");
+        assertNull(cache.run("none.groovy", null));
+        assertNull(cache.run("other.groovy", null));
+    }
+
+    @Test
+    public void testReload() throws IOException {
+        write("a.groovy", "1", 10000);
+        ScriptCache cache = cache("a.groovy");
+        assertEquals(1, cache.run("a.groovy", null));
+        assertEquals(1, cache.getVersion());
+        assertFalse(cache.checkModified());
+
+        // nothing changes until the directory is checked
+        write("a.groovy", "2", 20000);
+        assertEquals(1, cache.run("a.groovy", null));
+        assertTrue(cache.checkModified());
+        assertEquals(2, cache.run("a.groovy", null));
+        assertEquals(2, cache.getVersion());
+
+        // a broken version keeps the previous set
+        write("a.groovy", "2 +", 30000);
+        assertFalse(cache.checkModified());
+        assertEquals(2, cache.run("a.groovy", null));
+        assertEquals(2, cache.getVersion());
+        // and is not tried again until it changes
+        assertFalse(cache.checkModified());
+    }
+
+    @Test
+    public void testReloadIsAtomic() throws IOException {
+        write("a.groovy", "1", 10000);
+        write("b.groovy", "1", 10000);
+        ScriptCache cache = cache("a.groovy", "b.groovy");
+
+        write("a.groovy", "2", 20000);
+        write("b.groovy", "2 +", 20000);
+        assertFalse(cache.reload());
+        assertEquals(1, cache.run("a.groovy", null));
+        assertEquals(1, cache.run("b.groovy", null));
+
+        // a missing script fails the set too
+        assertTrue(new File(directory, "b.groovy").delete());
+        assertFalse(cache.reload());
+        assertEquals(1, cache.run("a.groovy", null));
+    }
+
+    @Test
+    public void testSmokeRequest() throws IOException {
+        write("a.groovy", "1", 10000);
+        ScriptCache cache = cache("a.groovy");
+
+        // fails on the smoke request, whose xid is 0
+        write("a.groovy", "10.intdiv(request.getXid())", 20000);
+        assertFalse(cache.checkModified());
+        assertEquals(1, cache.run("a.groovy", null));
+
+        write("a.groovy", "smokeTest ? 0 : 10.intdiv(request.getXid())", 30000);
+        assertTrue(cache.checkModified());
+        DHCPPacket request = new DHCPPacket();
+        request.setXid(5);
+        assertEquals(2, cache.run("a.groovy", request));
+    }
+
+    @Test
+    public void testSharedClass() throws IOException {
+        write("Helper.groovy", "class Helper { static int value() { 4 } }", 10000);
+        write("a.groovy", "Helper.value()", 10000);
+        ScriptCache cache = cache("a.groovy");
+        assertEquals(4, cache.run("a.groovy", null));
+
+        // a change of a class the scripts use reloads them
+        write("Helper.groovy", "class Helper { static int value() { 5 } }", 20000);
+        assertTrue(cache.checkModified());
+        assertEquals(5, cache.run("a.groovy", null));
+    }
+
+    @Test
+    public void testLateScript() throws IOException {
+        ScriptCache cache = cache("a.groovy");
+        assertNull(cache.run("a.groovy", null));
+        write("a.groovy", "3", 10000);
+        assertTrue(cache.checkModified());
+        assertEquals(3, cache.run("a.groovy", null));
+    }
+
+    @Test
+    public void testCompileStatic() throws IOException {
+        write("a.groovy", "request == null ? 0 : request.getXid()", 10000);
+        write("b.groovy", "smokeTest", 10000);
+        ScriptCache cache = cache("a.groovy", "b.groovy");
+
+        assertTrue(cache.setConfiguration(StandardServlet.scriptConfiguration(true)));
+        assertTrue(cache.getScript("a.groovy") instanceof PolicyScript);
+        DHCPPacket request = new DHCPPacket();
+        request.setXid(9);
+        assertEquals(9, cache.run("a.groovy", request));
+        assertEquals(false, cache.run("b.groovy", request));
+
+        // type checked: the dynamic version keeps serving
+        write("a.groovy", "request.getNoSuchThing()", 20000);
+        assertFalse(cache.checkModified());
+        assertEquals(9, cache.run("a.groovy", request));
+    }
+
+    @Test
+    public void testPolicyScript() throws IOException {
+        final StandardServlet servlet = new StandardServlet();
+        servlet.getSubnetSelector().addSubnet(new Subnet(new InetCidr(InetAddress.getByName("10.0.0.0"), 24)));
+        write("a.groovy", "smokeTest ? null : offer(InetAddress.getByName('10.0.0.5'))", 10000);
+        ScriptCache cache = new ScriptCache(directory, StandardServlet.scriptConfiguration(true), "a.groovy") {
+            @Override
+            protected Binding createBinding() {
+                Binding binding = new Binding();
+                binding.setVariable("servlet", servlet);
+                return binding;
+            }
+        };
+
+        DHCPPacket request = new DHCPPacket();
+        request.setOp(BOOTREQUEST);
+        request.setChaddrHex("001122334455");
+        request.setDHCPMessageType(DHCPDISCOVER);
+        request.setGiaddr(InetAddress.getByName("10.0.0.1"));
+        DHCPPacket offer = (DHCPPacket) cache.run("a.groovy", request);
+        assertEquals(DHCPOFFER, offer.getDHCPMessageType().byteValue());
+        assertEquals(InetAddress.getByName("10.0.0.5"), offer.getYiaddr());
+    }
+
+    @Test
+    public void testBudget() throws IOException {
+        write("loop.groovy", "while (true) { }", 10000);
+        write("sleep.groovy", "Thread.sleep(10000)", 10000);
+        write("fast.groovy", "1", 10000);
+        ScriptCache cache = cache("loop.groovy", "sleep.groovy", "fast.groovy");
+        cache.setLimits(50, 100, 1000);
+
+        long start = System.currentTimeMillis();
+        assertEquals("fallback", cache.run("loop.groovy", null, "fallback"));
+        assertEquals("fallback", cache.run("sleep.groovy", null, "fallback"));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        // the interrupt does not leak into the next run
+        assertFalse(Thread.currentThread().isInterrupted());
+        assertEquals(1, cache.run("fast.groovy", null, "fallback"));
+    }
+
+    @Test
+    public void testBudgetSmokeRequest() throws IOException {
+        write("a.groovy", "1", 10000);
+        ScriptCache cache = cache("a.groovy");
+        cache.setLimits(50, 100, 1000);
+
+        write("a.groovy", "while (true) { }", 20000);
+        assertFalse(cache.checkModified());
+        assertEquals(1, cache.run("a.groovy", null));
+    }
+
+    @Test
+    public void testBreaker() throws Exception {
+        write("a.groovy", "if (request?.getXid() == 2) { Thread.sleep(300); throw new IllegalStateException() }\n"
+                + "if (request?.getXid() == 1) throw new IllegalStateException(); 1", 10000);
+        ScriptCache cache = cache("a.groovy");
+        cache.setLimits(0, 3, 200);
+
+        DHCPPacket request = new DHCPPacket();
+        request.setXid(1);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, cache.run("a.groovy", request, 0));
+        }
+        // bypassed: it would have succeeded
+        assertEquals(0, cache.run("a.groovy", null, 0));
+
+        // one run allowed after the cool-down, which fails again
+        Thread.sleep(250);
+        assertEquals(0, cache.run("a.groovy", request, 0));
+        assertEquals(0, cache.run("a.groovy", null, 0));
+
+        // the others are still bypassed while it runs
+        Thread.sleep(250);
+        final ScriptCache shared = cache;
+        final DHCPPacket slow = new DHCPPacket();
+        slow.setXid(2);
+        Thread trial = new Thread() {
+            public void run() {
+                shared.run("a.groovy", slow, 0);
+            }
+        };
+        trial.start();
+        Thread.sleep(100);
+        assertEquals(0, cache.run("a.groovy", null, 0));
+        trial.join();
+        assertEquals(0, cache.run("a.groovy", null, 0));
+
+        // a success clears the record
+        Thread.sleep(250);
+        assertEquals(1, cache.run("a.groovy", null, 0));
+        assertEquals(0, cache.run("a.groovy", request, 0));
+        assertEquals(1, cache.run("a.groovy", null, 0));
+
+        // and so does a new version
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, cache.run("a.groovy", request, 0));
+        }
+        assertEquals(0, cache.run("a.groovy", null, 0));
+        assertTrue(cache.reload());
+        assertEquals(1, cache.run("a.groovy", null, 0));
+    }
+
+    @Test
+    public void testBreakerErrors() throws Exception {
+        write("assert.groovy", "assert request == null; 1", 10000);
+        write("overflow.groovy", "def f(n) { f(n + 1) }\nif (request != null) f(0); 1", 10000);
+        ScriptCache cache = cache("assert.groovy", "overflow.groovy");
+        cache.setLimits(0, 2, 200);
+
+        DHCPPacket request = new DHCPPacket();
+        for (String name : new String[] { "assert.groovy", "overflow.groovy" }) {
+            // errors fall back and count as failures
+            assertEquals(0, cache.run(name, request, 0));
+            assertEquals(0, cache.run(name, request, 0));
+            assertEquals(0, cache.run(name, null, 0));
+        }
+
+        // a trial ending in an error is settled, the next one runs after the cool-down
+        Thread.sleep(250);
+        assertEquals(0, cache.run("assert.groovy", request, 0));
+        assertEquals(0, cache.run("assert.groovy", null, 0));
+        Thread.sleep(250);
+        assertEquals(1, cache.run("assert.groovy", null, 0));
+    }
+}
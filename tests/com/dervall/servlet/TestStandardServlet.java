@@ -1,9 +1,20 @@
 package com.dervall.servlet;
 
+import com.dervall.subnet.Lease;
+import com.dervall.subnet.Pool;
+import com.dervall.subnet.Subnet;
 import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.HardwareAddress;
+import org.dhcp4java.InetCidr;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
 
 /**
  * User: Per
@@ -20,4 +31,57 @@ public class TestStandardServlet {
         StandardServlet standardServlet = new StandardServlet();
         standardServlet.service(null);
     }
+
+    @Test
+    public void testScriptsPassSmokeRequest() throws IOException {
+        assertTrue(new StandardServlet().getScripts().reload());
+    }
+
+    private static StandardServlet servlet(File directory) throws IOException {
+        StandardServlet servlet = new StandardServlet();
+        Properties props = new Properties();
+        props.setProperty(StandardServlet.LEASE_DIRECTORY, directory.getPath());
+        servlet.init(props);
+        Subnet subnet = new Subnet(new InetCidr(InetAddress.getByName("10.0.0.0"), 24));
+        subnet.addPool(new Pool((Inet4Address) InetAddress.getByName("10.0.0.0"),
+                (Inet4Address) InetAddress.getByName("255.255.255.0")));
+        servlet.getSubnetSelector().addSubnet(subnet);
+        return servlet;
+    }
+
+    @Test
+    public void testLeasesSurviveRestart() throws IOException {
+        File directory = File.createTempFile("leases", "");
+        assertTrue(directory.delete());
+        try {
+            // the subnets are set up after init(), the leases are only restored then
+            StandardServlet first = servlet(directory);
+            assertEquals(0, first.openLeases());
+            Pool pool = first.getSubnets().get(0).getPools().get(0);
+            HardwareAddress client = new HardwareAddress("001122334455");
+            long expires = System.currentTimeMillis() + 3600000;
+            first.getLeases().offer(client, pool, pool.offerIp(), expires);
+            first.getLeases().commit(first.getLeases().bind(client, expires));
+
+            StandardServlet second = servlet(directory);
+            assertEquals(1, second.openLeases());
+            Lease lease = second.getLeases().getByClient(client);
+            assertEquals(InetAddress.getByName("10.0.0.0"), lease.getIp());
+            assertFalse(second.getSubnets().get(0).getPools().get(0).isFree(lease.getIp()));
+        } finally {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    @Test
+    public void testScriptsCompileStatic() throws IOException {
+        StandardServlet standardServlet = new StandardServlet();
+        assertTrue(standardServlet.getScripts().setConfiguration(StandardServlet.scriptConfiguration(true)));
+    }
 }
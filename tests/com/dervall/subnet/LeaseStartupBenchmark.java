@@ -0,0 +1,70 @@
+package com.dervall.subnet;
+
+import org.dhcp4java.HardwareAddress;
+import org.dhcp4java.Util;
+
+import java.io.File;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how long it takes to get the lease table back after a restart with
+ * 2M leases: java com.dervall.subnet.LeaseStartupBenchmark [leases] [directory]
+ */
+public class LeaseStartupBenchmark {
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        File directory = args.length > 1 ? new File(args[1]) : new File(System.getProperty("java.io.tmpdir"), "leasebench");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Can not create " + directory);
+        }
+        File snapshot = new File(directory, LeaseJournal.SNAPSHOT);
+        long expires = System.currentTimeMillis() + 24 * 3600 * 1000L;
+
+        // a /10 holds 4M addresses
+        Inet4Address base = (Inet4Address) InetAddress.getByName("10.0.0.0");
+        Inet4Address mask = (Inet4Address) InetAddress.getByName("255.192.0.0");
+        Pool pool = new Pool(base, mask, Pool.Allocation.BITMAP);
+        List<Lease> leases = new ArrayList<Lease>(count);
+        for (int i = 0; i < count; i++) {
+            Inet4Address ip = (Inet4Address) Util.long2InetAddress(Util.inetAddress2Long(base) + i);
+            byte[] mac = {0x00, 0x11, (byte) (i >> 24), (byte) (i >> 16), (byte) (i >> 8), (byte) i};
+            Lease lease = new Lease(ip, pool, new HardwareAddress(mac));
+            lease.setState(LeaseState.BOUND);
+            lease.setExpires(expires);
+            leases.add(lease);
+        }
+        long start = System.nanoTime();
+        LeaseSnapshot.write(snapshot, 0, leases);
+        report("write snapshot", start, count);
+        leases = null;
+
+        for (int run = 0; run < 5; run++) {
+            Pool restoredPool = new Pool(base, mask, Pool.Allocation.BITMAP);
+            LeaseTable table = new LeaseTable();
+            LeaseJournal journal = new LeaseJournal(directory, 256, 10);
+
+            start = System.nanoTime();
+            int restored = journal.open(table, Collections.singletonList(restoredPool), System.currentTimeMillis());
+            report("open (pools + client index)", start, restored);
+
+            start = System.nanoTime();
+            table.loadAll();
+            report("load all leases", start, table.size());
+            journal.close();
+            for (String name : directory.list()) {
+                if (name.startsWith(LeaseJournal.SEGMENT)) {
+                    new File(directory, name).delete();
+                }
+            }
+        }
+        snapshot.delete();
+    }
+
+    private static void report(String what, long start, int count) {
+        System.out.printf("%-30s %8d ms  %d leases%n", what, (System.nanoTime() - start) / 1000000, count);
+    }
+}
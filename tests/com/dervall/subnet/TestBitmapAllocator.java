@@ -0,0 +1,116 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestBitmapAllocator {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestBitmapAllocator.class);
+    }
+
+    private static final long BASE = 0x0A000000L;     // 10.0.0.0
+
+    @Test
+    public void testExhaust() {
+        // sizes around word and summary boundaries
+        for (int size : new int[] { 1, 63, 64, 65, 4095, 4096, 4097, 70000 }) {
+            BitmapAllocator allocator = new BitmapAllocator(BASE, BASE + size - 1);
+            for (int i = 0; i < size; i++) {
+                assertEquals(BASE + i, allocator.allocate());
+            }
+            assertEquals(-1, allocator.allocate());
+            assertEquals(0, allocator.getFreeCount());
+
+            // the last address comes back first
+            assertTrue(allocator.release(BASE + size - 1));
+            assertEquals(BASE + size - 1, allocator.allocate());
+        }
+    }
+
+    @Test
+    public void testAllocatePreferred() {
+        for (AddressAllocator a : new AddressAllocator[] {
+                new BitmapAllocator(BASE, BASE + 69999), new FragmentAllocator(BASE, BASE + 69999),
+                new RangeAllocator(BASE, BASE + 69999) }) {
+            assertEquals(BASE + 100, a.allocate(BASE + 100));
+            assertEquals(BASE + 101, a.allocate(BASE + 100));
+            // out of range starts from the beginning
+            assertEquals(BASE, a.allocate(BASE - 1));
+
+            // skip a long run of used addresses, across summary words
+            for (long ip = BASE + 1000; ip < BASE + 60000; ip++) {
+                assertTrue(a.reserve(ip) || a.allocate(ip) == ip);
+            }
+            assertEquals(BASE + 60000, a.allocate(BASE + 1000));
+
+            // wrap around at the end
+            for (long ip = BASE + 60001; ip < BASE + 70000; ip++) {
+                assertEquals(ip, a.allocate(ip));
+            }
+            assertEquals(BASE + 1, a.allocate(BASE + 65000));
+            assertEquals(70000 - 69004, a.getFreeCount());
+        }
+    }
+
+    @Test
+    public void testAllocatePreferredRandom() {
+        Random random = new Random(3);
+        BitmapAllocator allocator = new BitmapAllocator(BASE, BASE + 9999);
+        boolean[] used = new boolean[10000];
+        for (int i = 0; i < 10000; i++) {
+            int preferred = random.nextInt(10000);
+            int expected = preferred;
+            while (used[expected]) {
+                expected = (expected + 1) % 10000;
+            }
+            assertEquals(BASE + expected, allocator.allocate(BASE + preferred));
+            used[expected] = true;
+        }
+        assertEquals(-1, allocator.allocate(BASE));
+    }
+
+    @Test
+    public void testReserveRelease() {
+        BitmapAllocator allocator = new BitmapAllocator(BASE, BASE + 65535);
+        assertTrue(allocator.reserve(BASE));
+        assertFalse(allocator.reserve(BASE));
+        assertFalse(allocator.reserve(BASE - 1));
+        assertFalse(allocator.reserve(BASE + 65536));
+        assertFalse(allocator.release(BASE + 1));
+        assertEquals(BASE + 1, allocator.allocate());
+        assertTrue(allocator.release(BASE));
+        assertTrue(allocator.isFree(BASE));
+        assertEquals(BASE, allocator.allocate());
+        assertEquals(65534, allocator.getFreeCount());
+    }
+
+    @Test
+    public void testChurn() {
+        int size = 65536;
+        BitmapAllocator allocator = new BitmapAllocator(BASE, BASE + size - 1);
+        boolean[] used = new boolean[size];
+        int inUse = 0;
+        Random random = new Random(42);
+        for (int i = 0; i < 500000; i++) {
+            if (random.nextInt(3) != 0 && inUse < size) {
+                long ip = allocator.allocate();
+                int index = (int) (ip - BASE);
+                assertFalse(used[index]);
+                used[index] = true;
+                ++inUse;
+            } else {
+                int index = random.nextInt(size);
+                assertEquals(used[index], allocator.release(BASE + index));
+                if (used[index]) {
+                    used[index] = false;
+                    --inUse;
+                }
+            }
+        }
+        assertEquals(size - inUse, allocator.getFreeCount());
+    }
+}
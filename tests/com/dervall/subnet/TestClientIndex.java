@@ -0,0 +1,77 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.HardwareAddress;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestClientIndex {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestClientIndex.class);
+    }
+
+    @Test
+    public void testMacKey() {
+        assertEquals(0x001122334455L, ClientIndex.macKey(new HardwareAddress("001122334455")));
+        assertEquals(-1, ClientIndex.macKey(new HardwareAddress((byte) 6, "001122334455")));
+        assertEquals(-1, ClientIndex.macKey(new HardwareAddress("0011223344556677")));
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        ClientIndex index = new ClientIndex();
+        HardwareAddress ether = new HardwareAddress("001122334455");
+        HardwareAddress token = new HardwareAddress((byte) 6, "001122334455");
+
+        assertEquals(ClientIndex.NONE, index.put(ether, 1));
+        assertEquals(ClientIndex.NONE, index.put(token, 2));
+        assertEquals(1, index.put(ether, 3));
+        assertEquals(2, index.size());
+        assertEquals(3, index.get(ether));
+        assertEquals(2, index.get(token));
+        assertEquals(3, index.get(0x001122334455L));
+
+        DHCPPacket packet = new DHCPPacket();
+        packet.setChaddrHex("001122334455");
+        assertEquals(3, index.get(packet));
+
+        assertEquals(3, index.remove(ether));
+        assertEquals(2, index.remove(token));
+        assertEquals(ClientIndex.NONE, index.remove(ether));
+        assertEquals(0, index.size());
+
+        // all zeroes is still a key
+        index.put(0L, 7);
+        assertEquals(7, index.get(0L));
+    }
+
+    @Test
+    public void testChurn() {
+        Random random = new Random(7);
+        ClientIndex index = new ClientIndex();
+        Map<Long, Integer> reference = new HashMap<Long, Integer>();
+        for (int i = 0; i < 200000; i++) {
+            // few distinct keys, so that removes hit long probe runs
+            long mac = 0x001122000000L + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                Integer expected = reference.remove(mac);
+                assertEquals(expected == null ? ClientIndex.NONE : expected, index.remove(mac));
+            } else {
+                int ip = 1 + random.nextInt(1000000);
+                Integer expected = reference.put(mac, ip);
+                assertEquals(expected == null ? ClientIndex.NONE : expected, index.put(mac, ip));
+            }
+        }
+        assertEquals(reference.size(), index.size());
+        for (long mac = 0x001122000000L; mac < 0x001122000000L + 5000; mac++) {
+            Integer expected = reference.get(mac);
+            assertEquals(expected == null ? ClientIndex.NONE : expected, index.get(mac));
+        }
+    }
+}
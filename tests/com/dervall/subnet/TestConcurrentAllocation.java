@@ -0,0 +1,130 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Many threads offering addresses from the same Subnet must never get the same one.
+ */
+public class TestConcurrentAllocation {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestConcurrentAllocation.class);
+    }
+
+    private static final int THREADS = 32;
+
+    private static Inet4Address ip(String address) throws Exception {
+        return (Inet4Address) InetAddress.getByName(address);
+    }
+
+    private static Subnet subnet(Pool.Allocation allocation) throws Exception {
+        Subnet subnet = new Subnet();
+        subnet.addPool(new Pool(ip("10.0.0.0"), ip("255.255.192.0"), allocation));
+        subnet.addPool(new Pool(ip("10.1.0.0"), ip("255.255.192.0"), allocation));
+        return subnet;
+    }
+
+    @Test(timeout = 60000)
+    public void testNoDuplicateOffers() throws Exception {
+        for (Pool.Allocation allocation : Pool.Allocation.values()) {
+            final Subnet subnet = subnet(allocation);
+            final Set<InetAddress> offered = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+            final AtomicInteger duplicates = new AtomicInteger();
+            final AtomicInteger count = new AtomicInteger();
+
+            runThreads(new Runnable() {
+                public void run() {
+                    InetAddress offer;
+                    while ((offer = subnet.offerAddress()) != null) {
+                        count.incrementAndGet();
+                        if (!offered.add(offer)) {
+                            duplicates.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            assertEquals(allocation.toString(), 0, duplicates.get());
+            assertEquals(allocation.toString(), 2 * 16384, count.get());
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void testChurn() throws Exception {
+        final Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.0.0"), Pool.Allocation.BITMAP);
+        final Set<InetAddress> held = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+        final AtomicInteger duplicates = new AtomicInteger();
+
+        runThreads(new Runnable() {
+            public void run() {
+                List<InetAddress> mine = new ArrayList<InetAddress>();
+                for (int i = 0; i < 20000; i++) {
+                    if (mine.size() < 1000) {
+                        InetAddress offer = pool.offerIp();
+                        if (offer == null) {
+                            continue;
+                        }
+                        if (!held.add(offer)) {
+                            duplicates.incrementAndGet();
+                        }
+                        mine.add(offer);
+                    } else {
+                        // give back half, the way leases expire
+                        for (int j = 0; j < 500; j++) {
+                            InetAddress ip = mine.remove(mine.size() - 1);
+                            held.remove(ip);
+                            assertTrue(pool.releaseIp(ip));
+                        }
+                    }
+                }
+            }
+        });
+        assertEquals(0, duplicates.get());
+        assertEquals(65536 - held.size(), pool.getFreeCount());
+        // summaries are consistent again once the threads are done
+        long free = pool.getFreeCount();
+        for (long i = 0; i < free; i++) {
+            assertNotNull(pool.offerIp());
+        }
+        assertNull(pool.offerIp());
+    }
+
+    private static void runThreads(final Runnable task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<Throwable> errors = new ArrayList<Throwable>();
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                        task.run();
+                    } catch (Throwable t) {
+                        synchronized (errors) {
+                            errors.add(t);
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.HardwareAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestLeaseJournal {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestLeaseJournal.class);
+    }
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("leases", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static Inet4Address ip(String address) throws Exception {
+        return (Inet4Address) InetAddress.getByName(address);
+    }
+
+    private static HardwareAddress mac(int n) {
+        return new HardwareAddress(String.format("0011223344%02x", n));
+    }
+
+    private static Pool pool() throws Exception {
+        return new Pool(ip("10.0.0.0"), ip("255.255.255.0"), Pool.Allocation.BITMAP);
+    }
+
+    private static List<Pool> pools(Pool pool) {
+        return Collections.singletonList(pool);
+    }
+
+    @Test
+    public void testRecovery() throws Exception {
+        Pool pool = pool();
+        LeaseTable table = new LeaseTable(1000, 0);
+        LeaseJournal journal = new LeaseJournal(directory, 4, 1000);
+        assertEquals(0, journal.open(table, pools(pool), 0));
+
+        for (int i = 0; i < 10; i++) {
+            table.offer(mac(i), pool, pool.offerIp(), 60000);
+        }
+        table.bind(mac(1), 3600000);
+        table.release(mac(2));
+        table.decline(ip("10.0.0.3"), 600000);
+        table.expire(60000);
+        journal.sync(journal.append(table.getByClient(mac(1))));
+        journal.close();
+
+        // only the bound and the declined leases remain
+        Pool restoredPool = pool();
+        LeaseTable restored = new LeaseTable(1000, 60000);
+        LeaseJournal reopened = new LeaseJournal(directory, 4, 0);
+        assertEquals(2, reopened.open(restored, pools(restoredPool), 60000));
+        assertEquals(LeaseState.BOUND, restored.getByClient(mac(1)).getState());
+        assertEquals(3600000, restored.getByClient(mac(1)).getExpires());
+        assertEquals(LeaseState.DECLINED, restored.getByIp(ip("10.0.0.3")).getState());
+        assertFalse(restoredPool.isFree(ip("10.0.0.1")));
+        assertFalse(restoredPool.isFree(ip("10.0.0.3")));
+        assertTrue(restoredPool.isFree(ip("10.0.0.0")));
+
+        // changes after recovery are journaled as well
+        restored.release(mac(1));
+        reopened.close();
+        assertEquals(1, new LeaseJournal(directory, 4, 0).open(new LeaseTable(1000, 60000), pools(pool()), 60000));
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        Pool pool = pool();
+        LeaseTable table = new LeaseTable(1000, 0);
+        LeaseJournal journal = new LeaseJournal(directory, 100, 5);
+        journal.open(table, pools(pool), 0);
+        for (int i = 0; i < 20; i++) {
+            table.offer(mac(i), pool, pool.offerIp(), 60000);
+        }
+        journal.compact();
+        table.release(mac(0));
+        journal.compact();
+        table.release(mac(1));
+        journal.close();
+
+        String[] names = directory.list();
+        int segments = 0;
+        for (String name : names) {
+            if (name.startsWith(LeaseJournal.SEGMENT)) {
+                ++segments;
+            }
+        }
+        assertEquals(1, segments);
+        assertTrue(new File(directory, LeaseJournal.SNAPSHOT).exists());
+
+        LeaseTable restored = new LeaseTable(1000, 0);
+        assertEquals(18, new LeaseJournal(directory, 100, 5).open(restored, pools(pool()), 0));
+        assertNull(restored.getByClient(mac(0)));
+        assertNull(restored.getByClient(mac(1)));
+        assertNotNull(restored.getByClient(mac(19)));
+    }
+
+    @Test
+    public void testOrphans() throws Exception {
+        Pool pool = pool();
+        LeaseTable table = new LeaseTable(1000, 0);
+        LeaseJournal journal = new LeaseJournal(directory, 1, 0);
+        journal.open(table, pools(pool), 0);
+        table.offer(mac(0), pool, pool.offerIp(), 60000);
+        journal.compact();
+        table.offer(mac(1), pool, pool.offerIp(), 60000);
+        journal.close();
+
+        // one lease in the snapshot, one in the journal, no pool for either
+        Pool other = new Pool(ip("10.1.0.0"), ip("255.255.255.0"), Pool.Allocation.BITMAP);
+        LeaseTable restored = new LeaseTable(1000, 0);
+        try {
+            new LeaseJournal(directory, 1, 0).open(restored, pools(other), 0);
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("2 leases"));
+        }
+        assertEquals(0, restored.size());
+        assertTrue(new File(directory, LeaseJournal.SNAPSHOT).exists());
+
+        LeaseJournal dropping = new LeaseJournal(directory, 1, 0);
+        dropping.setDropOrphans(true);
+        assertEquals(0, dropping.open(restored, pools(other), 0));
+        dropping.close();
+    }
+
+    @Test
+    public void testWriteFailure() throws Exception {
+        Pool pool = pool();
+        LeaseTable table = new LeaseTable(1000, 0);
+        LeaseJournal journal = new LeaseJournal(directory, 1, 0);
+        journal.open(table, pools(pool), 0);
+        Lease lease = table.offer(mac(0), pool, pool.offerIp(), 60000);
+        table.commit(lease);
+
+        // the next segment can not be created
+        for (File file : directory.listFiles()) {
+            assertTrue(file.delete());
+        }
+        assertTrue(directory.delete());
+        try {
+            journal.compact();
+            fail();
+        } catch (IOException e) {
+            // ok
+        }
+        try {
+            table.commit(table.bind(mac(0), 3600000));
+            fail();
+        } catch (IOException e) {
+            // ok
+        }
+        // later changes are not queued, they fail at once
+        try {
+            table.commit(table.bind(mac(0), 7200000));
+            fail();
+        } catch (IOException e) {
+            // ok
+        }
+        try {
+            journal.close();
+            fail();
+        } catch (IOException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testTornRecord() throws Exception {
+        Pool pool = pool();
+        LeaseTable table = new LeaseTable(1000, 0);
+        LeaseJournal journal = new LeaseJournal(directory, 1, 0);
+        journal.open(table, pools(pool), 0);
+        table.offer(mac(0), pool, pool.offerIp(), 60000);
+        table.offer(mac(1), pool, pool.offerIp(), 60000);
+        journal.close();
+
+        // cut the last record in half
+        File segment = new File(directory, LeaseJournal.SEGMENT + "0");
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        file.setLength(file.length() - 10);
+        file.close();
+
+        LeaseTable restored = new LeaseTable(1000, 0);
+        assertEquals(1, new LeaseJournal(directory, 1, 0).open(restored, pools(pool()), 0));
+        assertNotNull(restored.getByClient(mac(0)));
+    }
+}
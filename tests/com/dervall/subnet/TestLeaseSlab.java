@@ -0,0 +1,74 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.HardwareAddress;
+import org.dhcp4java.Util;
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestLeaseSlab {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestLeaseSlab.class);
+    }
+
+    private static Lease lease(long ip) {
+        return new Lease((Inet4Address) Util.long2InetAddress(ip), null, new HardwareAddress("001122334455"));
+    }
+
+    @Test
+    public void testPutGetRemove() {
+        LeaseSlab slab = new LeaseSlab(0);
+        Lease first = lease(0x0A000001L);
+        Lease second = lease(0x0A000001L);
+
+        assertNull(slab.put(0x0A000001L, first));
+        assertSame(first, slab.get(0x0A000001L));
+        assertNull(slab.get(0x0A000002L));
+        assertSame(first, slab.put(0x0A000001L, second));
+        assertEquals(1, slab.size());
+
+        // only the current holder is removed
+        assertFalse(slab.remove(0x0A000001L, first));
+        assertTrue(slab.remove(0x0A000001L, second));
+        assertNull(slab.get(0x0A000001L));
+        assertEquals(0, slab.size());
+        assertTrue(slab.values().isEmpty());
+
+        // 0.0.0.0 and 255.255.255.255 are plain keys
+        Lease low = lease(0);
+        Lease high = lease(0xFFFFFFFFL);
+        slab.put(0, low);
+        slab.put(0xFFFFFFFFL, high);
+        assertSame(low, slab.get(0));
+        assertSame(high, slab.get(0xFFFFFFFFL));
+    }
+
+    @Test
+    public void testAgainstHashMap() {
+        LeaseSlab slab = new LeaseSlab(0);
+        Map<Long, Lease> expected = new HashMap<Long, Lease>();
+        Random random = new Random(17);
+        for (int i = 0; i < 100000; i++) {
+            long ip = 0x0A000000L + random.nextInt(4096);
+            if (random.nextInt(3) == 0) {
+                Lease lease = expected.get(ip);
+                assertEquals(lease != null, lease != null && slab.remove(ip, lease));
+                expected.remove(ip);
+            } else {
+                Lease lease = lease(ip);
+                assertSame(expected.put(ip, lease), slab.put(ip, lease));
+            }
+        }
+        assertEquals(expected.size(), slab.size());
+        assertEquals(expected.size(), slab.values().size());
+        for (Map.Entry<Long, Lease> entry : expected.entrySet()) {
+            assertSame(entry.getValue(), slab.get(entry.getKey()));
+        }
+    }
+}
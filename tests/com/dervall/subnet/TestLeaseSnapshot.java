@@ -0,0 +1,111 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.HardwareAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestLeaseSnapshot {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestLeaseSnapshot.class);
+    }
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile("leases", "");
+        assertTrue(directory.delete());
+        assertTrue(directory.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    private static Inet4Address ip(String address) throws Exception {
+        return (Inet4Address) InetAddress.getByName(address);
+    }
+
+    private static HardwareAddress mac(int n) {
+        return new HardwareAddress(String.format("0011223344%02x", n));
+    }
+
+    private static List<Pool> pools(Pool pool) {
+        return Collections.singletonList(pool);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"), Pool.Allocation.BITMAP);
+        LeaseTable table = new LeaseTable(1000, 0);
+        table.offer(mac(1), pool, pool.offerIp(), 60000);
+        table.bind(mac(1), 3600000);
+        HardwareAddress token = new HardwareAddress((byte) 6, "00112233445566778899");
+        table.offer(token, pool, pool.offerIp(), 60000);
+
+        File file = new File(directory, "snapshot");
+        LeaseSnapshot.write(file, 7, table.leases());
+        assertEquals(LeaseSnapshot.HEADER + 2 * LeaseSnapshot.RECORD, file.length());
+
+        LeaseSnapshot snapshot = LeaseSnapshot.map(file);
+        assertEquals(7, snapshot.getSegment());
+        assertEquals(2, snapshot.size());
+        for (int i = 0; i < 2; i++) {
+            Lease lease = table.getByIp(InetAddress.getByAddress(new byte[] {
+                    10, 0, 0, (byte) snapshot.getIp(i)}));
+            assertEquals(lease.getState(), snapshot.getState(i));
+            assertEquals(lease.getExpires(), snapshot.getExpires(i));
+            assertEquals(lease.getClient(), snapshot.getClient(i));
+            assertEquals(ClientIndex.macKey(lease.getClient()), snapshot.getMacKey(i));
+        }
+    }
+
+    @Test
+    public void testLazyRestore() throws Exception {
+        Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"), Pool.Allocation.BITMAP);
+        LeaseTable table = new LeaseTable(1000, 0);
+        LeaseJournal journal = new LeaseJournal(directory, 16, 5);
+        journal.open(table, pools(pool), 0);
+        for (int i = 0; i < 100; i++) {
+            table.offer(mac(i), pool, pool.offerIp(), 60000 + i * 1000);
+        }
+        journal.compact();
+        journal.close();
+
+        Pool restoredPool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"), Pool.Allocation.BITMAP);
+        LeaseTable restored = new LeaseTable(1000, 0);
+        assertEquals(100, new LeaseJournal(directory, 16, 5).open(restored, pools(restoredPool), 0));
+        assertEquals(100, restored.size());
+        assertEquals(156, restoredPool.getFreeCount());
+
+        // read from the snapshot on first use
+        Lease lease = restored.getByClient(mac(42));
+        assertEquals(ip("10.0.0.42"), lease.getIp());
+        assertSame(restoredPool, lease.getSource());
+        assertSame(lease, restored.getByIp(ip("10.0.0.42")));
+
+        // the other leases still expire on time
+        assertEquals(10, restored.expire(69000).size());
+        assertTrue(restoredPool.isFree(ip("10.0.0.9")));
+        assertFalse(restoredPool.isFree(ip("10.0.0.10")));
+        assertEquals(90, restored.size());
+    }
+}
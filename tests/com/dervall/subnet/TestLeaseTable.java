@@ -0,0 +1,123 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.HardwareAddress;
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestLeaseTable {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestLeaseTable.class);
+    }
+
+    private static Inet4Address ip(String address) throws Exception {
+        return (Inet4Address) InetAddress.getByName(address);
+    }
+
+    private static HardwareAddress mac(String hex) {
+        return new HardwareAddress(hex);
+    }
+
+    @Test
+    public void testOfferBindExpire() throws Exception {
+        Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"));
+        LeaseTable table = new LeaseTable(1000, 0);
+
+        Lease lease = table.offer(mac("001122334455"), pool, pool.offerIp(), 30000);
+        assertEquals(LeaseState.OFFERED, lease.getState());
+        assertSame(lease, table.getByClient(mac("001122334455")));
+        assertSame(lease, table.getByIp(ip("10.0.0.0")));
+        assertFalse(pool.isFree(ip("10.0.0.0")));
+
+        assertSame(lease, table.bind(mac("001122334455"), 3600000));
+        assertEquals(LeaseState.BOUND, lease.getState());
+        assertNull(table.bind(mac("66778899aabb"), 3600000));
+
+        // the offer deadline no longer applies
+        assertTrue(table.expire(30000).isEmpty());
+        assertTrue(table.expire(3599999).isEmpty());
+        List<Lease> expired = table.expire(3600000);
+        assertEquals(1, expired.size());
+        assertEquals(LeaseState.EXPIRED, lease.getState());
+        assertNull(table.getByClient(mac("001122334455")));
+        assertNull(table.getByIp(ip("10.0.0.0")));
+        assertTrue(pool.isFree(ip("10.0.0.0")));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+        Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"));
+        LeaseTable table = new LeaseTable(1000, 0);
+
+        Lease lease = table.offer(mac("001122334455"), pool, pool.offerIp(), 30000);
+        assertSame(lease, table.release(mac("001122334455")));
+        assertEquals(LeaseState.RELEASED, lease.getState());
+        assertTrue(pool.isFree(ip("10.0.0.0")));
+        assertNull(table.release(mac("001122334455")));
+        assertTrue(table.expire(60000).isEmpty());
+    }
+
+    @Test
+    public void testDecline() throws Exception {
+        Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"));
+        LeaseTable table = new LeaseTable(1000, 0);
+
+        Lease lease = table.offer(mac("001122334455"), pool, pool.offerIp(), 30000);
+        assertSame(lease, table.decline(ip("10.0.0.0"), 600000));
+        assertEquals(LeaseState.DECLINED, lease.getState());
+        assertNull(table.getByClient(mac("001122334455")));
+        assertSame(lease, table.getByIp(ip("10.0.0.0")));
+
+        // held back until the end of the hold time
+        assertTrue(table.expire(599000).isEmpty());
+        assertFalse(pool.isFree(ip("10.0.0.0")));
+        assertEquals(1, table.expire(600000).size());
+        assertTrue(pool.isFree(ip("10.0.0.0")));
+    }
+
+    @Test
+    public void testOfferAfterDecline() throws Exception {
+        Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"));
+        LeaseTable table = new LeaseTable(1000, 0);
+
+        Lease declined = table.offer(mac("001122334455"), pool, pool.offerIp(), 30000);
+        table.decline(ip("10.0.0.0"), 600000);
+        Lease lease = table.offer(mac("001122334455"), pool, ip("10.0.0.0"), 30000);
+        assertSame(lease, table.getByIp(ip("10.0.0.0")));
+        assertSame(lease, table.getByClient(mac("001122334455")));
+        assertEquals(1, table.size());
+
+        // the hold timer of the declined lease is gone with it
+        assertEquals(1, table.expire(30000).size());
+        assertEquals(LeaseState.DECLINED, declined.getState());
+        assertTrue(table.expire(600000).isEmpty());
+        assertTrue(pool.isFree(ip("10.0.0.0")));
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void testOfferReplacesLease() throws Exception {
+        Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"));
+        LeaseTable table = new LeaseTable(1000, 0);
+
+        Lease first = table.offer(mac("001122334455"), pool, pool.offerIp(), 30000);
+        Lease second = table.offer(mac("001122334455"), pool, pool.offerIp(), 30000);
+        assertEquals(LeaseState.RELEASED, first.getState());
+        assertTrue(pool.isFree(ip("10.0.0.0")));
+        assertSame(second, table.getByClient(mac("001122334455")));
+        assertEquals(1, table.size());
+
+        try {
+            table.offer(mac("66778899aabb"), pool, ip("10.0.0.1"), 30000);
+            fail();
+        } catch (IllegalStateException e) {
+            // ok
+        }
+    }
+}
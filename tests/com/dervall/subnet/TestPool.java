@@ -1,6 +1,13 @@
 package com.dervall.subnet;
 
 import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.Util;
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
 
 /**
  * User: Per
@@ -12,7 +19,95 @@ public class TestPool {
        return new JUnit4TestAdapter(TestPool.class);
     }
 
-    public void testPool() {
+    private static Inet4Address ip(String address) throws Exception {
+        return (Inet4Address) InetAddress.getByName(address);
+    }
+
+    @Test
+    public void testPool() throws Exception {
+        for (Pool.Allocation allocation : Pool.Allocation.values()) {
+            Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.255.252"), allocation);
+            assertEquals(4, pool.getFreeCount());
+            assertTrue(pool.contains(ip("10.0.0.3")));
+            assertFalse(pool.contains(ip("10.0.0.4")));
+
+            assertEquals(ip("10.0.0.0"), pool.offerIp());
+            assertEquals(ip("10.0.0.1"), pool.offerIp());
+            assertFalse(pool.isFree(ip("10.0.0.1")));
+            assertTrue(pool.releaseIp(ip("10.0.0.1")));
+            assertFalse(pool.releaseIp(ip("10.0.0.1")));
+            assertTrue(pool.isFree(ip("10.0.0.1")));
+            assertEquals(3, pool.getFreeCount());
+
+            pool.offerIp();
+            pool.offerIp();
+            pool.offerIp();
+            assertNull(pool.offerIp());
+            assertEquals(0, pool.getFreeCount());
+        }
+    }
+
+    @Test
+    public void testReserve() throws Exception {
+        for (Pool.Allocation allocation : Pool.Allocation.values()) {
+            Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"), allocation);
+            pool.reserveIp(ip("10.0.0.5"));
+            pool.reserveIp(ip("10.0.0.0"));
+            assertFalse(pool.isFree(ip("10.0.0.5")));
+            assertEquals(254, pool.getFreeCount());
+            assertEquals(ip("10.0.0.1"), pool.offerIp());
+            assertTrue(pool.releaseIp(ip("10.0.0.5")));
+            assertEquals(254, pool.getFreeCount());
+        }
+    }
+
+    @Test
+    public void testReserveBitmap() throws Exception {
+        Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"), Pool.Allocation.BITMAP);
+        pool.reserveIp(ip("10.0.0.0"));
+        pool.reserveIp(ip("10.0.0.1"));
+        assertEquals(ip("10.0.0.2"), pool.offerIp());
+        assertEquals(253, pool.getFreeCount());
+    }
+
+    @Test
+    public void testStickyOffer() throws Exception {
+        for (Pool.Allocation allocation : Pool.Allocation.values()) {
+            Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.0.0"), allocation);
+            byte[] client = {0x00, 0x11, 0x22, 0x33, 0x44, 0x55};
+            Inet4Address first = pool.offerIp(client);
+            assertTrue(pool.releaseIp(first));
+
+            // the client comes back to the same address, whatever happened meanwhile
+            pool.offerIp();
+            pool.offerIp(new byte[] {0x00, 0x11, 0x22, 0x33, 0x44, 0x56});
+            assertEquals(first, pool.offerIp(client));
+
+            // taken: the next free one
+            assertTrue(pool.releaseIp(first));
+            pool.reserveIp(first);
+            assertFalse(first.equals(pool.offerIp(client)));
+        }
+    }
+
+    @Test
+    public void testStickySpread() throws Exception {
+        Pool pool = new Pool(ip("10.0.0.0"), ip("255.255.0.0"), Pool.Allocation.BITMAP);
+        int adjacent = 0;
+        long previous = -1;
+        for (int i = 0; i < 1000; i++) {
+            long ip = Util.inetAddress2Long(pool.offerIp(new byte[] {0x00, 0x11, 0x22, 0x33, (byte) (i >> 8), (byte) i}));
+            if (Math.abs(ip - previous) <= 1) {
+                ++adjacent;
+            }
+            previous = ip;
+        }
+        // sequential MACs do not end up next to each other
+        assertTrue(adjacent < 10);
+    }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidBase() throws Exception {
+        new Pool(ip("10.0.0.1"), ip("255.255.255.0"));
     }
 }
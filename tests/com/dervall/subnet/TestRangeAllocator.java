@@ -0,0 +1,93 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestRangeAllocator {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestRangeAllocator.class);
+    }
+
+    private static final long BASE = 0x0A000000L;     // 10.0.0.0
+
+    @Test
+    public void testCoalesce() {
+        RangeAllocator allocator = new RangeAllocator(BASE, BASE + 99);
+        assertTrue(allocator.reserve(BASE + 10));
+        assertTrue(allocator.reserve(BASE + 11));
+        assertTrue(allocator.reserve(BASE + 12));
+        assertFalse(allocator.reserve(BASE + 11));
+        assertEquals(2, allocator.getRangeCount());
+        assertEquals(87, allocator.getLargestFreeBlock());
+
+        // hole in the middle, then merge both sides
+        assertTrue(allocator.release(BASE + 11));
+        assertEquals(3, allocator.getRangeCount());
+        assertTrue(allocator.release(BASE + 10));
+        assertTrue(allocator.release(BASE + 12));
+        assertFalse(allocator.release(BASE + 12));
+        assertEquals(1, allocator.getRangeCount());
+        assertEquals(100, allocator.getLargestFreeBlock());
+        assertEquals(100, allocator.getFreeCount());
+    }
+
+    @Test
+    public void testExhaust() {
+        RangeAllocator allocator = new RangeAllocator(BASE, BASE + 9);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(BASE + i, allocator.allocate());
+        }
+        assertEquals(-1, allocator.allocate());
+        assertEquals(-1, allocator.allocate(BASE));
+        assertEquals(0, allocator.getLargestFreeBlock());
+        assertFalse(allocator.release(BASE + 10));
+        assertTrue(allocator.release(BASE + 9));
+        assertEquals(BASE + 9, allocator.allocate(BASE));
+    }
+
+    @Test
+    public void testHugeSparsePool() {
+        // a /8 with a few reservations is a handful of entries
+        RangeAllocator allocator = new RangeAllocator(BASE, BASE + 0xFFFFFF);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(allocator.reserve(BASE + i * 0x10000));
+        }
+        assertEquals(100, allocator.getRangeCount());
+        assertEquals(0xFFFFFF + 1 - 100, allocator.getFreeCount());
+        assertEquals(0xFFFFFF - 99 * 0x10000, allocator.getLargestFreeBlock());
+    }
+
+    @Test
+    public void testAgainstBitmap() {
+        Random random = new Random(11);
+        RangeAllocator ranges = new RangeAllocator(BASE, BASE + 4999);
+        BitmapAllocator bitmap = new BitmapAllocator(BASE, BASE + 4999);
+        for (int i = 0; i < 100000; i++) {
+            long ip = BASE + random.nextInt(5000);
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertEquals(bitmap.reserve(ip), ranges.reserve(ip));
+                    break;
+                case 1:
+                    assertEquals(bitmap.allocate(ip), ranges.allocate(ip));
+                    break;
+                default:
+                    assertEquals(bitmap.release(ip), ranges.release(ip));
+                    break;
+            }
+            assertEquals(bitmap.getFreeCount(), ranges.getFreeCount());
+        }
+        long run = 0;
+        long largest = 0;
+        for (long ip = BASE; ip < BASE + 5000; ip++) {
+            assertEquals(bitmap.isFree(ip), ranges.isFree(ip));
+            run = bitmap.isFree(ip) ? run + 1 : 0;
+            largest = Math.max(largest, run);
+        }
+        assertEquals(largest, ranges.getLargestFreeBlock());
+    }
+}
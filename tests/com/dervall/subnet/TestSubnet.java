@@ -0,0 +1,104 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.HardwareAddress;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+
+import static org.dhcp4java.DHCPConstants.*;
+import static org.junit.Assert.*;
+
+public class TestSubnet {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestSubnet.class);
+    }
+
+    private static final HardwareAddress CLIENT = new HardwareAddress("001122334455");
+
+    private Subnet subnet;
+    private Pool pool;
+    private LeaseTable leases;
+    private Inet4Address leased;
+
+    private static Inet4Address ip(String address) throws Exception {
+        return (Inet4Address) InetAddress.getByName(address);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        pool = new Pool(ip("10.0.0.0"), ip("255.255.255.0"), Pool.Allocation.BITMAP);
+        subnet = new Subnet();
+        subnet.addPool(pool);
+        subnet.setLeaseTime(3600);
+        subnet.setServerIdentifier(ip("10.0.0.254"));
+        leases = new LeaseTable(1000, 0);
+        leased = pool.offerIp();
+        leases.offer(CLIENT, pool, leased, 60000);
+        leases.bind(CLIENT, 600000);
+    }
+
+    private static DHCPPacket request(String chaddr) {
+        DHCPPacket request = new DHCPPacket();
+        request.setOp(BOOTREQUEST);
+        request.setChaddrHex(chaddr);
+        request.setDHCPMessageType(DHCPREQUEST);
+        return request;
+    }
+
+    @Test
+    public void testRenewing() throws Exception {
+        DHCPPacket request = request("001122334455");
+        request.setCiaddr(leased);
+
+        DHCPPacket ack = subnet.ackAddress(request, leases, 100000);
+        assertEquals(DHCPACK, (byte) ack.getDHCPMessageType());
+        assertEquals(leased, ack.getYiaddr());
+        assertEquals(3600, (int) ack.getOptionAsInteger(DHO_DHCP_LEASE_TIME));
+        assertEquals(ip("10.0.0.254"), ack.getOptionAsInetAddr(DHO_DHCP_SERVER_IDENTIFIER));
+        assertEquals(100000 + 3600000, leases.getByClient(CLIENT).getExpires());
+    }
+
+    @Test
+    public void testInitReboot() throws Exception {
+        DHCPPacket request = request("001122334455");
+        request.setOptionAsInetAddress(DHO_DHCP_REQUESTED_ADDRESS, leased);
+        assertEquals(DHCPACK, (byte) subnet.ackAddress(request, leases, 0).getDHCPMessageType());
+
+        // wrong address
+        request.setOptionAsInetAddress(DHO_DHCP_REQUESTED_ADDRESS, ip("10.0.0.99"));
+        assertEquals(DHCPNAK, (byte) subnet.ackAddress(request, leases, 0).getDHCPMessageType());
+    }
+
+    @Test
+    public void testFallBack() throws Exception {
+        // unknown client
+        DHCPPacket request = request("66778899aabb");
+        request.setOptionAsInetAddress(DHO_DHCP_REQUESTED_ADDRESS, leased);
+        assertNull(subnet.ackAddress(request, leases, 0));
+
+        // SELECTING
+        request = request("001122334455");
+        request.setOptionAsInetAddress(DHO_DHCP_REQUESTED_ADDRESS, leased);
+        request.setOptionAsInetAddress(DHO_DHCP_SERVER_IDENTIFIER, ip("10.0.0.254"));
+        assertNull(subnet.ackAddress(request, leases, 0));
+
+        // lease of another subnet
+        request = request("001122334455");
+        request.setCiaddr(leased);
+        assertNull(new Subnet().ackAddress(request, leases, 0));
+
+        // no server identifier to put in the answer
+        subnet.setServerIdentifier(null);
+        assertNull(subnet.ackAddress(request, leases, 0));
+        subnet.setServerIdentifier(ip("10.0.0.254"));
+        assertNotNull(subnet.ackAddress(request, leases, 0));
+
+        // offered, not bound
+        leases.offer(CLIENT, pool, leased, 60000);
+        assertNull(subnet.ackAddress(request, leases, 0));
+    }
+}
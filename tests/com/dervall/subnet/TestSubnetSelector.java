@@ -0,0 +1,102 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.InetCidr;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.dhcp4java.DHCPConstants.*;
+import static org.junit.Assert.*;
+
+public class TestSubnetSelector {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestSubnetSelector.class);
+    }
+
+    private SubnetSelector selector;
+    private Subnet wide;
+    private Subnet local;
+
+    private static InetAddress ip(String address) throws Exception {
+        return InetAddress.getByName(address);
+    }
+
+    private static Subnet subnet(String network, int mask) throws Exception {
+        return new Subnet(new InetCidr(ip(network), mask));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        selector = new SubnetSelector();
+        // a /16 with 4096 relayed /24s carved out of 10.0.0.0/8
+        wide = subnet("10.200.0.0", 16);
+        selector.addSubnet(wide);
+        for (int i = 0; i < 4096; i++) {
+            selector.addSubnet(subnet("10." + (i >> 8) + "." + (i & 0xFF) + ".0", 24));
+        }
+        local = new Subnet();
+        selector.setDefaultSubnet(local);
+    }
+
+    @Test
+    public void testLongestPrefix() throws Exception {
+        assertEquals(new InetCidr(ip("10.3.7.0"), 24), selector.select(ip("10.3.7.1")).getNetwork());
+        assertSame(wide, selector.select(ip("10.200.3.1")));
+        assertNull(selector.select(ip("192.168.1.1")));
+
+        // a more specific network inside the /16 wins
+        Subnet inner = subnet("10.200.3.0", 24);
+        selector.addSubnet(inner);
+        assertSame(inner, selector.select(ip("10.200.3.1")));
+        assertSame(wide, selector.select(ip("10.200.4.1")));
+        assertEquals(4099, selector.getSubnets().size());
+
+        // the list is live, and adding to it is adding to the selector
+        Subnet added = subnet("192.168.1.0", 24);
+        List<Subnet> subnets = selector.getSubnets();
+        assertTrue(subnets.add(added));
+        assertSame(added, selector.select(ip("192.168.1.1")));
+        assertSame(added, subnets.get(4099));
+        assertEquals(4100, selector.getSubnets().size());
+        try {
+            subnets.remove(added);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testSelectRequest() throws Exception {
+        DHCPPacket request = new DHCPPacket();
+        assertSame(local, selector.select(request));
+
+        request.setGiaddr(ip("10.0.5.1"));
+        assertEquals(new InetCidr(ip("10.0.5.0"), 24), selector.select(request).getNetwork());
+        assertTrue(selector.select(request).matchesRequest(request));
+        assertFalse(wide.matchesRequest(request));
+
+        // subnet selection beats giaddr, link selection beats both
+        request.setOptionRaw(DHO_SUBNET_SELECTION, ip("10.0.6.0").getAddress());
+        assertEquals(new InetCidr(ip("10.0.6.0"), 24), selector.select(request).getNetwork());
+        request.setOptionRaw(DHO_DHCP_AGENT_OPTIONS, new byte[] {
+                SubnetSelector.AGENT_CIRCUIT_ID, 3, 'e', 't', 'h',
+                SubnetSelector.AGENT_LINK_SELECTION, 4, 10, (byte) 200, 0, 1});
+        assertSame(wide, selector.select(request));
+        assertEquals(ip("10.200.0.1"), SubnetSelector.selectionAddress(request));
+
+        // bound ids beat addresses
+        Subnet byCircuit = subnet("172.16.0.0", 12);
+        selector.addCircuitId("eth", byCircuit);
+        assertSame(byCircuit, selector.select(request));
+        Subnet byRemote = subnet("172.32.0.0", 12);
+        selector.addRemoteId("modem-1", byRemote);
+        request.setOptionRaw(DHO_DHCP_AGENT_OPTIONS, new byte[] {
+                SubnetSelector.AGENT_REMOTE_ID, 7, 'm', 'o', 'd', 'e', 'm', '-', '1'});
+        assertSame(byRemote, selector.select(request));
+    }
+}
@@ -0,0 +1,79 @@
+package com.dervall.subnet;
+
+import junit.framework.JUnit4TestAdapter;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class TestTimingWheel {
+    public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(TestTimingWheel.class);
+    }
+
+    @Test
+    public void testExpiresOnDeadline() {
+        TimingWheel<Long> wheel = new TimingWheel<Long>(1000);
+        long[] deadlines = {1001, 1063, 1064, 1065, 1000 + 4096, 1000 + 300000, 1000 + (1L << 25)};
+        for (long deadline : deadlines) {
+            wheel.schedule(new TimingWheel.Timer<Long>(deadline), deadline);
+        }
+        assertEquals(deadlines.length, wheel.size());
+
+        List<Long> expired = new ArrayList<Long>();
+        for (long deadline : deadlines) {
+            wheel.advance(deadline - 1, expired);
+            assertTrue(expired.isEmpty());
+            wheel.advance(deadline, expired);
+            assertEquals(1, expired.size());
+            assertEquals(deadline, (long) expired.remove(0));
+        }
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    public void testRandomDeadlines() {
+        Random random = new Random(42);
+        TimingWheel<Long> wheel = new TimingWheel<Long>(random.nextInt(100000));
+        for (int i = 0; i < 20000; i++) {
+            long deadline = wheel.getTick() + 1 + random.nextInt(1 << 20);
+            wheel.schedule(new TimingWheel.Timer<Long>(deadline), deadline);
+        }
+        List<Long> expired = new ArrayList<Long>();
+        long last = 0;
+        while (wheel.size() > 0) {
+            wheel.advance(wheel.getTick() + 1 + random.nextInt(5000), expired);
+            for (long deadline : expired) {
+                assertTrue(deadline <= wheel.getTick());
+                assertTrue(deadline > last);
+            }
+            last = wheel.getTick();
+            expired.clear();
+        }
+    }
+
+    @Test
+    public void testCancelAndReschedule() {
+        TimingWheel<String> wheel = new TimingWheel<String>(0);
+        TimingWheel.Timer<String> a = new TimingWheel.Timer<String>("a");
+        TimingWheel.Timer<String> b = new TimingWheel.Timer<String>("b");
+        wheel.schedule(a, 10);
+        wheel.schedule(b, 10);
+        assertTrue(wheel.cancel(a));
+        assertFalse(wheel.cancel(a));
+        wheel.schedule(b, 5000);
+        assertEquals(1, wheel.size());
+
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(4999, expired);
+        assertTrue(expired.isEmpty());
+        // past deadlines expire on the next tick
+        wheel.schedule(a, 3);
+        wheel.advance(5000, expired);
+        assertEquals(2, expired.size());
+        assertFalse(a.isScheduled());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *	This file is part of dhcp4java, a DHCP API for the Java language.
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.dhcp4java.test;
+
+import java.nio.ByteBuffer;
+
+import org.dhcp4java.DHCPPacket;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+import static org.dhcp4java.DHCPConstants.*;
+import static org.dhcp4java.DHCPPacketClassifier.*;
+import static junit.framework.Assert.*;
+
+public class DHCPPacketClassifierTest {
+
+	public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(DHCPPacketClassifierTest.class);
+    }
+
+	private static byte[] request(byte op, Byte messageType) {
+		DHCPPacket pac = new DHCPPacket();
+		pac.setOp(op);
+		if (messageType != null) {
+			pac.setDHCPMessageType(messageType);
+		}
+		return pac.serialize();
+	}
+
+	@Test
+	public void testAccepted() {
+		for (byte type : new byte[] { DHCPDISCOVER, DHCPREQUEST, DHCPDECLINE, DHCPRELEASE, DHCPINFORM }) {
+			byte[] buf = request(BOOTREQUEST, type);
+			assertEquals(type, classify(buf, 0, buf.length));
+		}
+	}
+
+	@Test
+	public void testRejected() {
+		byte[] buf = request(BOOTREPLY, DHCPDISCOVER);
+		assertEquals(REJECT_NOT_REQUEST, classify(buf, 0, buf.length));
+		buf = request(BOOTREQUEST, DHCPOFFER);
+		assertEquals(REJECT_UNSUPPORTED_TYPE, classify(buf, 0, buf.length));
+		buf = request(BOOTREQUEST, (byte) -2);
+		assertEquals(REJECT_UNSUPPORTED_TYPE, classify(buf, 0, buf.length));
+		buf = request(BOOTREQUEST, null);
+		assertEquals(REJECT_NO_MESSAGE_TYPE, classify(buf, 0, buf.length));
+
+		DHCPPacket bootp = new DHCPPacket();
+		bootp.setOp(BOOTREQUEST);
+		bootp.setDhcp(false);
+		buf = bootp.serialize();
+		assertEquals(REJECT_BOOTP, classify(buf, 0, buf.length));
+
+		assertEquals(REJECT_MALFORMED, classify(new byte[235], 0, 235));
+		assertEquals(REJECT_MALFORMED, classify(new byte[1501], 0, 1501));
+	}
+
+	@Test
+	public void testByteBuffer() {
+		byte[] buf = request(BOOTREQUEST, DHCPREQUEST);
+		ByteBuffer direct = ByteBuffer.allocateDirect(buf.length + 8);
+		direct.position(8);
+		direct.put(buf);
+		direct.position(8);
+		assertEquals(DHCPREQUEST, classify(direct));
+		assertEquals(8, direct.position());		// left untouched
+	}
+}
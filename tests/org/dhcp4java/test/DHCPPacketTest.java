@@ -22,6 +22,8 @@ import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.LinkedList;
@@ -150,6 +152,104 @@ public class DHCPPacketTest {
     public void testGetPacketNull() throws Exception {
     	DHCPPacket.getPacket(null);
     }
+    @Test
+    public void testGetPacketByteBuffer() throws Exception {
+    	byte[] buf = hexToBytes(REF_PACKET);
+    	ByteBuffer direct = ByteBuffer.allocateDirect(buf.length + 10);
+    	direct.position(10);
+    	direct.put(buf);
+    	direct.position(10);
+    	DHCPPacket pac = DHCPPacket.getPacket(direct, InetAddress.getByName("10.11.12.13"), 6767, true);
+    	pac.setComment("foobar");
+
+    	assertEquals(refPacketFromHex, pac);
+    	assertEquals(10, direct.position());			// buffer left untouched
+    	assertEquals(buf.length + 10, direct.limit());
+    }
+    @Test (expected=IllegalArgumentException.class)
+    public void testGetPacketByteBufferNull() throws Exception {
+    	DHCPPacket.getPacket((ByteBuffer) null, null, 0, true);
+    }
+    @Test (expected=DHCPBadPacketException.class)
+    public void testGetPacketByteBufferTooSmall() throws Exception {
+    	DHCPPacket.getPacket(ByteBuffer.allocate(235), null, 0, true);
+    }
+    @Test
+    public void testOptionsOrder() throws Exception {
+    	DHCPPacket pac = new DHCPPacket();
+    	pac.setOptionAsByte(DHO_DHCP_MESSAGE_TYPE, DHCPOFFER);
+    	pac.setOptionAsInt(DHO_DHCP_LEASE_TIME, 1);
+    	pac.setOptionAsString(DHO_HOST_NAME, "foo");
+    	pac.removeOption(DHO_DHCP_LEASE_TIME);
+    	pac.removeOption(DHO_DHCP_LEASE_TIME);
+    	pac.setOptionAsInt(DHO_DHCP_RENEWAL_TIME, 2);
+    	pac.setOptionAsByte(DHO_DHCP_MESSAGE_TYPE, DHCPACK);	// keeps its position
+
+    	DHCPOption[] opts = pac.getOptionsArray();
+    	assertEquals(3, opts.length);
+    	assertEquals(DHO_DHCP_MESSAGE_TYPE, opts[0].getCode());
+    	assertEquals(DHCPACK, opts[0].getValueAsByte());
+    	assertEquals(DHO_HOST_NAME, opts[1].getCode());
+    	assertEquals(DHO_DHCP_RENEWAL_TIME, opts[2].getCode());
+    	assertFalse(pac.containsOption(DHO_DHCP_LEASE_TIME));
+    	byte[] buf = pac.serialize();
+    	assertTrue(Arrays.equals(opts, DHCPPacket.getPacket(buf, 0, buf.length, true).getOptionsArray()));
+    }
+    @Test
+    public void testGetPacketLazy() throws Exception {
+    	byte[] buf = hexToBytes(REF_PACKET);
+    	DHCPPacket lazy = DHCPPacket.getPacket(ByteBuffer.wrap(buf), null, 0, true, true);
+    	DHCPPacket eager = DHCPPacket.getPacket(buf, 0, buf.length, true);
+
+    	assertTrue(lazy.isLazy());
+    	assertEquals(DHCPDISCOVER, lazy.getDHCPMessageType().byteValue());
+    	assertEquals(86400, lazy.getOptionAsInteger(DHO_DHCP_LEASE_TIME).intValue());
+    	assertSame(lazy.getOption(DHO_DHCP_LEASE_TIME), lazy.getOption(DHO_DHCP_LEASE_TIME));
+    	assertTrue(lazy.containsOption(DHO_ROUTERS));
+    	assertFalse(lazy.containsOption(DHO_BOOTFILE));
+    	assertTrue(lazy.isLazy());
+    	// full traversal materializes options, in wire order
+    	assertTrue(Arrays.equals(eager.getOptionsArray(), lazy.getOptionsArray()));
+    	assertFalse(lazy.isLazy());
+    	assertEquals(eager, lazy);
+    }
+    @Test
+    public void testGetPacketLazyModified() throws Exception {
+    	byte[] buf = hexToBytes(REF_PACKET);
+    	DHCPPacket lazy = DHCPPacket.getPacket(ByteBuffer.wrap(buf), null, 0, true, true);
+    	DHCPPacket eager = DHCPPacket.getPacket(buf, 0, buf.length, true);
+
+    	lazy.setOptionAsInt(DHO_DHCP_LEASE_TIME, 3600);
+    	eager.setOptionAsInt(DHO_DHCP_LEASE_TIME, 3600);
+    	assertFalse(lazy.isLazy());
+    	assertTrue(Arrays.equals(eager.serialize(), lazy.serialize()));
+
+    	lazy = DHCPPacket.getPacket(ByteBuffer.wrap(buf), null, 0, true, true);
+    	lazy.removeAllOptions();
+    	assertFalse(lazy.containsOption(DHO_DHCP_MESSAGE_TYPE));
+    	assertEquals(0, lazy.getOptionsArray().length);
+    }
+    @Test
+    public void testGetPacketLazyDuplicate() throws Exception {
+    	DHCPPacket packet = new DHCPPacket();
+    	packet.setOptionAsInt(DHO_DHCP_LEASE_TIME, 1);
+    	packet.setOptionAsString(DHO_HOST_NAME, "foo");
+    	byte[] buf = packet.serialize();
+    	byte[] dup = new byte[buf.length + 6];
+    	System.arraycopy(buf, 0, dup, 0, 240 + 11);						// cookie + 2 options
+    	System.arraycopy(new byte[] { 51, 4, 0, 0, 0, 2 }, 0, dup, 251, 6);	// lease time again
+    	System.arraycopy(buf, 251, dup, 257, buf.length - 251);
+
+    	DHCPPacket eager = DHCPPacket.getPacket(dup, 0, dup.length, true);
+    	DHCPPacket lazy = DHCPPacket.getPacket(ByteBuffer.wrap(dup), null, 0, true, true);
+    	assertEquals(2, lazy.getOptionAsInteger(DHO_DHCP_LEASE_TIME).intValue());
+    	assertTrue(Arrays.equals(eager.getOptionsArray(), lazy.getOptionsArray()));
+    }
+    @Test (expected=DHCPBadPacketException.class)
+    public void testGetPacketLazyTruncated() throws Exception {
+    	byte[] buf = hexToBytes(REF_PACKET_WITHOUT_DHO_END);
+    	DHCPPacket.getPacket(ByteBuffer.wrap(buf), null, 0, true, true);
+    }
     // marshall
     @Test (expected=IllegalArgumentException.class)
     public void testMarshallNull() {
@@ -195,6 +295,36 @@ public class DHCPPacketTest {
     	buf = pac.serialize(1500, 1500);
     	assertEquals(1500, buf.length);
     }
+    @Test
+    public void testSerializeTo() throws Exception {
+    	byte[] ref = refPacketFromHex.serialize();
+    	ByteBuffer buf = ByteBuffer.allocateDirect(1500);
+    	buf.order(ByteOrder.LITTLE_ENDIAN);
+    	buf.position(10);
+    	assertEquals(ref.length, refPacketFromHex.serializeTo(buf));
+    	assertEquals(10 + ref.length, buf.position());
+    	assertEquals(ByteOrder.LITTLE_ENDIAN, buf.order());
+
+    	byte[] out = new byte[ref.length];
+    	buf.position(10);
+    	buf.get(out);
+    	assertTrue(Arrays.equals(ref, out));
+    }
+    @Test
+    public void testSerializeToOverflow() {
+    	ByteBuffer buf = ByteBuffer.allocate(299);
+    	buf.position(5);
+    	try {
+    		new DHCPPacket().serializeTo(buf);
+    		fail("DHCPBadPacketException expected");
+    	} catch (DHCPBadPacketException e) {
+    		assertEquals(5, buf.position());		// left untouched
+    	}
+    }
+    @Test (expected=IllegalArgumentException.class)
+    public void testSerializeToNull() {
+    	new DHCPPacket().serializeTo(null);
+    }
     @Test (expected=DHCPBadPacketException.class)
     public void testSerializeOptionOver256() {
     	DHCPPacket pac = new DHCPPacket();
@@ -0,0 +1,151 @@
+/*
+ *	This file is part of dhcp4java, a DHCP API for the Java language.
+ *
+ *	This library is free software; you can redistribute it and/or
+ *	modify it under the terms of the GNU Lesser General Public
+ *	License as published by the Free Software Foundation; either
+ *	version 2.1 of the License, or (at your option) any later version.
+ *
+ *	This library is distributed in the hope that it will be useful,
+ *	but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ *	Lesser General Public License for more details.
+ *
+ *	You should have received a copy of the GNU Lesser General Public
+ *	License along with this library; if not, write to the Free Software
+ *	Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301  USA
+ */
+package org.dhcp4java.test;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.dhcp4java.DHCPBadPacketException;
+import org.dhcp4java.DHCPPacket;
+import org.dhcp4java.DHCPPacketView;
+import org.junit.Before;
+import org.junit.Test;
+
+import junit.framework.JUnit4TestAdapter;
+
+import static org.dhcp4java.DHCPConstants.*;
+import static junit.framework.Assert.*;
+
+public class DHCPPacketViewTest {
+
+	private DHCPPacket	packet;
+	private byte[]		bytes;
+
+	public static junit.framework.Test suite() {
+       return new JUnit4TestAdapter(DHCPPacketViewTest.class);
+    }
+
+	@Before
+	public void setUp() throws Exception {
+		packet = new DHCPPacket();
+		packet.setOp(BOOTREQUEST);
+		packet.setHtype(HTYPE_ETHER);
+		packet.setHlen((byte) 6);
+		packet.setXid(0x11223344);
+		packet.setFlags((short) 0x8000);
+		packet.setCiaddr("10.0.0.1");
+		packet.setGiaddr("10.0.0.4");
+		packet.setChaddrHex("00112233445566778899aabbccddeeff");
+		packet.setDHCPMessageType(DHCPREQUEST);
+		packet.setOptionAsInt(DHO_DHCP_LEASE_TIME, 86400);
+		packet.setOptionAsInetAddress(DHO_DHCP_REQUESTED_ADDRESS, "10.0.0.100");
+		packet.setOptionAsString(DHO_HOST_NAME, "foobar");
+		bytes = packet.serialize();
+	}
+
+	@Test
+	public void testFields() throws Exception {
+		// datagram in the middle of a larger buffer
+		ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length + 20);
+		buf.position(10);
+		buf.put(bytes);
+		buf.flip();
+		buf.position(10);
+
+		DHCPPacketView view = new DHCPPacketView(buf, InetAddress.getByName("10.0.0.4"), 67);
+		assertEquals(BOOTREQUEST, view.getOp());
+		assertEquals(HTYPE_ETHER, view.getHtype());
+		assertEquals((byte) 6, view.getHlen());
+		assertEquals(0x11223344, view.getXid());
+		assertEquals((short) 0x8000, view.getFlags());
+		assertEquals(InetAddress.getByName("10.0.0.1"), view.getCiaddr());
+		assertEquals(0x0A000004, view.getGiaddrAsInt());
+		assertEquals(0x001122334455L, view.getChaddrAsLong(6));
+		assertTrue(Arrays.equals(packet.getChaddr(), view.getChaddr()));
+		assertEquals(packet.getHardwareAddress(), view.getHardwareAddress());
+		assertTrue(view.isDhcp());
+		assertEquals(67, view.getPort());
+
+		assertEquals(DHCPREQUEST, view.getDHCPMessageType().byteValue());
+		assertEquals(86400, view.getOptionAsInteger(DHO_DHCP_LEASE_TIME).intValue());
+		assertEquals(InetAddress.getByName("10.0.0.100"), view.getOptionAsInetAddr(DHO_DHCP_REQUESTED_ADDRESS));
+		assertEquals("foobar", view.getOptionAsString(DHO_HOST_NAME));
+		assertEquals(6, view.getOptionLength(DHO_HOST_NAME));
+		assertTrue(view.containsOption(DHO_HOST_NAME));
+		assertFalse(view.containsOption(DHO_ROUTERS));
+		assertNull(view.getOptionRaw(DHO_ROUTERS));
+		assertNull(view.getOptionAsInteger(DHO_DHCP_RENEWAL_TIME));
+
+		// buffer left untouched
+		assertEquals(10, buf.position());
+		assertEquals(bytes.length + 10, buf.limit());
+	}
+
+	@Test
+	public void testToPacket() throws Exception {
+		DHCPPacketView view = new DHCPPacketView(ByteBuffer.wrap(bytes), InetAddress.getByName("10.0.0.4"), 67);
+		DHCPPacket parsed = view.toPacket();
+		assertTrue(Arrays.equals(bytes, parsed.serialize()));
+		assertEquals(InetAddress.getByName("10.0.0.4"), parsed.getAddress());
+		assertEquals(67, parsed.getPort());
+	}
+
+	@Test
+	public void testWrap() throws Exception {
+		DHCPPacketView view = new DHCPPacketView();
+		view.wrap(ByteBuffer.wrap(bytes), null, 0);
+		assertEquals(0x11223344, view.getXid());
+
+		packet.setXid(0x55667788);
+		packet.setDHCPMessageType(DHCPDISCOVER);
+		view.wrap(ByteBuffer.wrap(packet.serialize()), null, 0);
+		assertEquals(0x55667788, view.getXid());
+		assertEquals(DHCPDISCOVER, view.getDHCPMessageType().byteValue());
+	}
+
+	@Test
+	public void testBootp() throws Exception {
+		byte[] bootp = bytes.clone();
+		bootp[236] = 0;		// break magic cookie
+		DHCPPacketView view = new DHCPPacketView(ByteBuffer.wrap(bootp), null, 0);
+		assertFalse(view.isDhcp());
+		assertNull(view.getDHCPMessageType());
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void testWrongOptionFormat() {
+		new DHCPPacketView(ByteBuffer.wrap(bytes), null, 0).getOptionAsInteger(DHO_HOST_NAME);
+	}
+
+	@Test (expected=DHCPBadPacketException.class)
+	public void testWrongOptionSize() {
+		packet.setOptionRaw(DHO_DHCP_LEASE_TIME, new byte[2]);
+		new DHCPPacketView(ByteBuffer.wrap(packet.serialize()), null, 0).getOptionAsInteger(DHO_DHCP_LEASE_TIME);
+	}
+
+	@Test (expected=DHCPBadPacketException.class)
+	public void testTooSmall() {
+		new DHCPPacketView(ByteBuffer.allocate(100), null, 0);
+	}
+
+	@Test (expected=IllegalArgumentException.class)
+	public void testNull() {
+		new DHCPPacketView().wrap(null, null, 0);
+	}
+}
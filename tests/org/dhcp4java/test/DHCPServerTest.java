@@ -18,15 +18,24 @@
  */
 package org.dhcp4java.test;
 
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.HashSet;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import junit.framework.JUnit4TestAdapter;
 
 import org.dhcp4java.DHCPCoreServer;
+import org.dhcp4java.DHCPPacket;
 import org.dhcp4java.DHCPServlet;
 import org.dhcp4java.DHCPServerInitException;
 import org.junit.After;
@@ -34,6 +43,7 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
+import static org.dhcp4java.DHCPConstants.*;
 
 public class DHCPServerTest {
 
@@ -97,6 +107,404 @@ public class DHCPServerTest {
         server.stopServer();
     }
     
+    @Test (timeout=2000)
+    public void testInitServerNio() throws Exception {
+        Properties localProperties = new Properties();
+
+        localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+        localProperties.put(DHCPCoreServer.SERVER_THREADS, "1");
+        localProperties.put(DHCPCoreServer.SERVER_IO, DHCPCoreServer.SERVER_IO_NIO);
+        localProperties.put(DHCPCoreServer.SERVER_IO_BUFFERS, "2");
+
+        server0 = DHCPCoreServer.initServer(new DHCPServerTestEchoServlet(), localProperties);
+        new Thread(server0).start();
+
+        DatagramSocket client = new DatagramSocket(0, InetAddress.getByName(SERVER_ADDR));
+        try {
+            DHCPPacket discover = new DHCPPacket();
+            discover.setOp(BOOTREQUEST);
+            discover.setXid(0x12345678);
+            discover.setDHCPMessageType(DHCPDISCOVER);
+            byte[] buf = discover.serialize();
+            client.send(new DatagramPacket(buf, buf.length, InetAddress.getByName(SERVER_ADDR), SERVER_PORT));
+
+            DatagramPacket udp = new DatagramPacket(new byte[1500], 1500);
+            client.receive(udp);
+            DHCPPacket offer = DHCPPacket.getPacket(udp);
+            assertEquals(0x12345678, offer.getXid());
+            assertEquals(Byte.valueOf(DHCPOFFER), offer.getDHCPMessageType());
+        } finally {
+            client.close();
+        }
+    }
+    @Test (timeout=5000)
+    public void testNioBuffersExhausted() throws Exception {
+        Properties localProperties = new Properties();
+
+        localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+        localProperties.put(DHCPCoreServer.SERVER_THREADS, "2");
+        localProperties.put(DHCPCoreServer.SERVER_IO, DHCPCoreServer.SERVER_IO_NIO);
+        localProperties.put(DHCPCoreServer.SERVER_IO_BUFFERS, "1");		// every response misses
+
+        server0 = DHCPCoreServer.initServer(new DHCPServerTestEchoServlet(), localProperties);
+        new Thread(server0).start();
+
+        DatagramSocket client = new DatagramSocket(0, InetAddress.getByName(SERVER_ADDR));
+        client.setSoTimeout(2000);
+        try {
+            for (int i = 0; i < 8; i++) {
+                sendRequest(client, DHCPDISCOVER, i);
+            }
+            Set<Integer> xids = new HashSet<Integer>();
+            for (int i = 0; i < 8; i++) {
+                xids.add(receiveXid(client));
+            }
+            assertEquals(8, xids.size());
+        } finally {
+            client.close();
+        }
+    }
+    @Test (timeout=5000)
+    public void testInitServerReusePort() throws Exception {
+        for (String io : new String[] { DHCPCoreServer.SERVER_IO_SOCKET, DHCPCoreServer.SERVER_IO_NIO }) {
+            Properties localProperties = new Properties();
+
+            localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+            localProperties.put(DHCPCoreServer.SERVER_THREADS, "1");
+            localProperties.put(DHCPCoreServer.SERVER_IO, io);
+            localProperties.put(DHCPCoreServer.SERVER_SOCKETS, "3");
+
+            server0 = DHCPCoreServer.initServer(new DHCPServerTestEchoServlet(), localProperties);
+            new Thread(server0).start();
+
+            // several clients so that the kernel spreads them over the sockets
+            for (int i = 0; i < 6; i++) {
+                DatagramSocket client = new DatagramSocket(0, InetAddress.getByName(SERVER_ADDR));
+                try {
+                    DHCPPacket discover = new DHCPPacket();
+                    discover.setOp(BOOTREQUEST);
+                    discover.setXid(i);
+                    discover.setDHCPMessageType(DHCPDISCOVER);
+                    byte[] buf = discover.serialize();
+                    client.send(new DatagramPacket(buf, buf.length, InetAddress.getByName(SERVER_ADDR), SERVER_PORT));
+
+                    DatagramPacket udp = new DatagramPacket(new byte[1500], 1500);
+                    client.receive(udp);
+                    assertEquals(i, DHCPPacket.getPacket(udp).getXid());
+                } finally {
+                    client.close();
+                }
+            }
+            server0.stopServer();
+            server0 = null;
+        }
+        // all sockets must have been closed, a plain bind works again
+        DatagramSocket socket = new DatagramSocket(SERVER_PORT, InetAddress.getByName(SERVER_ADDR));
+        socket.close();
+    }
+    @Test (timeout=10000)
+    public void testReusePortBroadcast() throws Exception {
+        for (String io : new String[] { DHCPCoreServer.SERVER_IO_SOCKET, DHCPCoreServer.SERVER_IO_NIO }) {
+            Properties localProperties = new Properties();
+
+            localProperties.put(DHCPCoreServer.SERVER_ADDRESS, "0.0.0.0:" + SERVER_PORT);
+            localProperties.put(DHCPCoreServer.SERVER_UNICAST_ADDRESS, SERVER_ADDR);
+            localProperties.put(DHCPCoreServer.SERVER_THREADS, "1");
+            localProperties.put(DHCPCoreServer.SERVER_IO, io);
+            localProperties.put(DHCPCoreServer.SERVER_SOCKETS, "3");
+
+            server0 = DHCPCoreServer.initServer(new DHCPServerTestEchoServlet(), localProperties);
+            new Thread(server0).start();
+
+            DatagramSocket client = new DatagramSocket();
+            client.setBroadcast(true);
+            client.setSoTimeout(1000);
+            try {
+                DHCPPacket discover = new DHCPPacket();
+                discover.setOp(BOOTREQUEST);
+                discover.setXid(42);
+                discover.setDHCPMessageType(DHCPDISCOVER);
+                byte[] buf = discover.serialize();
+                client.send(new DatagramPacket(buf, buf.length, InetAddress.getByName("127.255.255.255"), SERVER_PORT));
+                assertEquals(42, receiveXid(client));
+                // serviced by a single socket
+                try {
+                    receiveXid(client);
+                    fail("broadcast answered twice with " + io);
+                } catch (SocketTimeoutException e) {
+                    // ok
+                }
+
+                // unicast still reaches the shared sockets
+                for (int i = 0; i < 6; i++) {
+                    client.send(new DatagramPacket(buf, buf.length, InetAddress.getByName(SERVER_ADDR), SERVER_PORT));
+                    assertEquals(42, receiveXid(client));
+                }
+            } finally {
+                client.close();
+            }
+            server0.stopServer();
+            server0 = null;
+        }
+    }
+    @Test (expected=DHCPServerInitException.class)
+    public void testReusePortWildcardNoUnicast() throws Exception {
+        Properties localProperties = new Properties();
+
+        localProperties.put(DHCPCoreServer.SERVER_ADDRESS, "0.0.0.0:" + SERVER_PORT);
+        localProperties.put(DHCPCoreServer.SERVER_SOCKETS, "2");
+        server0 = DHCPCoreServer.initServer(new DHCPServerTestServlet(), localProperties);
+    }
+    @Test (expected=DHCPServerInitException.class)
+    public void testInitServerNoSocket() throws Exception {
+        Properties localProperties = new Properties();
+
+        localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+        localProperties.put(DHCPCoreServer.SERVER_SOCKETS, "0");
+        server0 = DHCPCoreServer.initServer(new DHCPServerTestServlet(), localProperties);
+    }
+    @Test (timeout=5000)
+    public void testShedDiscoverFirst() throws Exception {
+        Properties localProperties = new Properties();
+
+        localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+        localProperties.put(DHCPCoreServer.SERVER_THREADS, "1");
+        localProperties.put(DHCPCoreServer.SERVER_THREADS_MAX, "1");
+        localProperties.put(DHCPCoreServer.SERVER_QUEUE_SIZE, "1");
+        localProperties.put(DHCPCoreServer.SERVER_SHED_POLICY, DHCPCoreServer.SERVER_SHED_POLICY_DISCOVER);
+
+        DHCPServerTestBlockingServlet servlet = new DHCPServerTestBlockingServlet();
+        server0 = DHCPCoreServer.initServer(servlet, localProperties);
+        new Thread(server0).start();
+
+        DatagramSocket client = new DatagramSocket(0, InetAddress.getByName(SERVER_ADDR));
+        client.setSoTimeout(2000);
+        try {
+            sendRequest(client, DHCPDISCOVER, 1);		// keeps the only thread busy
+            servlet.entered.await();
+            sendRequest(client, DHCPDISCOVER, 2);		// waits in the queue
+            Thread.sleep(100);
+            sendRequest(client, DHCPREQUEST, 3);		// evicts the queued DISCOVER
+            sendRequest(client, DHCPDISCOVER, 4);		// dropped, queue is full of REQUEST
+            Thread.sleep(100);
+
+            assertEquals(2, server0.getDroppedRequests());
+            assertEquals(2, server0.getDroppedRequests(DHCPDISCOVER));
+            assertEquals(0, server0.getDroppedRequests(DHCPREQUEST));
+
+            servlet.release.countDown();
+            assertEquals(1, receiveXid(client));
+            assertEquals(3, receiveXid(client));
+        } finally {
+            servlet.release.countDown();
+            client.close();
+        }
+    }
+    @Test (timeout=5000)
+    public void testVirtualDispatch() throws Exception {
+        Properties localProperties = new Properties();
+
+        localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+        localProperties.put(DHCPCoreServer.SERVER_THREADS, "1");
+        localProperties.put(DHCPCoreServer.SERVER_THREADS_MAX, "1");
+        localProperties.put(DHCPCoreServer.SERVER_DISPATCH, DHCPCoreServer.SERVER_DISPATCH_VIRTUAL);
+        localProperties.put(DHCPCoreServer.SERVER_VIRTUAL_THREADS_MAX, "4");
+        localProperties.put(DHCPCoreServer.SERVER_QUEUE_SIZE, "1");
+
+        DHCPServerTestBlockingServlet servlet = new DHCPServerTestBlockingServlet(4);
+        server0 = DHCPCoreServer.initServer(servlet, localProperties);
+        new Thread(server0).start();
+
+        DatagramSocket client = new DatagramSocket(0, InetAddress.getByName(SERVER_ADDR));
+        client.setSoTimeout(2000);
+        try {
+            for (int i = 0; i < 4; i++) {
+                sendRequest(client, DHCPREQUEST, i);
+            }
+            servlet.entered.await();		// 4 blocking requests at once, with serverThreadsMax=1
+            sendRequest(client, DHCPREQUEST, 4);	// waits for a permit
+            sendRequest(client, DHCPREQUEST, 5);	// over the limit, dropped
+            Thread.sleep(100);
+            assertEquals(1, server0.getDroppedRequests(DHCPREQUEST));
+
+            servlet.release.countDown();
+            Set<Integer> xids = new HashSet<Integer>();
+            for (int i = 0; i < 5; i++) {
+                xids.add(receiveXid(client));
+            }
+            assertEquals(5, xids.size());
+            assertFalse(xids.contains(5));
+        } finally {
+            servlet.release.countDown();
+            client.close();
+        }
+    }
+    @Test (expected=DHCPServerInitException.class)
+    public void testInitServerBadDispatch() throws Exception {
+        Properties localProperties = new Properties();
+
+        localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+        localProperties.put(DHCPCoreServer.SERVER_DISPATCH, "fibers");
+        server0 = DHCPCoreServer.initServer(new DHCPServerTestServlet(), localProperties);
+    }
+    @Test (expected=DHCPServerInitException.class)
+    public void testInitServerBadShedPolicy() throws Exception {
+        Properties localProperties = new Properties();
+
+        localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+        localProperties.put(DHCPCoreServer.SERVER_SHED_POLICY, "random");
+        server0 = DHCPCoreServer.initServer(new DHCPServerTestServlet(), localProperties);
+    }
+
+    @Test (timeout=5000)
+    public void testPacketPool() throws Exception {
+        for (String io : new String[] { DHCPCoreServer.SERVER_IO_SOCKET, DHCPCoreServer.SERVER_IO_NIO }) {
+            Properties localProperties = new Properties();
+
+            localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+            localProperties.put(DHCPCoreServer.SERVER_THREADS, "1");
+            localProperties.put(DHCPCoreServer.SERVER_IO, io);
+            localProperties.put(DHCPCoreServer.SERVER_PACKET_POOL, "4");
+
+            server0 = DHCPCoreServer.initServer(new DHCPServerTestEchoServlet(), localProperties);
+            new Thread(server0).start();
+
+            DatagramSocket client = new DatagramSocket(0, InetAddress.getByName(SERVER_ADDR));
+            try {
+                for (int i = 0; i < 10; i++) {		// same worker thread, packets are reused
+                    sendRequest(client, DHCPDISCOVER, i);
+                    assertEquals(i, receiveXid(client));
+                }
+            } finally {
+                client.close();
+                server0.stopServer();
+                server0 = null;
+            }
+        }
+    }
+    @Test (timeout=5000)
+    public void testPacketPoolDebug() throws Exception {
+        Properties localProperties = new Properties();
+
+        localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+        localProperties.put(DHCPCoreServer.SERVER_THREADS, "1");
+        localProperties.put(DHCPCoreServer.SERVER_PACKET_POOL, "4");
+        localProperties.put(DHCPCoreServer.SERVER_PACKET_POOL_DEBUG, "true");
+
+        DHCPServerTestKeepingServlet servlet = new DHCPServerTestKeepingServlet();
+        server0 = DHCPCoreServer.initServer(servlet, localProperties);
+        new Thread(server0).start();
+
+        DatagramSocket client = new DatagramSocket(0, InetAddress.getByName(SERVER_ADDR));
+        try {
+            sendRequest(client, DHCPDISCOVER, 42);
+            assertEquals(42, receiveXid(client));
+            Thread.sleep(100);		// let the worker recycle the request
+            try {
+                servlet.kept.getDHCPMessageType();
+                fail("IllegalStateException expected");
+            } catch (IllegalStateException e) {
+                // ok, request was recycled
+            }
+            // header accessors are guarded as well
+            try {
+                servlet.kept.getXid();
+                fail("IllegalStateException expected");
+            } catch (IllegalStateException e) {
+                // ok
+            }
+            try {
+                servlet.kept.setCiaddrRaw(new byte[4]);
+                fail("IllegalStateException expected");
+            } catch (IllegalStateException e) {
+                // ok
+            }
+            assertEquals(DHCPDISCOVER, servlet.copy.getDHCPMessageType().byteValue());
+            assertEquals(42, servlet.copy.getXid());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test (timeout=5000)
+    public void testRejectBeforeDispatch() throws Exception {
+        for (String io : new String[] { DHCPCoreServer.SERVER_IO_SOCKET, DHCPCoreServer.SERVER_IO_NIO }) {
+            Properties localProperties = new Properties();
+
+            localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+            localProperties.put(DHCPCoreServer.SERVER_THREADS, "1");
+            localProperties.put(DHCPCoreServer.SERVER_IO, io);
+
+            server0 = DHCPCoreServer.initServer(new DHCPServerTestEchoServlet(), localProperties);
+            new Thread(server0).start();
+
+            DatagramSocket client = new DatagramSocket(0, InetAddress.getByName(SERVER_ADDR));
+            try {
+                sendRequest(client, DHCPOFFER, 1);		// junk
+                sendRequest(client, DHCPACK, 2);		// junk
+                sendRequest(client, DHCPDISCOVER, 3);
+                assertEquals(3, receiveXid(client));
+                assertEquals(2, server0.getRejectedRequests());
+            } finally {
+                client.close();
+                server0.stopServer();
+                server0 = null;
+            }
+        }
+    }
+
+    @Test (timeout=5000)
+    public void testClassifyOnce() throws Exception {
+        for (String io : new String[] { DHCPCoreServer.SERVER_IO_SOCKET, DHCPCoreServer.SERVER_IO_NIO }) {
+            Properties localProperties = new Properties();
+
+            localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+            localProperties.put(DHCPCoreServer.SERVER_THREADS, "1");
+            localProperties.put(DHCPCoreServer.SERVER_IO, io);
+
+            DHCPServerTestCountingServlet servlet = new DHCPServerTestCountingServlet();
+            server0 = DHCPCoreServer.initServer(servlet, localProperties);
+            new Thread(server0).start();
+
+            DatagramSocket client = new DatagramSocket(0, InetAddress.getByName(SERVER_ADDR));
+            try {
+                sendRequest(client, DHCPDISCOVER, 1);
+                assertEquals(1, receiveXid(client));
+                sendRequest(client, DHCPDISCOVER, 2);
+                assertEquals(2, receiveXid(client));
+                assertEquals(2, servlet.classified.get());		// receive thread only
+            } finally {
+                client.close();
+                server0.stopServer();
+                server0 = null;
+            }
+        }
+    }
+
+    private static void sendRequest(DatagramSocket client, byte messageType, int xid) throws Exception {
+        DHCPPacket request = new DHCPPacket();
+        request.setOp(BOOTREQUEST);
+        request.setXid(xid);
+        request.setDHCPMessageType(messageType);
+        byte[] buf = request.serialize();
+        client.send(new DatagramPacket(buf, buf.length, InetAddress.getByName(SERVER_ADDR), SERVER_PORT));
+    }
+
+    private static int receiveXid(DatagramSocket client) throws Exception {
+        DatagramPacket udp = new DatagramPacket(new byte[1500], 1500);
+        client.receive(udp);
+        return DHCPPacket.getPacket(udp).getXid();
+    }
+
+    @Test (expected=DHCPServerInitException.class)
+    public void testInitServerBadIo() throws Exception {
+        Properties localProperties = new Properties();
+
+        localProperties.put(DHCPCoreServer.SERVER_ADDRESS, SERVER_ADDR + ':' + SERVER_PORT);
+        localProperties.put(DHCPCoreServer.SERVER_IO, "carrier-pigeon");
+        server0 = DHCPCoreServer.initServer(new DHCPServerTestServlet(), localProperties);
+    }
+
     // parseSocketAddress
     @Test
     public void testParseSocketAddress() throws Exception {
@@ -123,4 +531,86 @@ class DHCPServerTestServlet extends DHCPServlet {
 	// 
 	
 	
-}
\ No newline at end of file
+}
+
+/**
+ * Echoes DISCOVERs and REQUESTs back to the sender, calls block until the
+ * test releases them.
+ */
+class DHCPServerTestBlockingServlet extends DHCPServlet {
+	final CountDownLatch entered;
+	final CountDownLatch release = new CountDownLatch(1);
+
+	DHCPServerTestBlockingServlet() {
+		this(1);
+	}
+	DHCPServerTestBlockingServlet(int concurrent) {
+		entered = new CountDownLatch(concurrent);
+	}
+
+	@Override
+	protected DHCPPacket doDiscover(DHCPPacket request) {
+		return this.echo(request);
+	}
+	@Override
+	protected DHCPPacket doRequest(DHCPPacket request) {
+		return this.echo(request);
+	}
+	private DHCPPacket echo(DHCPPacket request) {
+		entered.countDown();
+		try {
+			release.await();
+		} catch (InterruptedException e) {
+			return null;
+		}
+		DHCPPacket response = new DHCPPacket();
+		response.setXid(request.getXid());
+		response.setAddress(request.getAddress());
+		response.setPort(request.getPort());
+		return response;
+	}
+}
+
+/**
+ * Answers every DISCOVER with an OFFER sent straight back to the sender.
+ */
+class DHCPServerTestEchoServlet extends DHCPServlet {
+	@Override
+	protected DHCPPacket doDiscover(DHCPPacket request) {
+		DHCPPacket offer = new DHCPPacket();
+		offer.setOp(BOOTREPLY);
+		offer.setXid(request.getXid());
+		offer.setDHCPMessageType(DHCPOFFER);
+		offer.setAddress(request.getAddress());
+		offer.setPort(request.getPort());
+		return offer;
+	}
+}
+
+/**
+ * Servlet keeping the last request (which is wrong with a packet pool), and a copy of it.
+ */
+class DHCPServerTestKeepingServlet extends DHCPServerTestEchoServlet {
+	volatile DHCPPacket	kept;
+	volatile DHCPPacket	copy;
+
+	@Override
+	protected DHCPPacket doDiscover(DHCPPacket request) {
+		this.kept = request;
+		this.copy = request.clone();
+		return super.doDiscover(request);
+	}
+}
+
+/**
+ * Counts the calls to <tt>classify()</tt>.
+ */
+class DHCPServerTestCountingServlet extends DHCPServerTestEchoServlet {
+	final AtomicInteger	classified = new AtomicInteger();
+
+	@Override
+	protected int classify(ByteBuffer request) {
+		this.classified.incrementAndGet();
+		return super.classify(request);
+	}
+}